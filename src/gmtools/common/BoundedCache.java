@@ -0,0 +1,206 @@
+package gmtools.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * Thread safe cache, optionally limited in size, with counters for hits, misses and evictions.
+ * <br/><br/>
+ * If several threads ask for the same missing key at once, only one of them computes the value 
+ * and the others wait for it (rather than all of them doing the same work).
+ * <br/><br/>
+ * When the cache grows beyond its maximum size, the least recently used (LRU) or least frequently used (LFU) 
+ * entries are evicted in a batch, down to {@link #EVICT_TO_FRACTION} of the maximum, so the cost of eviction is spread over many insertions.
+ */
+public class BoundedCache<K, V> {
+	/**after eviction, the cache is this fraction of its max size*/
+	public static final double EVICT_TO_FRACTION = 0.9;
+	
+	public enum EvictionPolicy {LRU, LFU}
+	
+	/**computes the value for a key that isn't in the cache*/
+	public interface Loader<K, V> {
+		public V load(K key);
+	}
+	
+	private String name;
+	private int maxSize;
+	private EvictionPolicy policy;
+	private ConcurrentHashMap<K, Entry<V>> entries;
+	
+	/**incremented on every access; used as a timestamp for LRU*/
+	private AtomicLong clock;
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong evictions;
+	
+	private Object evictionLock;
+	
+	/**
+	 * @param name used when printing stats
+	 * @param maxSize max number of entries; 0 or less for no limit
+	 */
+	public BoundedCache(String name, int maxSize, EvictionPolicy policy) {
+		this.name = name;
+		this.maxSize = maxSize;
+		this.policy = policy;
+		this.entries = new ConcurrentHashMap<>();
+		this.clock = new AtomicLong();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.evictions = new AtomicLong();
+		this.evictionLock = new Object();
+	}
+	
+	/**
+	 * @return the value for this key; if not already in the cache (or being computed by another thread), loader is used to compute it. 
+	 * If the loader throws an exception, nothing is cached, and the exception is passed on to every thread waiting for this key
+	 */
+	public V get(K key, Loader<K, V> loader) {
+		Entry<V> e = entries.get(key);
+		if (e == null) {
+			Entry<V> newEntry = new Entry<V>();
+			e = entries.putIfAbsent(key, newEntry);
+			if (e == null) { // we got there first, so we do the work
+				misses.incrementAndGet();
+				newEntry.touch(clock.incrementAndGet());
+				try {
+					newEntry.setValue(loader.load(key));
+				} catch (RuntimeException | Error ex) {
+					entries.remove(key);
+					newEntry.setFailure(ex);
+					throw ex;
+				}
+				
+				evictIfNeeded();
+				return newEntry.value;
+			}
+		}
+		
+		hits.incrementAndGet();
+		e.touch(clock.incrementAndGet());
+		return e.await();
+	}
+	
+	private void evictIfNeeded() {
+		if ((maxSize <= 0) || (entries.size() <= maxSize)) {
+			return;
+		}
+		
+		synchronized (evictionLock) {
+			if (entries.size() <= maxSize) { // another thread got there first
+				return;
+			}
+			
+			// only consider finished entries; the ones still being computed have threads waiting on them
+			List<Map.Entry<K, Entry<V>>> candidates = new ArrayList<>(entries.size());
+			for (Map.Entry<K, Entry<V>> me : entries.entrySet()) {
+				if (me.getValue().isDone()) {
+					candidates.add(me);
+				}
+			}
+			
+			Collections.sort(candidates, new Comparator<Map.Entry<K, Entry<V>>>() {
+				@Override
+				public int compare(Map.Entry<K, Entry<V>> o1, Map.Entry<K, Entry<V>> o2) {
+					if ((policy == EvictionPolicy.LFU) && (o1.getValue().uses.get() != o2.getValue().uses.get())) {
+						return Long.compare(o1.getValue().uses.get(), o2.getValue().uses.get());
+					}
+					return Long.compare(o1.getValue().lastUsed, o2.getValue().lastUsed);
+				}
+			});
+			
+			int target = (int)(maxSize * EVICT_TO_FRACTION);
+			for (int i = 0; (i < candidates.size()) && (entries.size() > target); i++) {
+				if (entries.remove(candidates.get(i).getKey(), candidates.get(i).getValue())) {
+					evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	@Override
+	public String toString() {
+		long h = getHits();
+		long m = getMisses();
+		return name + ": size=" + size() + ((maxSize > 0) ? "/" + maxSize + " (" + policy + ")" : "") + ", hits=" + h + ", misses=" + m + ", evictions=" + getEvictions() + ((h + m > 0) ? ", hit rate=" + Maths.roundDouble(100.0 * h / (h + m), 2) + "%" : "");
+	}
+	
+	/**a value, or a placeholder for one that is still being computed*/
+	private static class Entry<V> {
+		private volatile V value;
+		private volatile Throwable failure;
+		private CountDownLatch done = new CountDownLatch(1);
+		private volatile long lastUsed;
+		private AtomicLong uses = new AtomicLong();
+		
+		private void touch(long time) {
+			lastUsed = time;
+			uses.incrementAndGet();
+		}
+		
+		private void setValue(V value) {
+			this.value = value;
+			done.countDown();
+		}
+		
+		private void setFailure(Throwable failure) {
+			this.failure = failure;
+			done.countDown();
+		}
+		
+		private boolean isDone() {
+			return done.getCount() == 0;
+		}
+		
+		private V await() {
+			boolean interrupted = false;
+			while (!isDone()) {
+				try {
+					done.await();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			
+			if (failure != null) {
+				throw new RuntimeException("Computing cached value failed in another thread", failure);
+			}
+			return value;
+		}
+	}
+}
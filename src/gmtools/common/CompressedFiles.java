@@ -0,0 +1,181 @@
+package gmtools.common;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ *
+ * <br/><br/>
+ * Opens text files that might be gzipped (judged by a .gz extension, as for .osm.gz in {@link gmtools.parsers.ParseOSM}),
+ * so the raw track dumps can be read without decompressing them to disk first.
+ * Decompression runs on its own thread, a few blocks ahead of whoever is reading, so it overlaps with the parsing.
+ */
+public class CompressedFiles {
+	public static final String GZIP_EXTENSION = ".gz";
+	
+	/**size of the blocks handed from the decompressing thread to the reader*/
+	private static final int BLOCK_SIZE = 1 << 16;
+	/**how many blocks the decompressing thread can get ahead of the reader*/
+	private static final int BLOCKS_AHEAD = 64;
+	
+	/**@return true if the file will be decompressed by {@link #openInputStream(String)}*/
+	public static boolean isGzipped(String filename) {
+		return filename.toLowerCase().endsWith(GZIP_EXTENSION);
+	}
+	
+	/**@return the contents of the file, decompressed on a separate thread if the file is gzipped*/
+	public static InputStream openInputStream(String filename) throws IOException {
+		InputStream in = new FileInputStream(filename);
+		if (isGzipped(filename)) {
+			in = new PipelinedInputStream(new GZIPInputStream(in, BLOCK_SIZE), filename);
+		}
+		return in;
+	}
+	
+	/**@return a reader for the file, decompressed on a separate thread if the file is gzipped*/
+	public static BufferedReader openReader(String filename) throws IOException {
+		return new BufferedReader(new InputStreamReader(openInputStream(filename)));
+	}
+	
+	/**@return a stream that writes to the file, gzipped if the filename ends with .gz; closing the stream finishes the file*/
+	public static OutputStream openOutputStream(String filename) throws IOException {
+		OutputStream out = new FileOutputStream(filename);
+		if (isGzipped(filename)) {
+			out = new GZIPOutputStream(out, BLOCK_SIZE);
+		}
+		return out;
+	}
+	
+	/**
+	 * reads a source stream on a daemon thread into a bounded queue of blocks; reads from this stream take the blocks off the queue.
+	 * Exceptions on the reading thread are rethrown on the next read.
+	 */
+	private static class PipelinedInputStream extends InputStream {
+		/**marks the end of the source stream in the queue*/
+		private static final byte[] END = new byte[0];
+		
+		private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<byte[]>(BLOCKS_AHEAD);
+		private final Thread readerThread;
+		private volatile IOException failure;
+		private volatile boolean closed;
+		
+		private byte[] current = new byte[0];
+		private int currentPosition;
+		private boolean finished;
+		
+		PipelinedInputStream(final InputStream source, String filename) {
+			this.readerThread = new Thread("Decompressing " + filename) {
+				@Override
+				public void run() {
+					try {
+						byte[] block = new byte[BLOCK_SIZE];
+						int filled = 0;
+						int read;
+						while (!closed && ((read = source.read(block, filled, block.length - filled)) >= 0)) {
+							filled += read;
+							if (filled == block.length) {
+								blocks.put(block);
+								block = new byte[BLOCK_SIZE];
+								filled = 0;
+							}
+						}
+						if (filled > 0) {
+							blocks.put(Arrays.copyOf(block, filled));
+						}
+					} catch (IOException e) {
+						failure = e;
+					} catch (InterruptedException e) {
+						// closed early
+					} finally {
+						try {
+							source.close();
+						} catch (IOException e) {
+							if (failure == null) {
+								failure = e;
+							}
+						}
+						try {
+							if (!closed) {
+								blocks.put(END);
+							}
+						} catch (InterruptedException e) {
+							// closed early
+						}
+						if (closed) { // the reader has stopped taking blocks, so make room for the end marker
+							blocks.clear();
+							blocks.offer(END);
+						}
+					}
+				}
+			};
+			this.readerThread.setDaemon(true);
+			this.readerThread.start();
+		}
+		
+		/**@return false at the end of the stream*/
+		private boolean nextBlock() throws IOException {
+			while (!finished && (currentPosition >= current.length)) {
+				try {
+					current = blocks.take();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while waiting for decompressed data", e);
+				}
+				currentPosition = 0;
+				if (current == END) {
+					finished = true;
+				}
+			}
+			if (finished && (failure != null)) {
+				throw failure;
+			}
+			return !finished;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (!nextBlock()) {
+				return -1;
+			}
+			return current[currentPosition++] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextBlock()) {
+				return -1;
+			}
+			int n = Math.min(len, current.length - currentPosition);
+			System.arraycopy(current, currentPosition, b, off, n);
+			currentPosition += n;
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			return current.length - currentPosition;
+		}
+		
+		@Override
+		public void close() {
+			closed = true;
+			readerThread.interrupt();
+		}
+	}
+}
@@ -10,9 +10,45 @@ import gmtools.graph.TaxiNode;
  * Released under the MIT Licence http://opensource.org/licenses/MIT
  * Instructions, citation information, licencing and source
  * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * Distances and angles come from jcoord, unless a {@link LocalGeodesy} has been set with {@link #setLocalGeodesy(LocalGeodesy)},
+ * in which case that is used for any points it covers. The same LocalGeodesy is also the plane used by the snapping code 
+ * (see {@link #localGeodesyAround(double, double)})
  */
 public class Geography {
 	private static final double DISTANCE_THRESHOLD_FOR_ZERO_M = 0.1; // equal LatLng value can return distances that are non-zero
+	
+	private static volatile LocalGeodesy localGeodesy = null;
+	private static boolean localGeodesyChosen = false;
+	
+	/**
+	 * use the given local geodesy (normally centred on the airport) rather than jcoord for distances and angles 
+	 * between points that it covers; null to always use jcoord. This can only be chosen once: later calls (e.g. from 
+	 * the cleaner when it is run by SnapTracks, perhaps while tracks are being loaded) leave the first choice in place
+	 * @return true if this call chose the local geodesy, false if it had already been chosen
+	 */
+	public static synchronized boolean setLocalGeodesy(LocalGeodesy localGeodesy) {
+		if (localGeodesyChosen) {
+			return false;
+		}
+		Geography.localGeodesy = localGeodesy;
+		localGeodesyChosen = true;
+		return true;
+	}
+	
+	/**@return the local geodesy in use, or null if everything goes through jcoord*/
+	public static LocalGeodesy getLocalGeodesy() {
+		return localGeodesy;
+	}
+	
+	/**
+	 * @return the local geodesy in use if it covers the point, so that anything working in its plane agrees with the 
+	 * distances; otherwise (e.g. if everything goes through jcoord) a new one centred on the point
+	 */
+	public static LocalGeodesy localGeodesyAround(double lat, double lon) {
+		LocalGeodesy local = localGeodesy;
+		return ((local != null) && local.covers(lat, lon)) ? local : new LocalGeodesy(lat, lon);
+	}
 
 	/**
 	 * @param lat degrees, minutes, seconds, fractionalSeconds, direction DDDMMSS.SSd e.g. 0532138.77N
@@ -105,7 +141,13 @@ public class Geography {
 	 * @return distance in metres
 	 */
 	public static double distance(LatLng ll1, LatLng ll2) {
-		double d = ll1.distance(ll2) * 1000;
+		LocalGeodesy local = localGeodesy;
+		double d;
+		if ((local != null) && local.covers(ll1) && local.covers(ll2)) {
+			d = local.distance(ll1.getLat(), ll1.getLng(), ll2.getLat(), ll2.getLng());
+		} else {
+			d = jcoordDistance(ll1, ll2);
+		}
 		if (d < DISTANCE_THRESHOLD_FOR_ZERO_M) {
 			d = 0;
 		}
@@ -117,6 +159,12 @@ public class Geography {
 	 * @return distance in metres
 	 */
 	public static double distance(double lat1, double lon1, double lat2, double lon2) {
+		LocalGeodesy local = localGeodesy;
+		if ((local != null) && local.covers(lat1, lon1) && local.covers(lat2, lon2)) {
+			double d = local.distance(lat1, lon1, lat2, lon2);
+			return (d < DISTANCE_THRESHOLD_FOR_ZERO_M) ? 0 : d;
+		}
+		
 		LatLng llFrom = new LatLng(lat1, lon1);
 		LatLng llTo = new LatLng(lat2, lon2);
 		
@@ -124,6 +172,11 @@ public class Geography {
 		
 		return d;
 	}
+	
+	/**@return distance in metres from jcoord, without the rounding to zero*/
+	static double jcoordDistance(LatLng ll1, LatLng ll2) {
+		return ll1.distance(ll2) * 1000;
+	}
 
 	/**
 	 * @return distance in metres
@@ -136,6 +189,11 @@ public class Geography {
 	 * Takes three nodes - previous, current, and next - and gives the turning angle required at the current node to go from prev to next
 	 */
 	public static double angleBetweenNodes(TaxiNode prev, TaxiNode current, TaxiNode next) {
+		LocalGeodesy local = localGeodesy;
+		if ((local != null) && local.covers(prev.getLatCoordinate(), prev.getLonCoordinate()) && local.covers(current.getLatCoordinate(), current.getLonCoordinate()) && local.covers(next.getLatCoordinate(), next.getLonCoordinate())) {
+			return Maths.roundDouble(local.angleBetweenPoints(prev.getLatCoordinate(), prev.getLonCoordinate(), current.getLatCoordinate(), current.getLonCoordinate(), next.getLatCoordinate(), next.getLonCoordinate()), 2);
+		}
+		
 		// convert to utm coords to allow 2D maths
 		LatLng llprev = new LatLng(prev.getLatCoordinate(), prev.getLonCoordinate());
 		LatLng llnext = new LatLng(next.getLatCoordinate(), next.getLonCoordinate());
@@ -145,6 +203,25 @@ public class Geography {
 	}
 
 	public static double angleBetweenPoints(LatLng llprev, LatLng llcurrent, LatLng llnext) {
+		LocalGeodesy local = localGeodesy;
+		if ((local != null) && local.covers(llprev) && local.covers(llcurrent) && local.covers(llnext)) {
+			return local.angleBetweenPoints(llprev.getLat(), llprev.getLng(), llcurrent.getLat(), llcurrent.getLng(), llnext.getLat(), llnext.getLng());
+		}
+		
+		return jcoordAngleBetweenPoints(llprev, llcurrent, llnext);
+	}
+	
+	public static double angleBetweenPoints(double prevLat, double prevLon, double currentLat, double currentLon, double nextLat, double nextLon) {
+		LocalGeodesy local = localGeodesy;
+		if ((local != null) && local.covers(prevLat, prevLon) && local.covers(currentLat, currentLon) && local.covers(nextLat, nextLon)) {
+			return local.angleBetweenPoints(prevLat, prevLon, currentLat, currentLon, nextLat, nextLon);
+		}
+		
+		return jcoordAngleBetweenPoints(new LatLng(prevLat, prevLon), new LatLng(currentLat, currentLon), new LatLng(nextLat, nextLon));
+	}
+	
+	/**@return as {@link #angleBetweenPoints(LatLng, LatLng, LatLng)}, always using jcoord's UTM conversion*/
+	static double jcoordAngleBetweenPoints(LatLng llprev, LatLng llcurrent, LatLng llnext) {
 		// convert to utm coords to allow 2D maths
 		UTMRef utmPrev = llprev.toUTMRef();
 		UTMRef utmCurrent = llcurrent.toUTMRef();
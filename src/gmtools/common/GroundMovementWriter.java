@@ -28,6 +28,7 @@ public class GroundMovementWriter {
 	private List<Edge> edges;
 	private List<Route> routes;
 	private List<Aircraft> aircraft;
+	private List<ShortestPath> shortestPaths;
 	
 	/**initialise new blank GM file*/
 	public GroundMovementWriter() {
@@ -38,6 +39,7 @@ public class GroundMovementWriter {
 		this.edges = new ArrayList<Edge>();
 		this.routes = new ArrayList<Route>();
 		this.aircraft = new ArrayList<Aircraft>();
+		this.shortestPaths = new ArrayList<ShortestPath>();
 	}
 	
 	/**initialise based on an existing GM file*/
@@ -74,6 +76,10 @@ public class GroundMovementWriter {
 		this.aircraft.add(a);
 	}
 	
+	public void addShortestPath(ShortestPath sp) {
+		this.shortestPaths.add(sp);
+	}
+	
 	public List<Edge> getEdges() {
 		return edges;
 	}
@@ -120,6 +126,10 @@ public class GroundMovementWriter {
 		return routes;
 	}
 	
+	public List<ShortestPath> getShortestPaths() {
+		return shortestPaths;
+	}
+	
 	public Route getRoute(int id) {
 		for (Route r : this.routes) {
 			if (r.getSeqNo() == id) {
@@ -261,6 +271,10 @@ public class GroundMovementWriter {
 				}
 			}
 			
+			if (!this.shortestPaths.isEmpty()) {
+				writeShortestPaths(out);
+			}
+			
 			out.println("%END");
 			out.close();
 		} catch (IOException e) {
@@ -269,6 +283,27 @@ public class GroundMovementWriter {
 		}
 	}
 	
+	/**writes a file with just the ShortestPaths section (as in the benchmarks' XXX_ShortestPaths.txt files)*/
+	public void writeShortestPathsFile(String filename) {
+		try {
+			PrintStream out = new PrintStream(new FileOutputStream(filename));
+			writeShortestPaths(out);
+			out.close();
+		} catch (IOException e) {
+			System.err.println("Error writing out file");
+			e.printStackTrace();
+		}
+	}
+	
+	private void writeShortestPaths(PrintStream out) {
+		out.println("%SECTION%1%;ShortestPaths;");
+		out.println("%FIELDS%;startNode;endNode;pathNum;edges;");
+		out.println("%DESCRIPTION%;node_id;node_id;[edge_id1,edge_id2,edge_id3];");
+		for (ShortestPath sp : this.shortestPaths) {
+			out.println(";" + sp.startNode + ";" + sp.endNode + ";" + sp.pathNum + ";[" + ArrayTools.toString(sp.edges, ",") + "]");
+		}
+	}
+	
 	private void readFile(String filename) {
 		try {
 			BufferedReader in = new BufferedReader(new FileReader(filename));
@@ -279,7 +314,9 @@ public class GroundMovementWriter {
 			while ((line = in.readLine()) != null) {
 				//System.out.println(line);
 				if (line.startsWith("%SECTION%")) {
-					if (line.contains("Nodes")) {
+					if (line.contains("ShortestPaths")) {
+						stage = 5;
+					} else if (line.contains("Nodes")) {
 						stage = 0;
 					} else if (line.contains("Edges")) {
 						stage = 1;
@@ -458,6 +495,17 @@ public class GroundMovementWriter {
 						r.setSeqNo(id);
 						
 						addRoute(r);
+					} else if (stage == 5) { // shortest paths
+						int startNode = Integer.parseInt(cols[indices.get("startNode")]);
+						int endNode = Integer.parseInt(cols[indices.get("endNode")]);
+						int pathNum = Integer.parseInt(cols[indices.get("pathNum")]);
+						String[] strEdges = cols[indices.get("edges")].replace("[", "").replace("]", "").split(",");
+						int[] intEdges = new int[strEdges.length];
+						for (int i = 0; i < intEdges.length; i++) {
+							intEdges[i] = Integer.parseInt(strEdges[i]);
+						}
+						
+						addShortestPath(new ShortestPath(startNode, endNode, pathNum, intEdges));
 					}
 				}
 			} // end of loop over file
@@ -590,6 +638,32 @@ public class GroundMovementWriter {
 		}
 	}
 	
+	/**one of the k shortest paths between a pair of nodes; pathNum is 1 for the shortest, 2 for the next and so on*/
+	public static class ShortestPath {
+		private int startNode;
+		private int endNode;
+		private int pathNum;
+		private int[] edges;
+		public ShortestPath(int startNode, int endNode, int pathNum, int[] edges) {
+			this.startNode = startNode;
+			this.endNode = endNode;
+			this.pathNum = pathNum;
+			this.edges = edges;
+		}
+		public int getStartNode() {
+			return startNode;
+		}
+		public int getEndNode() {
+			return endNode;
+		}
+		public int getPathNum() {
+			return pathNum;
+		}
+		public int[] getEdges() {
+			return edges;
+		}
+	}
+	
 	public static class Aircraft {
 		public enum Type { arrival, departure, other}
 		private static int SEQ_NO = 1;
@@ -0,0 +1,255 @@
+package gmtools.common;
+
+import gmtools.graph.TaxiEdge;
+import gmtools.graph.TaxiNode;
+import gmtools.tools.TaxiGen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jgrapht.graph.WeightedMultigraph;
+
+import uk.me.jstott.jcoord.LatLng;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * Fast distances and angles for points near an airport, using a local east/north plane around a reference point 
+ * rather than jcoord's trigonometry and UTM conversions. Distances are on the same sphere that jcoord's 
+ * LatLng.distance() uses, with the longitude scaled by the cosine of the latitude halfway between the points 
+ * (found from a series around the reference latitude, so there's no trigonometry per call). Over the few km of 
+ * an airport this agrees with jcoord to well under a centimetre per 100m; run main() with some GM files to check.
+ * <br/><br/>
+ * Only points within validRadiusM of the reference point are covered; {@link Geography} falls back to jcoord for 
+ * anything else. Immutable, so thread safe.
+ * <br/><br/>
+ * This is also the local east/north plane that the snapping code works in (see {@link #toX(double)} and {@link #toY(double)}, 
+ * and {@link #metresPerDegreeLat()} / {@link #metresPerDegreeLon(double)} for offsets in metres), so that everything 
+ * uses the same sphere as the distances.
+ */
+public class LocalGeodesy {
+	/**radius of the sphere used by jcoord's LatLng.distance(), in metres*/
+	public static final double EARTH_RADIUS_M = 6366707.0;
+	
+	public static final double DEFAULT_VALID_RADIUS_M = 50000;
+	
+	private final double refLat;
+	private final double refLon;
+	private final double cosRefLat;
+	private final double sinRefLat;
+	private final double maxDLat;
+	private final double maxDLon;
+	/**metres per degree of longitude at the reference latitude, for the plane*/
+	private final double metresPerDegreeLon;
+	
+	/**metres per degree of latitude (and of longitude at the equator)*/
+	private static final double METRES_PER_DEGREE = Math.toRadians(EARTH_RADIUS_M);
+	
+	public LocalGeodesy(double refLat, double refLon) {
+		this(refLat, refLon, DEFAULT_VALID_RADIUS_M);
+	}
+	
+	/**
+	 * @param validRadiusM points further than this (roughly) from the reference point aren't covered
+	 */
+	public LocalGeodesy(double refLat, double refLon, double validRadiusM) {
+		this.refLat = refLat;
+		this.refLon = refLon;
+		this.cosRefLat = Math.cos(Math.toRadians(refLat));
+		this.sinRefLat = Math.sin(Math.toRadians(refLat));
+		this.maxDLat = validRadiusM / METRES_PER_DEGREE;
+		this.maxDLon = Math.min(180, validRadiusM / (METRES_PER_DEGREE * Math.max(cosRefLat, 0.01)));
+		this.metresPerDegreeLon = METRES_PER_DEGREE * cosRefLat;
+	}
+	
+	/**@return length of a degree of latitude in metres, on the same sphere as the distances*/
+	public static double metresPerDegreeLat() {
+		return METRES_PER_DEGREE;
+	}
+	
+	/**@return length of a degree of longitude in metres at the given latitude, on the same sphere as the distances*/
+	public static double metresPerDegreeLon(double lat) {
+		return METRES_PER_DEGREE * Math.cos(Math.toRadians(lat));
+	}
+	
+	public double getRefLat() {
+		return refLat;
+	}
+	
+	public double getRefLon() {
+		return refLon;
+	}
+	
+	/**@return true if the point is close enough to the reference point for the other methods to be accurate*/
+	public boolean covers(double lat, double lon) {
+		return (Math.abs(lat - refLat) <= maxDLat) && (Math.abs(lon - refLon) <= maxDLon);
+	}
+	
+	public boolean covers(LatLng ll) {
+		return covers(ll.getLat(), ll.getLng());
+	}
+	
+	/**@return cos of the latitude, from a series around the reference latitude (good to ~1e-9 within 50km)*/
+	private double cosLat(double lat) {
+		double d = Math.toRadians(lat - refLat);
+		double d2 = d * d;
+		return (cosRefLat * (1 - (d2 / 2) + ((d2 * d2) / 24))) - (sinRefLat * d * (1 - (d2 / 6)));
+	}
+	
+	/**
+	 * @return distance in metres
+	 */
+	public double distance(double lat1, double lon1, double lat2, double lon2) {
+		double dy = (lat2 - lat1) * METRES_PER_DEGREE;
+		double dx = (lon2 - lon1) * METRES_PER_DEGREE * cosLat((lat1 + lat2) / 2);
+		return Math.sqrt((dx * dx) + (dy * dy));
+	}
+	
+	/**@return metres east of the reference point in the plane (longitude scaled for the reference latitude)*/
+	public double toX(double lon) {
+		return (lon - refLon) * metresPerDegreeLon;
+	}
+	
+	/**@return metres north of the reference point in the plane*/
+	public double toY(double lat) {
+		return (lat - refLat) * METRES_PER_DEGREE;
+	}
+	
+	/**@return longitude for x metres east of the reference point in the plane*/
+	public double toLon(double x) {
+		return refLon + (x / metresPerDegreeLon);
+	}
+	
+	/**@return latitude for y metres north of the reference point in the plane*/
+	public double toLat(double y) {
+		return refLat + (y / METRES_PER_DEGREE);
+	}
+	
+	/**
+	 * as {@link Geography#angleBetweenPoints(LatLng, LatLng, LatLng)}: the turning angle in degrees (0-180) at current
+	 */
+	public double angleBetweenPoints(double prevLat, double prevLon, double currentLat, double currentLon, double nextLat, double nextLon) {
+		// each leg measured in the plane at its own mid-latitude
+		double angle1 = Math.atan2((currentLat - prevLat), (currentLon - prevLon) * cosLat((prevLat + currentLat) / 2));
+		double angle2 = Math.atan2((nextLat - currentLat), (nextLon - currentLon) * cosLat((currentLat + nextLat) / 2));
+		
+		double diff = angle1 - angle2;
+		double deg = Math.abs(Math.toDegrees(diff));
+		if (deg > 180) {
+			deg = 360 - deg;
+		}
+		
+		return deg;
+	}
+	
+	/**
+	 * as {@link TaxiGen#nearestPointOnLine(double, double, double, double, double, double)}
+	 * @return double[]{lat,lon} of the foot of the perpendicular from the point to the (infinite) line
+	 */
+	public double[] nearestPointOnLine(double pointLat, double pointLon, double endLine1Lat, double endLine1Lon, double endLine2Lat, double endLine2Lon) {
+		// work in a plane with the longitude scale for the point, so the point is at 0,0
+		double metresPerDegreeLon = METRES_PER_DEGREE * cosLat(pointLat);
+		double[] xy = Maths.nearestPointOnLine(0, 0, 
+				(endLine1Lon - pointLon) * metresPerDegreeLon, (endLine1Lat - pointLat) * METRES_PER_DEGREE, 
+				(endLine2Lon - pointLon) * metresPerDegreeLon, (endLine2Lat - pointLat) * METRES_PER_DEGREE);
+		return new double[] {pointLat + (xy[1] / METRES_PER_DEGREE), pointLon + (xy[0] / metresPerDegreeLon)};
+	}
+	
+	@Override
+	public String toString() {
+		return "Local geodesy around " + refLat + "," + refLon;
+	}
+	
+	/**
+	 * Validation: for each GM file given, compares the distances and angles from a LocalGeodesy centred on the 
+	 * airport with those from jcoord, for the edges of the taxiway graph, the turns between adjacent edges, and random 
+	 * pairs of nodes, and prints the worst differences. jcoord's distances are themselves only good to a few mm 
+	 * (and give ~0.13m for identical points), so distances are also compared with the haversine formula on the same sphere.
+	 * args: GM files (e.g. those in benchmarks)
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("Usage: LocalGeodesy GMFile1 [GMFile2 ...]");
+			System.out.println("Compares distances and angles from the local geodesy with jcoord, over the taxiway graph in each file");
+			return;
+		}
+		
+		for (String gmFile : args) {
+			WeightedMultigraph<TaxiNode, TaxiEdge> graph = new TaxiGen(new GroundMovementWriter(gmFile)).getGraphWholeAirport();
+			List<TaxiNode> nodes = new ArrayList<TaxiNode>(graph.vertexSet());
+			double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+			double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+			for (TaxiNode tn : nodes) {
+				minLat = Math.min(minLat, tn.getLatCoordinate());
+				maxLat = Math.max(maxLat, tn.getLatCoordinate());
+				minLon = Math.min(minLon, tn.getLonCoordinate());
+				maxLon = Math.max(maxLon, tn.getLonCoordinate());
+			}
+			LocalGeodesy local = new LocalGeodesy((minLat + maxLat) / 2, (minLon + maxLon) / 2);
+			
+			// edges: short distances
+			double[] edgeErrors = new double[3]; // max abs error (m), max relative error, max abs error vs haversine (m)
+			for (TaxiEdge te : graph.edgeSet()) {
+				compareDistance(local, te.getTnFrom(), te.getTnTo(), edgeErrors);
+			}
+			
+			// random pairs of nodes: distances across the airport
+			double[] pairErrors = new double[3];
+			Random r = new Random(0);
+			for (int i = 0; i < 100000 && nodes.size() > 1; i++) {
+				compareDistance(local, nodes.get(r.nextInt(nodes.size())), nodes.get(r.nextInt(nodes.size())), pairErrors);
+			}
+			
+			// turns between adjacent edges
+			double maxAngleError = 0;
+			int angles = 0;
+			for (TaxiNode shared : nodes) {
+				List<TaxiNode> neighbours = new ArrayList<TaxiNode>();
+				for (TaxiEdge te : graph.edgesOf(shared)) {
+					neighbours.add((te.getTnFrom() == shared) ? te.getTnTo() : te.getTnFrom());
+				}
+				for (TaxiNode prev : neighbours) {
+					for (TaxiNode next : neighbours) {
+						if ((prev == next) || (Geography.jcoordDistance(toLatLng(prev), toLatLng(shared)) < 1) || (Geography.jcoordDistance(toLatLng(shared), toLatLng(next)) < 1)) {
+							continue; // angles are meaningless for (nearly) coincident points
+						}
+						double jcoord = Geography.jcoordAngleBetweenPoints(toLatLng(prev), toLatLng(shared), toLatLng(next));
+						double fast = local.angleBetweenPoints(prev.getLatCoordinate(), prev.getLonCoordinate(), shared.getLatCoordinate(), shared.getLonCoordinate(), next.getLatCoordinate(), next.getLonCoordinate());
+						maxAngleError = Math.max(maxAngleError, Math.abs(jcoord - fast));
+						angles++;
+					}
+				}
+			}
+			
+			System.out.println(gmFile + ": " + local);
+			System.out.println("  " + graph.edgeSet().size() + " edges: max distance error " + edgeErrors[0] + "m, max relative error " + edgeErrors[1] + ", max error vs haversine " + edgeErrors[2] + "m");
+			System.out.println("  100000 random node pairs: max distance error " + pairErrors[0] + "m, max relative error " + pairErrors[1] + ", max error vs haversine " + pairErrors[2] + "m");
+			System.out.println("  " + angles + " turns: max angle error " + maxAngleError + " degrees");
+		}
+	}
+	
+	private static LatLng toLatLng(TaxiNode tn) {
+		return new LatLng(tn.getLatCoordinate(), tn.getLonCoordinate());
+	}
+	
+	private static void compareDistance(LocalGeodesy local, TaxiNode tn1, TaxiNode tn2, double[] errors) {
+		double jcoord = Geography.jcoordDistance(toLatLng(tn1), toLatLng(tn2));
+		double fast = local.distance(tn1.getLatCoordinate(), tn1.getLonCoordinate(), tn2.getLatCoordinate(), tn2.getLonCoordinate());
+		double error = Math.abs(jcoord - fast);
+		errors[0] = Math.max(errors[0], error);
+		if (jcoord > 1) { // jcoord itself is only good to a few mm, so relative errors for tiny distances mean nothing
+			errors[1] = Math.max(errors[1], error / jcoord);
+		}
+		
+		double lat1 = Math.toRadians(tn1.getLatCoordinate());
+		double lat2 = Math.toRadians(tn2.getLatCoordinate());
+		double sinDLat = Math.sin((lat2 - lat1) / 2);
+		double sinDLon = Math.sin(Math.toRadians(tn2.getLonCoordinate() - tn1.getLonCoordinate()) / 2);
+		double haversine = 2 * EARTH_RADIUS_M * Math.asin(Math.sqrt((sinDLat * sinDLat) + (Math.cos(lat1) * Math.cos(lat2) * sinDLon * sinDLon)));
+		errors[2] = Math.max(errors[2], Math.abs(haversine - fast));
+	}
+}
@@ -0,0 +1,407 @@
+package gmtools.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jgrapht.GraphPath;
+import org.jgrapht.graph.GraphPathImpl;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * A* search over the taxiway graph. The lower bound on the remaining distance is the greater of
+ * the straight line distance to the target, and (if any landmarks are used) the ALT bound from the 
+ * triangle inequality on precomputed distances to a few landmark nodes.
+ * <br/><br/>
+ * Edge weights from GM files aren't always exactly the distance between the nodes, so the straight line 
+ * distance is scaled down by the smallest weight / distance ratio over all edges, to keep the bound admissible.
+ * <br/><br/>
+ * Searches run on a {@link CompactGraph}, using arrays kept per thread, so they don't allocate anything
+ * until the path found is turned back into TaxiEdges. Thread safe once constructed.
+ */
+public class AStarRouter {
+	private CompactGraph graph;
+	
+	/**straight line distances are multiplied by this, so they never exceed the weight of a path*/
+	private double planeDistanceScale;
+	
+	/**landmarkDistances[l][i] is the shortest distance from landmark l to node i (undirected graph, so also from i to l)*/
+	private double[][] landmarkDistances;
+	
+	private ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace(graph.getNodeCount(), graph.getEdgeCount());
+		}
+	};
+	
+	private AtomicLong queries = new AtomicLong();
+	private AtomicLong nodesSettled = new AtomicLong();
+	
+	/**
+	 * @param numLandmarks number of nodes to precompute distances from for the ALT bound; 0 for just the straight line bound.
+	 * Landmarks are picked to be far apart, each one the node furthest from those already picked
+	 */
+	public AStarRouter(CompactGraph graph, int numLandmarks) {
+		this.graph = graph;
+		
+		this.planeDistanceScale = 1;
+		for (int e = 0; e < graph.getEdgeCount(); e++) {
+			double d = graph.getPlaneDistance(graph.getEdgeFrom(e), graph.getEdgeTo(e));
+			if (d > 0) {
+				planeDistanceScale = Math.min(planeDistanceScale, graph.getEdgeLength(e) / d);
+			}
+		}
+		planeDistanceScale = Math.max(0, planeDistanceScale * 0.999); // a little slack for rounding
+		
+		int n = graph.getNodeCount();
+		this.landmarkDistances = new double[Math.min(Math.max(numLandmarks, 0), n)][];
+		if (landmarkDistances.length > 0) {
+			// start from whatever is furthest from an arbitrary node, then repeatedly add the node furthest from all landmarks so far
+			double[] distanceToNearestLandmark = distancesFrom(0);
+			for (int l = 0; l < landmarkDistances.length; l++) {
+				int furthest = 0;
+				for (int i = 1; i < n; i++) {
+					if (!Double.isInfinite(distanceToNearestLandmark[i]) && (distanceToNearestLandmark[i] > distanceToNearestLandmark[furthest])) {
+						furthest = i;
+					}
+				}
+				
+				landmarkDistances[l] = distancesFrom(furthest);
+				for (int i = 0; i < n; i++) {
+					distanceToNearestLandmark[i] = (l == 0) ? landmarkDistances[l][i] : Math.min(distanceToNearestLandmark[i], landmarkDistances[l][i]);
+				}
+			}
+		}
+	}
+	
+	private double[] distancesFrom(int source) {
+		ShortestPathTree tree = new ShortestPathTree(graph, source);
+		double[] rval = new double[graph.getNodeCount()];
+		for (int i = 0; i < rval.length; i++) {
+			rval[i] = tree.getDistance(i);
+		}
+		return rval;
+	}
+	
+	/**@return a lower bound on the shortest distance between nodes i and j*/
+	private double lowerBound(int i, int j) {
+		double rval = planeDistanceScale * graph.getPlaneDistance(i, j);
+		for (double[] d : landmarkDistances) {
+			if (!Double.isInfinite(d[i]) && !Double.isInfinite(d[j])) {
+				rval = Math.max(rval, Math.abs(d[j] - d[i]));
+			}
+		}
+		return rval;
+	}
+	
+	/**@return the shortest path between source and target, or null if there isn't one*/
+	public GraphPath<TaxiNode, TaxiEdge> getShortestPath(TaxiNode source, TaxiNode target) {
+		return getShortestPath(Collections.singleton(source), Collections.singleton(target));
+	}
+	
+	/**
+	 * @return the shortest path from any of the sources to any of the targets (so getStartVertex() and getEndVertex() 
+	 * give the nearest pair), or null if none of the targets can be reached
+	 */
+	public GraphPath<TaxiNode, TaxiEdge> getShortestPath(Collection<TaxiNode> sources, Collection<TaxiNode> targets) {
+		Workspace ws = workspaces.get();
+		ws.startSearch();
+		int s = 0;
+		for (TaxiNode tn : sources) {
+			ws.sources[s++] = graph.indexOf(tn);
+		}
+		int t = 0;
+		for (TaxiNode tn : targets) {
+			ws.targets[t++] = graph.indexOf(tn);
+		}
+		
+		int found = search(ws, s, t);
+		if (found < 0) {
+			return null;
+		}
+		
+		int count = ws.tracePath(found);
+		return new GraphPathImpl<TaxiNode, TaxiEdge>(graph.getGraph(), graph.getNode(ws.pathStart), graph.getNode(found), graph.toEdgeList(ws.path, count), ws.distances[found]);
+	}
+	
+	/**
+	 * Yen's algorithm, using the A* search for each spur path
+	 * @return up to k shortest loopless paths from source to target, shortest first; empty if there are none
+	 */
+	public List<GraphPath<TaxiNode, TaxiEdge>> getKShortestPaths(TaxiNode source, TaxiNode target, int k) {
+		List<GraphPath<TaxiNode, TaxiEdge>> rval = new ArrayList<GraphPath<TaxiNode, TaxiEdge>>(Math.max(k, 0));
+		if (k < 1) {
+			return rval;
+		}
+		
+		Workspace ws = workspaces.get();
+		int s = graph.indexOf(source);
+		int t = graph.indexOf(target);
+		
+		ws.startSearch();
+		ws.sources[0] = s;
+		ws.targets[0] = t;
+		if (search(ws, 1, 1) < 0) {
+			return rval;
+		}
+		List<IntPath> found = new ArrayList<IntPath>(k);
+		found.add(new IntPath(Arrays.copyOf(ws.path, ws.tracePath(t)), ws.distances[t]));
+		
+		PriorityQueue<IntPath> candidates = new PriorityQueue<IntPath>();
+		Set<IntPath> seen = new HashSet<IntPath>();
+		seen.add(found.get(0));
+		int[] previousNodes = new int[graph.getNodeCount()];
+		while (found.size() < k) {
+			IntPath previous = found.get(found.size() - 1);
+			previousNodes[0] = s;
+			for (int i = 0; i < previous.edges.length; i++) {
+				previousNodes[i + 1] = graph.getOppositeNode(previous.edges[i], previousNodes[i]);
+			}
+			
+			// deviate from the previous path at each of its nodes in turn
+			double rootWeight = 0;
+			for (int spur = 0; spur < previous.edges.length; spur++) {
+				ws.startSearch();
+				for (IntPath p : found) {
+					if ((p.edges.length > spur) && p.startsWith(previous.edges, spur)) {
+						ws.bannedEdges[p.edges[spur]] = ws.banStamp;
+					}
+				}
+				for (int i = 0; i < spur; i++) {
+					ws.bannedNodes[previousNodes[i]] = ws.banStamp;
+				}
+				
+				ws.sources[0] = previousNodes[spur];
+				ws.targets[0] = t;
+				if (search(ws, 1, 1) >= 0) {
+					int count = ws.tracePath(t);
+					int[] edges = Arrays.copyOf(previous.edges, spur + count);
+					System.arraycopy(ws.path, 0, edges, spur, count);
+					IntPath candidate = new IntPath(edges, rootWeight + ws.distances[t]);
+					if (seen.add(candidate)) {
+						candidates.add(candidate);
+					}
+				}
+				
+				rootWeight += graph.getEdgeLength(previous.edges[spur]);
+			}
+			
+			if (candidates.isEmpty()) {
+				break;
+			}
+			found.add(candidates.poll());
+		}
+		
+		for (IntPath p : found) {
+			rval.add(new GraphPathImpl<TaxiNode, TaxiEdge>(graph.getGraph(), source, target, graph.toEdgeList(p.edges, p.edges.length), p.weight));
+		}
+		return rval;
+	}
+	
+	/**
+	 * A* from ws.sources[0..sourceCount-1] to the nearest of ws.targets[0..targetCount-1], avoiding anything banned for this search
+	 * @return the target reached, or -1 if none could be
+	 */
+	private int search(Workspace ws, int sourceCount, int targetCount) {
+		queries.incrementAndGet();
+		int settledCount = 0;
+		
+		for (int i = 0; i < targetCount; i++) {
+			ws.targetStamps[ws.targets[i]] = ws.stamp;
+		}
+		for (int i = 0; i < sourceCount; i++) {
+			int source = ws.sources[i];
+			if (ws.bannedNodes[source] != ws.banStamp) {
+				ws.reach(source, 0, -1);
+				ws.heap.insertOrDecrease(source, estimate(ws, source, targetCount));
+			}
+		}
+		
+		int rval = -1;
+		while (!ws.heap.isEmpty()) {
+			int current = ws.heap.poll();
+			ws.settledStamps[current] = ws.stamp;
+			settledCount++;
+			
+			if (ws.targetStamps[current] == ws.stamp) {
+				rval = current;
+				break;
+			}
+			
+			for (int a = graph.getAdjacencyStart(current); a < graph.getAdjacencyEnd(current); a++) {
+				int edge = graph.getAdjacentEdge(a);
+				int next = graph.getAdjacentNode(a);
+				if ((ws.bannedEdges[edge] == ws.banStamp) || (ws.bannedNodes[next] == ws.banStamp) || (ws.settledStamps[next] == ws.stamp)) {
+					continue;
+				}
+				
+				double d = ws.distances[current] + graph.getEdgeLength(edge);
+				if ((ws.reachedStamps[next] != ws.stamp) || (d < ws.distances[next])) {
+					ws.reach(next, d, edge);
+					ws.heap.insertOrDecrease(next, d + estimate(ws, next, targetCount));
+				}
+			}
+		}
+		
+		ws.heap.clear();
+		nodesSettled.addAndGet(settledCount);
+		return rval;
+	}
+	
+	/**@return lower bound on the distance from node to the nearest of the targets (cached per search, as it doesn't change)*/
+	private double estimate(Workspace ws, int node, int targetCount) {
+		if (ws.estimateStamps[node] != ws.stamp) {
+			double rval = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < targetCount; i++) {
+				rval = Math.min(rval, lowerBound(node, ws.targets[i]));
+			}
+			ws.estimates[node] = rval;
+			ws.estimateStamps[node] = ws.stamp;
+		}
+		return ws.estimates[node];
+	}
+	
+	public int getNumLandmarks() {
+		return landmarkDistances.length;
+	}
+	
+	/**@return number of searches run so far (including each spur search for k shortest paths)*/
+	public long getQueries() {
+		return queries.get();
+	}
+	
+	/**@return total number of nodes settled over all the searches so far*/
+	public long getNodesSettled() {
+		return nodesSettled.get();
+	}
+	
+	@Override
+	public String toString() {
+		long q = getQueries();
+		return "A* router (" + landmarkDistances.length + " landmarks): " + q + " searches, " + getNodesSettled() + " nodes settled" + ((q > 0) ? String.format(" (%.1f per search)", getNodesSettled() / (double)q) : "");
+	}
+	
+	/**
+	 * per-thread search state. Rather than clearing the arrays for each search, entries are only 
+	 * valid if their stamp matches the current search's stamp
+	 */
+	private class Workspace {
+		private int stamp;
+		/**separate from stamp so that bans can be set up before the search (stamp is the same for both in practice)*/
+		private int banStamp;
+		
+		private double[] distances;
+		private int[] predecessors;
+		private int[] reachedStamps;
+		private int[] settledStamps;
+		private int[] targetStamps;
+		private double[] estimates;
+		private int[] estimateStamps;
+		private int[] bannedNodes;
+		private int[] bannedEdges;
+		private NodeHeap heap;
+		
+		private int[] sources;
+		private int[] targets;
+		/**edges of the last path traced*/
+		private int[] path;
+		private int pathStart;
+		
+		public Workspace(int n, int m) {
+			this.distances = new double[n];
+			this.predecessors = new int[n];
+			this.reachedStamps = new int[n];
+			this.settledStamps = new int[n];
+			this.targetStamps = new int[n];
+			this.estimates = new double[n];
+			this.estimateStamps = new int[n];
+			this.bannedNodes = new int[n];
+			this.bannedEdges = new int[m];
+			this.heap = new NodeHeap(n);
+			this.sources = new int[n];
+			this.targets = new int[n];
+			this.path = new int[n];
+		}
+		
+		/**invalidates everything from the last search*/
+		private void startSearch() {
+			if (stamp == Integer.MAX_VALUE) {
+				stamp = 0;
+				for (int[] a : new int[][] {reachedStamps, settledStamps, targetStamps, estimateStamps, bannedNodes, bannedEdges}) {
+					Arrays.fill(a, 0);
+				}
+			}
+			stamp++;
+			banStamp = stamp;
+		}
+		
+		private void reach(int node, double distance, int predecessor) {
+			distances[node] = distance;
+			predecessors[node] = predecessor;
+			reachedStamps[node] = stamp;
+		}
+		
+		/**fills path with the edges from the source to node, and pathStart with the source; returns the number of edges*/
+		private int tracePath(int node) {
+			int count = 0;
+			for (int tn = node; predecessors[tn] >= 0; tn = graph.getOppositeNode(predecessors[tn], tn)) {
+				count++;
+			}
+			int i = count;
+			int tn = node;
+			while (predecessors[tn] >= 0) {
+				path[--i] = predecessors[tn];
+				tn = graph.getOppositeNode(predecessors[tn], tn);
+			}
+			pathStart = tn;
+			return count;
+		}
+	}
+	
+	/**a path as edge indices, ordered by weight for the candidates in Yen's algorithm*/
+	private static class IntPath implements Comparable<IntPath> {
+		private int[] edges;
+		private double weight;
+		
+		public IntPath(int[] edges, double weight) {
+			this.edges = edges;
+			this.weight = weight;
+		}
+		
+		/**@return true if the first length edges are the same as in prefix*/
+		public boolean startsWith(int[] prefix, int length) {
+			for (int i = 0; i < length; i++) {
+				if (edges[i] != prefix[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		@Override
+		public int compareTo(IntPath o) {
+			return Double.compare(this.weight, o.weight);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof IntPath) && Arrays.equals(this.edges, ((IntPath)obj).edges);
+		}
+		
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(edges);
+		}
+	}
+}
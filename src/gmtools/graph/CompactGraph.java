@@ -0,0 +1,274 @@
+package gmtools.graph;
+
+import gmtools.common.Geography;
+import gmtools.common.LocalGeodesy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jgrapht.graph.WeightedMultigraph;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * Immutable compressed sparse row (CSR) copy of the taxiway graph, for the routing and snapping code that is run 
+ * over and over. Nodes and edges are numbered 0..n-1 and 0..m-1, and everything about them is held in flat arrays, 
+ * so searches don't need to hash TaxiNodes (which hash their String ids) or go through jgrapht's edge containers.
+ * Use {@link #getNode(int)} and {@link #getEdge(int)} to get back to TaxiNodes and TaxiEdges for output.
+ * <br/><br/>
+ * Nodes also have coordinates in a local east/north plane in metres: that of the {@link LocalGeodesy} in use 
+ * (see {@link Geography#localGeodesyAround(double, double)}), so normally centred on the airport.
+ * <br/><br/>
+ * Get one from {@link gmtools.tools.TaxiGen#getCompactGraph()} rather than building a new one each time.
+ */
+public class CompactGraph {
+	private WeightedMultigraph<TaxiNode, TaxiEdge> graph;
+	private TaxiNode[] nodes;
+	private TaxiEdge[] edges;
+	private Map<TaxiNode, Integer> nodeIndices;
+	private Map<TaxiEdge, Integer> edgeIndices;
+	
+	private double[] lats;
+	private double[] lons;
+	
+	private LocalGeodesy plane;
+	/**metres east of the plane's reference point*/
+	private double[] xs;
+	/**metres north of the plane's reference point*/
+	private double[] ys;
+	
+	private int[] edgeFroms;
+	private int[] edgeTos;
+	/**the edge weights in the jgrapht graph*/
+	private double[] edgeLengths;
+	/**ordinal of the TaxiEdge.EdgeType*/
+	private byte[] edgeTypes;
+	
+	/**edges (and the node at the other end of them) for node i are at adjacencyOffsets[i] to adjacencyOffsets[i+1]-1 of adjacentEdges and adjacentNodes*/
+	private int[] adjacencyOffsets;
+	private int[] adjacentEdges;
+	private int[] adjacentNodes;
+	
+	public CompactGraph(WeightedMultigraph<TaxiNode, TaxiEdge> graph) {
+		this.graph = graph;
+		int n = graph.vertexSet().size();
+		int m = graph.edgeSet().size();
+		
+		this.nodes = graph.vertexSet().toArray(new TaxiNode[n]);
+		this.nodeIndices = new HashMap<TaxiNode, Integer>(n * 2);
+		this.lats = new double[n];
+		this.lons = new double[n];
+		double minLat = Double.POSITIVE_INFINITY;
+		double maxLat = Double.NEGATIVE_INFINITY;
+		double minLon = Double.POSITIVE_INFINITY;
+		double maxLon = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			nodeIndices.put(nodes[i], i);
+			lats[i] = nodes[i].getLatCoordinate();
+			lons[i] = nodes[i].getLonCoordinate();
+			minLat = Math.min(minLat, lats[i]);
+			maxLat = Math.max(maxLat, lats[i]);
+			minLon = Math.min(minLon, lons[i]);
+			maxLon = Math.max(maxLon, lons[i]);
+		}
+		
+		this.plane = Geography.localGeodesyAround((n > 0) ? (minLat + maxLat) / 2 : 0, (n > 0) ? (minLon + maxLon) / 2 : 0);
+		this.xs = new double[n];
+		this.ys = new double[n];
+		for (int i = 0; i < n; i++) {
+			xs[i] = plane.toX(lons[i]);
+			ys[i] = plane.toY(lats[i]);
+		}
+		
+		this.edges = graph.edgeSet().toArray(new TaxiEdge[m]);
+		this.edgeIndices = new HashMap<TaxiEdge, Integer>(m * 2);
+		this.edgeFroms = new int[m];
+		this.edgeTos = new int[m];
+		this.edgeLengths = new double[m];
+		this.edgeTypes = new byte[m];
+		int[] degrees = new int[n];
+		for (int e = 0; e < m; e++) {
+			TaxiEdge te = edges[e];
+			edgeIndices.put(te, e);
+			edgeFroms[e] = nodeIndices.get(graph.getEdgeSource(te));
+			edgeTos[e] = nodeIndices.get(graph.getEdgeTarget(te));
+			edgeLengths[e] = graph.getEdgeWeight(te);
+			edgeTypes[e] = (byte)te.getEdgeType().ordinal();
+			degrees[edgeFroms[e]]++;
+			if (edgeTos[e] != edgeFroms[e]) {
+				degrees[edgeTos[e]]++;
+			}
+		}
+		
+		this.adjacencyOffsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			adjacencyOffsets[i + 1] = adjacencyOffsets[i] + degrees[i];
+		}
+		this.adjacentEdges = new int[adjacencyOffsets[n]];
+		this.adjacentNodes = new int[adjacencyOffsets[n]];
+		int[] next = new int[n];
+		System.arraycopy(adjacencyOffsets, 0, next, 0, n);
+		for (int e = 0; e < m; e++) {
+			int from = edgeFroms[e];
+			int to = edgeTos[e];
+			adjacentEdges[next[from]] = e;
+			adjacentNodes[next[from]++] = to;
+			if (to != from) {
+				adjacentEdges[next[to]] = e;
+				adjacentNodes[next[to]++] = from;
+			}
+		}
+	}
+	
+	/**@return the graph this was built from*/
+	public WeightedMultigraph<TaxiNode, TaxiEdge> getGraph() {
+		return graph;
+	}
+	
+	public int getNodeCount() {
+		return nodes.length;
+	}
+	
+	public int getEdgeCount() {
+		return edges.length;
+	}
+	
+	public TaxiNode getNode(int node) {
+		return nodes[node];
+	}
+	
+	public TaxiEdge getEdge(int edge) {
+		return edges[edge];
+	}
+	
+	/**@return index of the node, or -1 if it isn't in the graph*/
+	public int indexOf(TaxiNode tn) {
+		Integer i = nodeIndices.get(tn);
+		return (i != null) ? i : -1;
+	}
+	
+	/**@return index of the edge, or -1 if it isn't in the graph*/
+	public int indexOf(TaxiEdge te) {
+		Integer i = edgeIndices.get(te);
+		return (i != null) ? i : -1;
+	}
+	
+	/**@return first position in {@link #getAdjacentEdge(int)} / {@link #getAdjacentNode(int)} for the node*/
+	public int getAdjacencyStart(int node) {
+		return adjacencyOffsets[node];
+	}
+	
+	/**@return one past the last position in {@link #getAdjacentEdge(int)} / {@link #getAdjacentNode(int)} for the node*/
+	public int getAdjacencyEnd(int node) {
+		return adjacencyOffsets[node + 1];
+	}
+	
+	public int getAdjacentEdge(int position) {
+		return adjacentEdges[position];
+	}
+	
+	/**@return the node at the other end of {@link #getAdjacentEdge(int)}*/
+	public int getAdjacentNode(int position) {
+		return adjacentNodes[position];
+	}
+	
+	public int getEdgeFrom(int edge) {
+		return edgeFroms[edge];
+	}
+	
+	public int getEdgeTo(int edge) {
+		return edgeTos[edge];
+	}
+	
+	/**@return the other end of the edge from node*/
+	public int getOppositeNode(int edge, int node) {
+		return (edgeFroms[edge] == node) ? edgeTos[edge] : edgeFroms[edge];
+	}
+	
+	public double getEdgeLength(int edge) {
+		return edgeLengths[edge];
+	}
+	
+	public TaxiEdge.EdgeType getEdgeType(int edge) {
+		return TaxiEdge.EdgeType.values()[edgeTypes[edge]];
+	}
+	
+	public double getLat(int node) {
+		return lats[node];
+	}
+	
+	public double getLon(int node) {
+		return lons[node];
+	}
+	
+	/**@return metres east of the plane's reference point (normally the airport)*/
+	public double getX(int node) {
+		return xs[node];
+	}
+	
+	/**@return metres north of the plane's reference point (normally the airport)*/
+	public double getY(int node) {
+		return ys[node];
+	}
+	
+	/**@return lat,lon converted to {x,y} in the same plane as {@link #getX(int)}, {@link #getY(int)}*/
+	public double[] project(double lat, double lon) {
+		return new double[] {projectLon(lon), projectLat(lat)};
+	}
+	
+	/**@return x in metres east of the plane's reference point (normally the airport) (as {@link #getX(int)}) for the longitude*/
+	public double projectLon(double lon) {
+		return plane.toX(lon);
+	}
+	
+	/**@return y in metres north of the plane's reference point (normally the airport) (as {@link #getY(int)}) for the latitude*/
+	public double projectLat(double lat) {
+		return plane.toY(lat);
+	}
+	
+	/**@return longitude for x metres east of the plane's reference point (normally the airport)*/
+	public double unprojectX(double x) {
+		return plane.toLon(x);
+	}
+	
+	/**@return latitude for y metres north of the plane's reference point (normally the airport)*/
+	public double unprojectY(double y) {
+		return plane.toLat(y);
+	}
+	
+	/**@return straight line distance between the nodes in the local plane, in metres*/
+	public double getPlaneDistance(int node1, int node2) {
+		double dx = xs[node1] - xs[node2];
+		double dy = ys[node1] - ys[node2];
+		return Math.sqrt((dx * dx) + (dy * dy));
+	}
+	
+	/**@return square of the distance in the local plane from x,y to the nearest point on the edge*/
+	public double getDistanceSquaredToEdge(int edge, double x, double y) {
+		double x1 = getX(getEdgeFrom(edge));
+		double y1 = getY(getEdgeFrom(edge));
+		double x2 = getX(getEdgeTo(edge));
+		double y2 = getY(getEdgeTo(edge));
+		double ex = x2 - x1;
+		double ey = y2 - y1;
+		double lengthSquared = (ex * ex) + (ey * ey);
+		double t = (lengthSquared > 0) ? Math.max(0, Math.min(1, (((x - x1) * ex) + ((y - y1) * ey)) / lengthSquared)) : 0;
+		double dx = x - (x1 + (t * ex));
+		double dy = y - (y1 + (t * ey));
+		return (dx * dx) + (dy * dy);
+	}
+	
+	/**@return the TaxiEdges for the first count edge indices in the array, in the same order*/
+	public List<TaxiEdge> toEdgeList(int[] edgeIndices, int count) {
+		List<TaxiEdge> rval = new ArrayList<TaxiEdge>(count);
+		for (int i = 0; i < count; i++) {
+			rval.add(edges[edgeIndices[i]]);
+		}
+		return rval;
+	}
+}
@@ -5,6 +5,7 @@ import gmtools.tools.TaxiGen;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -18,10 +19,34 @@ import uk.me.jstott.jcoord.LatLng;
  * This will take a taxiway graph, and cluster the edges in it so that we can quickly access the edges near to a certain point
  * The clusters are in a grid pattern, overlaid on the airport. When providing a point, you'll only get the edges in the grid squares
  * containing it (and neighbouring ones if they're close enough)
+ * <br/><br/>
+ * Alternatively (IndexType.RTREE), the edges are held in an {@link EdgeRTree}, and you get just the edges actually 
+ * within the distance of the point, however big the airport is
+ * <br/><br/>
+ * Either way, an {@link EdgeDistanceField} can be added, which then answers the allocation-free queries from a 
+ * precomputed raster instead
  */
 public class EdgeClusters {
+	public enum IndexType { GRID, RTREE }
+	
+	/**R-tree queries look this much further than the requested distance, so that differences between the R-tree's local plane and the distances used when snapping don't lose any edges*/
+	private static final double RTREE_DISTANCE_FACTOR = 1.05;
+	private static final double RTREE_DISTANCE_PADDING_M = 1;
+	
+	/**null unless using IndexType.RTREE*/
+	private EdgeRTree rtree;
+	private double rtreeQueryDistanceM;
+	
+	/**if not null, used for {@link #getEdgesNearPoint(double, double, int[])}*/
+	private EdgeDistanceField distanceField;
+	
 	private List<List<Set<TaxiEdge>>> grid;
 	
+	/**same as grid, but as edge indices in compactGraph*/
+	private int[][][] gridEdgeIndices;
+	
+	private CompactGraph compactGraph;
+	
 	private int gridSize;
 	
 	private double gridCellSizeLat;
@@ -37,6 +62,21 @@ public class EdgeClusters {
 	double maxLon;
 	
 	public EdgeClusters(TaxiGen taxiGen, int gridSize, double distanceMFromCellEdgeToGetNeighbourToo) {
+		this(taxiGen, gridSize, distanceMFromCellEdgeToGetNeighbourToo, IndexType.GRID);
+	}
+	
+	/**
+	 * @param gridSize ignored for IndexType.RTREE
+	 * @param distanceMFromCellEdgeToGetNeighbourToo for IndexType.RTREE, the edges returned are those within this distance of the point
+	 */
+	public EdgeClusters(TaxiGen taxiGen, int gridSize, double distanceMFromCellEdgeToGetNeighbourToo, IndexType indexType) {
+		this.compactGraph = taxiGen.getCompactGraph();
+		if (indexType == IndexType.RTREE) {
+			this.rtree = new EdgeRTree(compactGraph);
+			this.rtreeQueryDistanceM = (distanceMFromCellEdgeToGetNeighbourToo * RTREE_DISTANCE_FACTOR) + RTREE_DISTANCE_PADDING_M;
+			return;
+		}
+		
 		this.gridSize = gridSize;
 		this.grid = new ArrayList<>(gridSize);
 		for (int i = 0; i < gridSize; i++) {
@@ -111,6 +151,18 @@ public class EdgeClusters {
 		
 		
 		processEdges(graph.edgeSet());
+		
+		this.gridEdgeIndices = new int[gridSize][gridSize][];
+		for (int x = 0; x < gridSize; x++) {
+			for (int y = 0; y < gridSize; y++) {
+				Set<TaxiEdge> cell = this.grid.get(x).get(y);
+				gridEdgeIndices[x][y] = new int[cell.size()];
+				int i = 0;
+				for (TaxiEdge te : cell) {
+					gridEdgeIndices[x][y][i++] = compactGraph.indexOf(te);
+				}
+			}
+		}
 	}
 	
 	private void processEdges(Set<TaxiEdge> edges) {
@@ -177,6 +229,12 @@ public class EdgeClusters {
 	}
 	
 	public Set<TaxiEdge> getEdgesNearPoint(LatLng point) {
+		if (rtree != null) {
+			Set<TaxiEdge> rval = new HashSet<>();
+			rtree.getEdgesWithinDistance(point, rtreeQueryDistanceM, rval);
+			return rval;
+		}
+		
 		// return empty set if out of all bounds
 		if ((point.getLat() < (this.minLat)) || (point.getLat() > this.maxLat) || (point.getLng() < this.minLon) || (point.getLng() > this.maxLon)) {
 			return Collections.emptySet();
@@ -198,6 +256,145 @@ public class EdgeClusters {
 		return rval;
 	}
 	
+	/**
+	 * as {@link #getEdgesNearPoint(LatLng)}, but adds the edges to a collection supplied by the caller (which can be reused between points), 
+	 * rather than copying them into a new set
+	 * @return number of edges added (each edge is only added once)
+	 */
+	public int getEdgesNearPoint(LatLng point, Collection<TaxiEdge> buffer) {
+		if (rtree != null) {
+			return rtree.getEdgesWithinDistance(point, rtreeQueryDistanceM, buffer);
+		}
+		
+		if ((point.getLat() < (this.minLat)) || (point.getLat() > this.maxLat) || (point.getLng() < this.minLon) || (point.getLng() > this.maxLon)) {
+			return 0;
+		}
+		
+		int[] cells = getCellForPoint(point);
+		
+		// an edge can be in several of the cells, so only add it for the first one it's in
+		List<Set<TaxiEdge>> cellSets = new ArrayList<>(4);
+		cellSets.add(this.grid.get(cells[0]).get(cells[1]));
+		if (cells[2] >= 0) {
+			cellSets.add(this.grid.get(cells[2]).get(cells[1]));
+		}
+		if (cells[3] >= 0) {
+			cellSets.add(this.grid.get(cells[0]).get(cells[3]));
+		}
+		if ((cells[2] >= 0)&&(cells[3] >= 0)) {
+			cellSets.add(this.grid.get(cells[2]).get(cells[3]));
+		}
+		
+		int rval = 0;
+		for (int i = 0; i < cellSets.size(); i++) {
+			for (TaxiEdge te : cellSets.get(i)) {
+				boolean alreadyAdded = false;
+				for (int j = 0; !alreadyAdded && (j < i); j++) {
+					alreadyAdded = cellSets.get(j).contains(te);
+				}
+				if (!alreadyAdded) {
+					buffer.add(te);
+					rval++;
+				}
+			}
+		}
+		
+		return rval;
+	}
+	
+	/**
+	 * as {@link #getEdgesNearPoint(LatLng)}, but without allocating anything: the edges are written to buffer 
+	 * as their indices in {@link TaxiGen#getCompactGraph()}
+	 * @return the number of edges found. If this is more than buffer.length, only the first buffer.length were stored,
+	 * so use a bigger buffer and try again
+	 */
+	public int getEdgesNearPoint(double lat, double lon, int[] buffer) {
+		if (distanceField != null) {
+			return distanceField.getCandidateEdges(lat, lon, buffer);
+		}
+		if (rtree != null) {
+			return rtree.getEdgesWithinDistance(lat, lon, rtreeQueryDistanceM, buffer);
+		}
+		
+		if ((lat < (this.minLat)) || (lat > this.maxLat) || (lon < this.minLon) || (lon > this.maxLon)) {
+			return 0;
+		}
+		
+		// as getCellForPoint()
+		double latInGrid = lat - this.minLat;
+		double lonInGrid = lon - this.minLon;
+		int x = (int)(Math.floor(latInGrid / this.gridCellSizeLat));
+		int y = (int)(Math.floor(lonInGrid / this.gridCellSizeLon));
+		double distanceMinLat = latInGrid - (x * this.gridCellSizeLat);
+		int addLatCell = -1;
+		if (distanceMinLat < this.latFromCellEdgeToGetNeighbourToo) {
+			addLatCell = Math.max(0, x - 1);
+		} else if ((this.gridCellSizeLat - distanceMinLat) < this.latFromCellEdgeToGetNeighbourToo) {
+			addLatCell = Math.min((this.gridSize-1), x + 1);
+		}
+		double distanceMinLon = lonInGrid - (y * this.gridCellSizeLon);
+		int addLonCell = -1;
+		if (distanceMinLon < this.lonFromCellEdgeToGetNeighbourToo) {
+			addLonCell = Math.max(0, y - 1);
+		} else if ((this.gridCellSizeLon - distanceMinLon) < this.lonFromCellEdgeToGetNeighbourToo) {
+			addLonCell = Math.min((this.gridSize-1), y + 1);
+		}
+		
+		int found = addCell(x, y, -1, -1, -1, -1, -1, -1, buffer, 0);
+		if (addLatCell >= 0) {
+			found = addCell(addLatCell, y, x, y, -1, -1, -1, -1, buffer, found);
+		}
+		if (addLonCell >= 0) {
+			found = addCell(x, addLonCell, x, y, addLatCell, y, -1, -1, buffer, found);
+		}
+		if ((addLatCell >= 0) && (addLonCell >= 0)) {
+			found = addCell(addLatCell, addLonCell, x, y, addLatCell, y, x, addLonCell, buffer, found);
+		}
+		
+		return found;
+	}
+	
+	/**adds the edges in cell x,y to buffer, skipping those also in any of the cells given by skipX/Y (which have already been added; -1 for none)*/
+	private int addCell(int x, int y, int skipX1, int skipY1, int skipX2, int skipY2, int skipX3, int skipY3, int[] buffer, int found) {
+		for (int edge : gridEdgeIndices[x][y]) {
+			TaxiEdge te = compactGraph.getEdge(edge);
+			if (inCell(te, skipX1, skipY1) || inCell(te, skipX2, skipY2) || inCell(te, skipX3, skipY3)) {
+				continue;
+			}
+			if (found < buffer.length) {
+				buffer[found] = edge;
+			}
+			found++;
+		}
+		return found;
+	}
+	
+	private boolean inCell(TaxiEdge te, int x, int y) {
+		return (x >= 0) && (y >= 0) && grid.get(x).get(y).contains(te);
+	}
+	
+	/**@return the distance that an {@link EdgeDistanceField} used here should hold the candidate edges for*/
+	public static double getDistanceFieldMaxDistanceM(double distanceMFromCellEdgeToGetNeighbourToo) {
+		return (distanceMFromCellEdgeToGetNeighbourToo * RTREE_DISTANCE_FACTOR) + RTREE_DISTANCE_PADDING_M;
+	}
+	
+	/**
+	 * use a precomputed raster for {@link #getEdgesNearPoint(double, double, int[])} (null to stop using one); it 
+	 * must have been built over the same CompactGraph, with a max distance from {@link #getDistanceFieldMaxDistanceM(double)}
+	 */
+	public void setDistanceField(EdgeDistanceField distanceField) {
+		this.distanceField = distanceField;
+	}
+	
+	public EdgeDistanceField getDistanceField() {
+		return distanceField;
+	}
+	
+	/**@return the graph that the edge indices from {@link #getEdgesNearPoint(double, double, int[])} refer to*/
+	public CompactGraph getCompactGraph() {
+		return compactGraph;
+	}
+	
 	public static void main(String[] args) {
 		// load existing GM file
 		GroundMovementWriter gmw = new GroundMovementWriter("C:\\sb\\AirportOperations\\CGN\\CGN_osm_GM.txt");
@@ -0,0 +1,352 @@
+package gmtools.graph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * A raster over the airport, in the {@link CompactGraph}'s local plane, holding for each (small, e.g. 2m) cell the 
+ * distance from its centre to the nearest edge, and the edges that could be within maxDistanceM of any point in the cell.
+ * Questions like "is this point within d of an edge" can then mostly be answered from a single cell: the 
+ * distance at the centre is within half a cell diagonal of the distance anywhere in the cell, so only points in cells 
+ * near the threshold need the candidate edges checked.
+ * <br/><br/>
+ * Building it is the expensive part, so it is done over several threads, and it can be saved and loaded again
+ * (it's only loaded if the graph, cell size and distance are the same as when saved).
+ * Thread safe once constructed.
+ */
+public class EdgeDistanceField {
+	private static final int FILE_VERSION = 1;
+	
+	/**rows are built in blocks of this many, one task per block*/
+	private static final int ROWS_PER_TASK = 32;
+	
+	private CompactGraph graph;
+	private double cellSizeM;
+	private double maxDistanceM;
+	private double halfDiagonalM;
+	
+	/**local plane coordinates of the corner of cell 0,0*/
+	private double originX;
+	private double originY;
+	private int columns;
+	private int rows;
+	
+	/**distance from each cell centre to the nearest edge, or infinity if none within maxDistanceM + halfDiagonalM; indexed row * columns + column*/
+	private float[] centreDistances;
+	
+	/**candidate edges for cell i are cellEdges[cellOffsets[i]] to cellEdges[cellOffsets[i+1]-1]*/
+	private int[] cellOffsets;
+	private int[] cellEdges;
+	
+	/**
+	 * @param cellSizeM width and height of the cells, in metres
+	 * @param maxDistanceM each cell holds the edges that could be within this of a point in it
+	 * @param numThreads threads to build the raster with
+	 */
+	public EdgeDistanceField(CompactGraph graph, double cellSizeM, double maxDistanceM, int numThreads) {
+		this.graph = graph;
+		this.cellSizeM = cellSizeM;
+		this.maxDistanceM = maxDistanceM;
+		this.halfDiagonalM = cellSizeM * Math.sqrt(2) / 2;
+		
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < graph.getNodeCount(); i++) {
+			minX = Math.min(minX, graph.getX(i));
+			minY = Math.min(minY, graph.getY(i));
+			maxX = Math.max(maxX, graph.getX(i));
+			maxY = Math.max(maxY, graph.getY(i));
+		}
+		if (graph.getNodeCount() == 0) {
+			minX = minY = maxX = maxY = 0;
+		}
+		
+		// pad so that everything within maxDistanceM of an edge is inside the raster
+		double padding = maxDistanceM + cellSizeM;
+		this.originX = minX - padding;
+		this.originY = minY - padding;
+		this.columns = (int)Math.ceil((maxX + padding - originX) / cellSizeM);
+		this.rows = (int)Math.ceil((maxY + padding - originY) / cellSizeM);
+		
+		build(new EdgeRTree(graph), numThreads);
+	}
+	
+	private EdgeDistanceField() {
+		// for load()
+	}
+	
+	private void build(final EdgeRTree rtree, int numThreads) {
+		this.centreDistances = new float[rows * columns];
+		final int[] counts = new int[rows * columns];
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		List<Future<int[]>> blocks = new ArrayList<Future<int[]>>();
+		for (int startRow = 0; startRow < rows; startRow += ROWS_PER_TASK) {
+			final int fromRow = startRow;
+			final int toRow = Math.min(rows, startRow + ROWS_PER_TASK);
+			blocks.add(pool.submit(new Callable<int[]>() {
+				@Override
+				public int[] call() {
+					return buildRows(rtree, fromRow, toRow, counts);
+				}
+			}));
+		}
+		
+		// each block's candidates are in cell order, so they can just be joined up
+		List<int[]> blockEdges = new ArrayList<int[]>(blocks.size());
+		int total = 0;
+		try {
+			for (Future<int[]> f : blocks) {
+				int[] edges = f.get();
+				blockEdges.add(edges);
+				total += edges.length;
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Error building distance field", e);
+		} finally {
+			pool.shutdown();
+		}
+		
+		this.cellEdges = new int[total];
+		int position = 0;
+		for (int[] edges : blockEdges) {
+			System.arraycopy(edges, 0, cellEdges, position, edges.length);
+			position += edges.length;
+		}
+		this.cellOffsets = new int[(rows * columns) + 1];
+		for (int i = 0; i < counts.length; i++) {
+			cellOffsets[i + 1] = cellOffsets[i] + counts[i];
+		}
+	}
+	
+	/**fills in centreDistances and counts for the rows, and returns the candidate edges for all their cells in order*/
+	private int[] buildRows(EdgeRTree rtree, int fromRow, int toRow, int[] counts) {
+		double searchDistance = maxDistanceM + halfDiagonalM;
+		int[] buffer = new int[64];
+		int[] rval = new int[1024];
+		int size = 0;
+		for (int row = fromRow; row < toRow; row++) {
+			double y = originY + ((row + 0.5) * cellSizeM);
+			for (int column = 0; column < columns; column++) {
+				double x = originX + ((column + 0.5) * cellSizeM);
+				int found;
+				while ((found = rtree.getEdgesWithinDistanceOfXY(x, y, searchDistance, buffer)) > buffer.length) {
+					buffer = new int[found * 2];
+				}
+				
+				double nearestSquared = Double.POSITIVE_INFINITY;
+				for (int i = 0; i < found; i++) {
+					nearestSquared = Math.min(nearestSquared, graph.getDistanceSquaredToEdge(buffer[i], x, y));
+				}
+				
+				int cell = (row * columns) + column;
+				centreDistances[cell] = (float)Math.sqrt(nearestSquared);
+				counts[cell] = found;
+				if (size + found > rval.length) {
+					rval = Arrays.copyOf(rval, Math.max(rval.length * 2, size + found));
+				}
+				System.arraycopy(buffer, 0, rval, size, found);
+				size += found;
+			}
+		}
+		return Arrays.copyOf(rval, size);
+	}
+	
+	/**@return index of the cell containing the point (in the local plane), or -1 if it's outside the raster*/
+	private int cellAt(double x, double y) {
+		int column = (int)Math.floor((x - originX) / cellSizeM);
+		int row = (int)Math.floor((y - originY) / cellSizeM);
+		if ((column < 0) || (column >= columns) || (row < 0) || (row >= rows)) {
+			return -1;
+		}
+		return (row * columns) + column;
+	}
+	
+	/**
+	 * @param distanceM must be no more than maxDistanceM
+	 * @return true if the point is strictly less than distanceM from any edge (same test as stage 1 of the snapping)
+	 */
+	public boolean isNearAnEdge(double lat, double lon, double distanceM) {
+		double x = graph.projectLon(lon);
+		double y = graph.projectLat(lat);
+		int cell = cellAt(x, y);
+		if (cell < 0) {
+			return false;
+		}
+		
+		// the true distance is within halfDiagonalM of the distance at the centre; float rounding is well under the 1mm allowed here
+		double centreDistance = centreDistances[cell];
+		if (centreDistance - halfDiagonalM - 0.001 >= distanceM) {
+			return false;
+		}
+		if (centreDistance + halfDiagonalM + 0.001 < distanceM) {
+			return true;
+		}
+		
+		double distanceSquared = distanceM * distanceM;
+		for (int i = cellOffsets[cell]; i < cellOffsets[cell + 1]; i++) {
+			if (graph.getDistanceSquaredToEdge(cellEdges[i], x, y) < distanceSquared) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @param buffer filled with the candidate edges for the point's cell (as indices in the CompactGraph): a superset of the edges within maxDistanceM of the point
+	 * @return number of candidates. If this is more than buffer.length, only the first buffer.length were stored
+	 */
+	public int getCandidateEdges(double lat, double lon, int[] buffer) {
+		int cell = cellAt(graph.projectLon(lon), graph.projectLat(lat));
+		if (cell < 0) {
+			return 0;
+		}
+		
+		int count = cellOffsets[cell + 1] - cellOffsets[cell];
+		System.arraycopy(cellEdges, cellOffsets[cell], buffer, 0, Math.min(count, buffer.length));
+		return count;
+	}
+	
+	public double getCellSizeM() {
+		return cellSizeM;
+	}
+	
+	public double getMaxDistanceM() {
+		return maxDistanceM;
+	}
+	
+	public CompactGraph getCompactGraph() {
+		return graph;
+	}
+	
+	/**@return a number that changes if the nodes or edges of the graph do (so a saved field isn't used for a different graph)*/
+	private static long signature(CompactGraph graph) {
+		long rval = (31L * graph.getNodeCount()) + graph.getEdgeCount();
+		for (int e = 0; e < graph.getEdgeCount(); e++) {
+			rval = (31 * rval) + Double.doubleToLongBits(graph.getX(graph.getEdgeFrom(e)));
+			rval = (31 * rval) + Double.doubleToLongBits(graph.getY(graph.getEdgeFrom(e)));
+			rval = (31 * rval) + Double.doubleToLongBits(graph.getX(graph.getEdgeTo(e)));
+			rval = (31 * rval) + Double.doubleToLongBits(graph.getY(graph.getEdgeTo(e)));
+		}
+		return rval;
+	}
+	
+	/**writes the raster to a (gzipped) binary file*/
+	public void save(String filename) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(filename))))) {
+			out.writeInt(FILE_VERSION);
+			out.writeLong(signature(graph));
+			out.writeDouble(cellSizeM);
+			out.writeDouble(maxDistanceM);
+			out.writeDouble(originX);
+			out.writeDouble(originY);
+			out.writeInt(columns);
+			out.writeInt(rows);
+			for (float f : centreDistances) {
+				out.writeFloat(f);
+			}
+			for (int i = 0; i < centreDistances.length; i++) {
+				out.writeInt(cellOffsets[i + 1] - cellOffsets[i]);
+			}
+			out.writeInt(cellEdges.length);
+			for (int e : cellEdges) {
+				out.writeInt(e);
+			}
+		}
+	}
+	
+	/**
+	 * loads a raster written by {@link #save(String)}
+	 * @return null if the file doesn't exist, or was made for a different graph, cell size or distance
+	 */
+	public static EdgeDistanceField load(String filename, CompactGraph graph, double cellSizeM, double maxDistanceM) throws IOException {
+		if (!new File(filename).exists()) {
+			return null;
+		}
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(filename))))) {
+			if ((in.readInt() != FILE_VERSION) || (in.readLong() != signature(graph)) || (in.readDouble() != cellSizeM) || (in.readDouble() != maxDistanceM)) {
+				return null;
+			}
+			
+			EdgeDistanceField rval = new EdgeDistanceField();
+			rval.graph = graph;
+			rval.cellSizeM = cellSizeM;
+			rval.maxDistanceM = maxDistanceM;
+			rval.halfDiagonalM = cellSizeM * Math.sqrt(2) / 2;
+			rval.originX = in.readDouble();
+			rval.originY = in.readDouble();
+			rval.columns = in.readInt();
+			rval.rows = in.readInt();
+			int cells = rval.columns * rval.rows;
+			rval.centreDistances = new float[cells];
+			for (int i = 0; i < cells; i++) {
+				rval.centreDistances[i] = in.readFloat();
+			}
+			rval.cellOffsets = new int[cells + 1];
+			for (int i = 0; i < cells; i++) {
+				rval.cellOffsets[i + 1] = rval.cellOffsets[i] + in.readInt();
+			}
+			rval.cellEdges = new int[in.readInt()];
+			for (int i = 0; i < rval.cellEdges.length; i++) {
+				rval.cellEdges[i] = in.readInt();
+			}
+			return rval;
+		}
+	}
+	
+	/**
+	 * loads the raster from filename if it's there and matches, otherwise builds it and saves it there for next time
+	 */
+	public static EdgeDistanceField loadOrBuild(String filename, CompactGraph graph, double cellSizeM, double maxDistanceM, int numThreads) {
+		try {
+			EdgeDistanceField rval = load(filename, graph, cellSizeM, maxDistanceM);
+			if (rval != null) {
+				System.out.println("Loaded distance field from " + filename);
+				return rval;
+			}
+		} catch (IOException e) {
+			System.err.println("Couldn't read distance field from " + filename + ", building it again");
+			e.printStackTrace();
+		}
+		
+		System.out.println("Building distance field (" + cellSizeM + "m cells)");
+		EdgeDistanceField rval = new EdgeDistanceField(graph, cellSizeM, maxDistanceM, numThreads);
+		try {
+			rval.save(filename);
+			System.out.println("Saved distance field to " + filename);
+		} catch (IOException e) {
+			System.err.println("Couldn't save distance field to " + filename);
+			e.printStackTrace();
+		}
+		return rval;
+	}
+	
+	@Override
+	public String toString() {
+		return "Distance field: " + columns + "x" + rows + " cells of " + cellSizeM + "m, " + cellEdges.length + " candidate entries";
+	}
+}
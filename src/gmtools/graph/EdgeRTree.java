@@ -0,0 +1,242 @@
+package gmtools.graph;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+import uk.me.jstott.jcoord.LatLng;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * Static R-tree over the edges of a {@link CompactGraph}, bulk loaded with Sort-Tile-Recursive (STR) packing,
+ * so every node is full and the tree is as shallow as it can be. Built in the graph's local east/north plane,
+ * so distances are in metres.
+ * <br/><br/>
+ * Queries find the edges whose segment (not just bounding box) is within a distance of a point, writing 
+ * them into a buffer supplied by the caller. Thread safe once constructed.
+ */
+public class EdgeRTree {
+	public static final int DEFAULT_NODE_CAPACITY = 16;
+	
+	private CompactGraph graph;
+	
+	/**bounding boxes of the tree nodes. Leaves come first, then each level up in turn; the root is the last node*/
+	private double[] minXs;
+	private double[] minYs;
+	private double[] maxXs;
+	private double[] maxYs;
+	
+	/**children of a leaf are positions in leafEdges; children of other nodes are nodes*/
+	private int[] firstChild;
+	private int[] childCount;
+	private int leafCount;
+	
+	/**edge indices, ordered so that each leaf's edges are together*/
+	private int[] leafEdges;
+	
+	public EdgeRTree(CompactGraph graph) {
+		this(graph, DEFAULT_NODE_CAPACITY);
+	}
+	
+	public EdgeRTree(CompactGraph graph, int nodeCapacity) {
+		this.graph = graph;
+		int m = graph.getEdgeCount();
+		
+		// leaf level: STR ordering of the edges by the centres of their bounding boxes
+		final double[] edgeMinX = new double[m];
+		final double[] edgeMinY = new double[m];
+		final double[] edgeMaxX = new double[m];
+		final double[] edgeMaxY = new double[m];
+		Integer[] order = new Integer[m];
+		for (int e = 0; e < m; e++) {
+			int from = graph.getEdgeFrom(e);
+			int to = graph.getEdgeTo(e);
+			edgeMinX[e] = Math.min(graph.getX(from), graph.getX(to));
+			edgeMaxX[e] = Math.max(graph.getX(from), graph.getX(to));
+			edgeMinY[e] = Math.min(graph.getY(from), graph.getY(to));
+			edgeMaxY[e] = Math.max(graph.getY(from), graph.getY(to));
+			order[e] = e;
+		}
+		strSort(order, edgeMinX, edgeMinY, edgeMaxX, edgeMaxY, nodeCapacity);
+		this.leafEdges = new int[m];
+		for (int i = 0; i < m; i++) {
+			leafEdges[i] = order[i];
+		}
+		
+		// count the nodes on each level, so the arrays can be made in one go
+		int totalNodes = 0;
+		int levelSize = m;
+		do {
+			levelSize = Math.max(1, (levelSize + nodeCapacity - 1) / nodeCapacity);
+			totalNodes += levelSize;
+		} while (levelSize > 1);
+		
+		this.minXs = new double[totalNodes];
+		this.minYs = new double[totalNodes];
+		this.maxXs = new double[totalNodes];
+		this.maxYs = new double[totalNodes];
+		this.firstChild = new int[totalNodes];
+		this.childCount = new int[totalNodes];
+		
+		// leaves
+		this.leafCount = Math.max(1, (m + nodeCapacity - 1) / nodeCapacity);
+		for (int node = 0; node < leafCount; node++) {
+			firstChild[node] = node * nodeCapacity;
+			childCount[node] = Math.max(0, Math.min(nodeCapacity, m - firstChild[node]));
+			setBounds(node, leafEdges, firstChild[node], childCount[node], edgeMinX, edgeMinY, edgeMaxX, edgeMaxY);
+		}
+		
+		// each level above packs the nodes of the level below, again in STR order
+		int levelStart = 0;
+		int levelEnd = leafCount;
+		while (levelEnd - levelStart > 1) {
+			int count = levelEnd - levelStart;
+			Integer[] levelOrder = new Integer[count];
+			for (int i = 0; i < count; i++) {
+				levelOrder[i] = levelStart + i;
+			}
+			strSort(levelOrder, minXs, minYs, maxXs, maxYs, nodeCapacity);
+			
+			// the nodes of the level below have to be contiguous per parent, so move them into STR order
+			permute(levelStart, levelOrder);
+			
+			int parents = (count + nodeCapacity - 1) / nodeCapacity;
+			int[] children = new int[count];
+			for (int i = 0; i < count; i++) {
+				children[i] = levelStart + i;
+			}
+			for (int p = 0; p < parents; p++) {
+				int node = levelEnd + p;
+				firstChild[node] = levelStart + (p * nodeCapacity);
+				childCount[node] = Math.min(nodeCapacity, count - (p * nodeCapacity));
+				setBounds(node, children, p * nodeCapacity, childCount[node], minXs, minYs, maxXs, maxYs);
+			}
+			
+			levelStart = levelEnd;
+			levelEnd += parents;
+		}
+	}
+	
+	/**
+	 * sorts the items into STR order: split into vertical slices by x, then by y within each slice
+	 */
+	private static void strSort(Integer[] items, final double[] minX, final double[] minY, final double[] maxX, final double[] maxY, int nodeCapacity) {
+		Arrays.sort(items, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return Double.compare(minX[i1] + maxX[i1], minX[i2] + maxX[i2]);
+			}
+		});
+		
+		int nodes = (items.length + nodeCapacity - 1) / nodeCapacity;
+		int slices = (int)Math.ceil(Math.sqrt(nodes));
+		int perSlice = slices * nodeCapacity;
+		for (int start = 0; start < items.length; start += perSlice) {
+			Arrays.sort(items, start, Math.min(items.length, start + perSlice), new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					return Double.compare(minY[i1] + maxY[i1], minY[i2] + maxY[i2]);
+				}
+			});
+		}
+	}
+	
+	/**reorders the tree nodes starting at levelStart so that the one at levelStart+i is the one that was at order[i]*/
+	private void permute(int levelStart, Integer[] order) {
+		int count = order.length;
+		double[][] boxes = {new double[count], new double[count], new double[count], new double[count]};
+		int[] first = new int[count];
+		int[] counts = new int[count];
+		for (int i = 0; i < count; i++) {
+			int from = order[i];
+			boxes[0][i] = minXs[from];
+			boxes[1][i] = minYs[from];
+			boxes[2][i] = maxXs[from];
+			boxes[3][i] = maxYs[from];
+			first[i] = firstChild[from];
+			counts[i] = childCount[from];
+		}
+		System.arraycopy(boxes[0], 0, minXs, levelStart, count);
+		System.arraycopy(boxes[1], 0, minYs, levelStart, count);
+		System.arraycopy(boxes[2], 0, maxXs, levelStart, count);
+		System.arraycopy(boxes[3], 0, maxYs, levelStart, count);
+		System.arraycopy(first, 0, firstChild, levelStart, count);
+		System.arraycopy(counts, 0, childCount, levelStart, count);
+	}
+	
+	private void setBounds(int node, int[] items, int start, int count, double[] minX, double[] minY, double[] maxX, double[] maxY) {
+		minXs[node] = Double.POSITIVE_INFINITY;
+		minYs[node] = Double.POSITIVE_INFINITY;
+		maxXs[node] = Double.NEGATIVE_INFINITY;
+		maxYs[node] = Double.NEGATIVE_INFINITY;
+		for (int i = start; i < start + count; i++) {
+			int item = items[i];
+			minXs[node] = Math.min(minXs[node], minX[item]);
+			minYs[node] = Math.min(minYs[node], minY[item]);
+			maxXs[node] = Math.max(maxXs[node], maxX[item]);
+			maxYs[node] = Math.max(maxYs[node], maxY[item]);
+		}
+	}
+	
+	/**
+	 * finds the edges within distanceM of the point (measured to the nearest point on the edge, in the local plane)
+	 * @param buffer filled with the indices (in the CompactGraph) of the edges found, in no particular order
+	 * @return the number of edges found. If this is more than buffer.length, only the first buffer.length were stored,
+	 * so use a bigger buffer and try again
+	 */
+	public int getEdgesWithinDistance(double lat, double lon, double distanceM, int[] buffer) {
+		return search(minXs.length - 1, graph.projectLon(lon), graph.projectLat(lat), distanceM * distanceM, buffer, 0);
+	}
+	
+	/**as {@link #getEdgesWithinDistance(double, double, double, int[])}, for a point given in the CompactGraph's local plane*/
+	public int getEdgesWithinDistanceOfXY(double x, double y, double distanceM, int[] buffer) {
+		return search(minXs.length - 1, x, y, distanceM * distanceM, buffer, 0);
+	}
+	
+	/**
+	 * as {@link #getEdgesWithinDistance(double, double, double, int[])}, adding the TaxiEdges to buffer
+	 * @return the number of edges added
+	 */
+	public int getEdgesWithinDistance(LatLng point, double distanceM, Collection<TaxiEdge> buffer) {
+		int[] edges = new int[32];
+		int count;
+		while ((count = getEdgesWithinDistance(point.getLat(), point.getLng(), distanceM, edges)) > edges.length) {
+			edges = new int[count];
+		}
+		for (int i = 0; i < count; i++) {
+			buffer.add(graph.getEdge(edges[i]));
+		}
+		return count;
+	}
+	
+	private int search(int node, double x, double y, double distanceSquared, int[] buffer, int found) {
+		double dx = Math.max(0, Math.max(minXs[node] - x, x - maxXs[node]));
+		double dy = Math.max(0, Math.max(minYs[node] - y, y - maxYs[node]));
+		if ((dx * dx) + (dy * dy) > distanceSquared) {
+			return found;
+		}
+		
+		int end = firstChild[node] + childCount[node];
+		if (node < leafCount) {
+			for (int i = firstChild[node]; i < end; i++) {
+				int edge = leafEdges[i];
+				if (graph.getDistanceSquaredToEdge(edge, x, y) <= distanceSquared) {
+					if (found < buffer.length) {
+						buffer[found] = edge;
+					}
+					found++;
+				}
+			}
+		} else {
+			for (int child = firstChild[node]; child < end; child++) {
+				found = search(child, x, y, distanceSquared, buffer, found);
+			}
+		}
+		
+		return found;
+	}
+}
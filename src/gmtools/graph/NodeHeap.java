@@ -0,0 +1,102 @@
+package gmtools.graph;
+
+import java.util.Arrays;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * Binary min-heap of node indices (from a {@link CompactGraph}) with decrease-key, so each node is in it at most once.
+ * Can be cleared and reused between searches without allocating.
+ */
+class NodeHeap {
+	private int[] heap;
+	/**position of each node in heap, or -1 if it isn't there*/
+	private int[] positions;
+	private double[] keys;
+	private int size;
+	
+	NodeHeap(int capacity) {
+		this.heap = new int[capacity];
+		this.positions = new int[capacity];
+		this.keys = new double[capacity];
+		Arrays.fill(positions, -1);
+	}
+	
+	boolean isEmpty() {
+		return size == 0;
+	}
+	
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			positions[heap[i]] = -1;
+		}
+		size = 0;
+	}
+	
+	/**adds the node, or lowers its key if it's already there with a higher one*/
+	void insertOrDecrease(int node, double key) {
+		int pos = positions[node];
+		if (pos < 0) {
+			pos = size++;
+			heap[pos] = node;
+			positions[node] = pos;
+			keys[node] = key;
+			siftUp(pos);
+		} else if (key < keys[node]) {
+			keys[node] = key;
+			siftUp(pos);
+		}
+	}
+	
+	/**removes and returns the node with the lowest key*/
+	int poll() {
+		int top = heap[0];
+		positions[top] = -1;
+		size--;
+		if (size > 0) {
+			heap[0] = heap[size];
+			positions[heap[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+	
+	private void siftUp(int pos) {
+		int node = heap[pos];
+		double key = keys[node];
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (keys[heap[parent]] <= key) {
+				break;
+			}
+			heap[pos] = heap[parent];
+			positions[heap[pos]] = pos;
+			pos = parent;
+		}
+		heap[pos] = node;
+		positions[node] = pos;
+	}
+	
+	private void siftDown(int pos) {
+		int node = heap[pos];
+		double key = keys[node];
+		int half = size >>> 1;
+		while (pos < half) {
+			int child = (2 * pos) + 1;
+			if ((child + 1 < size) && (keys[heap[child + 1]] < keys[heap[child]])) {
+				child++;
+			}
+			if (key <= keys[heap[child]]) {
+				break;
+			}
+			heap[pos] = heap[child];
+			positions[heap[pos]] = pos;
+			pos = child;
+		}
+		heap[pos] = node;
+		positions[node] = pos;
+	}
+}
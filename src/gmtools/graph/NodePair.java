@@ -0,0 +1,46 @@
+package gmtools.graph;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * an ordered pair of nodes (from, to), e.g. the start and end of a path; useful as a map key
+ */
+public class NodePair {
+	private TaxiNode from;
+	private TaxiNode to;
+	
+	public NodePair(TaxiNode from, TaxiNode to) {
+		this.from = from;
+		this.to = to;
+	}
+	
+	public TaxiNode getFrom() {
+		return from;
+	}
+	
+	public TaxiNode getTo() {
+		return to;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof NodePair)) {
+			return false;
+		}
+		NodePair other = (NodePair)obj;
+		return this.from.equals(other.from) && this.to.equals(other.to);
+	}
+	
+	@Override
+	public int hashCode() {
+		return (31 * from.hashCode()) + to.hashCode();
+	}
+	
+	@Override
+	public String toString() {
+		return from + "--->" + to;
+	}
+}
@@ -0,0 +1,118 @@
+package gmtools.graph;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.jgrapht.GraphPath;
+import org.jgrapht.graph.GraphPathImpl;
+import org.jgrapht.graph.WeightedMultigraph;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * Shortest paths from one node to every other node in the graph, found with a single run of Dijkstra's algorithm.
+ * Once built, any number of distance and path queries from the source can be answered without searching again.
+ * Immutable once constructed, so can be shared between threads.
+ */
+public class ShortestPathTree {
+	private CompactGraph graph;
+	private int source;
+	
+	/**shortest distance from source to each node, Double.POSITIVE_INFINITY if unreachable*/
+	private double[] distances;
+	
+	/**last edge on the shortest path from source to each node (-1 for the source itself, and unreachable nodes)*/
+	private int[] predecessors;
+	
+	public ShortestPathTree(CompactGraph graph, TaxiNode source) {
+		this(graph, graph.indexOf(source));
+	}
+	
+	public ShortestPathTree(CompactGraph graph, int source) {
+		this.graph = graph;
+		this.source = source;
+		
+		int n = graph.getNodeCount();
+		this.distances = new double[n];
+		this.predecessors = new int[n];
+		Arrays.fill(distances, Double.POSITIVE_INFINITY);
+		Arrays.fill(predecessors, -1);
+		boolean[] settled = new boolean[n];
+		
+		NodeHeap heap = new NodeHeap(n);
+		distances[source] = 0;
+		heap.insertOrDecrease(source, 0);
+		while (!heap.isEmpty()) {
+			int current = heap.poll();
+			settled[current] = true;
+			
+			for (int a = graph.getAdjacencyStart(current); a < graph.getAdjacencyEnd(current); a++) {
+				int next = graph.getAdjacentNode(a);
+				if (settled[next]) {
+					continue;
+				}
+				
+				int edge = graph.getAdjacentEdge(a);
+				double d = distances[current] + graph.getEdgeLength(edge);
+				if (d < distances[next]) {
+					distances[next] = d;
+					predecessors[next] = edge;
+					heap.insertOrDecrease(next, d);
+				}
+			}
+		}
+	}
+	
+	/**convenience for one-off trees; builds a new CompactGraph each time, so use {@link #ShortestPathTree(CompactGraph, TaxiNode)} if making several*/
+	public ShortestPathTree(WeightedMultigraph<TaxiNode, TaxiEdge> graph, TaxiNode source) {
+		this(new CompactGraph(graph), source);
+	}
+	
+	public TaxiNode getSource() {
+		return graph.getNode(source);
+	}
+	
+	/**@return length of the shortest path from the source to target, or Double.POSITIVE_INFINITY if there isn't one (same as DijkstraShortestPath.getPathLength())*/
+	public double getDistance(TaxiNode target) {
+		int t = graph.indexOf(target);
+		return (t >= 0) ? distances[t] : Double.POSITIVE_INFINITY;
+	}
+	
+	/**@return as {@link #getDistance(TaxiNode)}, for the node with this index in the CompactGraph*/
+	public double getDistance(int target) {
+		return distances[target];
+	}
+	
+	/**@return edges on the shortest path from the source to target, in order, or null if there isn't one*/
+	public List<TaxiEdge> getPathEdgeList(TaxiNode target) {
+		int t = graph.indexOf(target);
+		if ((t < 0) || Double.isInfinite(distances[t])) {
+			return null;
+		}
+		
+		// count the edges first, so the path can be filled in from the end
+		int count = 0;
+		for (int node = t; node != source; node = graph.getOppositeNode(predecessors[node], node)) {
+			count++;
+		}
+		int[] edges = new int[count];
+		for (int node = t; node != source; node = graph.getOppositeNode(predecessors[node], node)) {
+			edges[--count] = predecessors[node];
+		}
+		
+		return graph.toEdgeList(edges, edges.length);
+	}
+	
+	/**@return the shortest path from the source to target, or null if there isn't one*/
+	public GraphPath<TaxiNode, TaxiEdge> getPath(TaxiNode target) {
+		List<TaxiEdge> edges = getPathEdgeList(target);
+		if (edges == null) {
+			return null;
+		}
+		
+		return new GraphPathImpl<TaxiNode, TaxiEdge>(graph.getGraph(), getSource(), target, edges, getDistance(target));
+	}
+}
@@ -0,0 +1,487 @@
+package gmtools.parsers;
+
+import gmtools.common.CompressedFiles;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ *
+ * <br/><br/>
+ * A compact binary, columnar version of the raw flight track files, so they don't need to be re-parsed from decimal text on every run.
+ * Convert a text file with {@link #main(String[])}; {@link RawFlightTrackData#loadAircraft(boolean, boolean, String, String[], double, double, double, String, long, int, int, long, long, boolean, java.util.Map)}
+ * recognises converted files by their first bytes and reads them directly.
+ * The file is memory-mapped, and any track can be read on its own with {@link #getTrack(int)}.
+ * <br/><br/>
+ * Layout (big-endian):
+ * <ul>
+ * <li>header: magic, version, airport id (as DataOutput.writeUTF), airport lat and lon (doubles), values per point (3, or 4 with intervals), number of tracks</li>
+ * <li>index: the file offset of each track, then the offset of the end of the last track (longs)</li>
+ * <li>tracks: id, origin and destination (UTF-8, after their length as two bytes), a flag that's 1 if the track had a path, first timestamp and number of points (varints),
+ * then each column in turn: lat and lon (microdegrees) and altitude as varint deltas from the previous point, then the intervals as varints</li>
+ * </ul>
+ * Varints are zigzag encoded, 7 bits per byte. Lat and lon are rounded to microdegrees (about 0.1m), which is lossless for
+ * raw data with up to 6 decimal places. Altitudes and intervals are whole numbers (intervals are truncated, as the loader does;
+ * altitudes are rounded, but never to 0 unless they were 0).
+ * <br/><br/>
+ * Usage: BinaryTrackFile inFile outFile airportID [options]
+ * (inFile can be gzipped)
+ * Options:
+ *   -alat=x : lat of airport, recorded in the header
+ *   -alon=y : lon of airport, recorded in the header
+ *   -nointervals : the tracks are lat,lon,altitude only (default is lat,lon,altitude,interval)
+ */
+public class BinaryTrackFile {
+	public static final int MAGIC = 0x474d5442; // "GMTB"
+	public static final int VERSION = 1;
+	
+	private static final double MICRODEGREES = 1e6;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	
+	/**tracks are mapped in segments of about this size, so files over 2GB can still be mapped*/
+	private static final long MAX_SEGMENT_BYTES = 1L << 30;
+	
+	private String filename;
+	private String airportID;
+	private double latAirport;
+	private double lonAirport;
+	private int valuesPerPoint;
+	private long[] trackOffsets;
+	
+	/**the mapped segments, and the first track in each*/
+	private ByteBuffer[] segments;
+	private int[] segmentFirstTracks;
+	private long[] segmentOffsets;
+	
+	/**one raw track, as it was in the text file*/
+	public static class RawTrack {
+		private String id;
+		private String origin;
+		private String destination;
+		private boolean hasPath;
+		private long firstTimestamp;
+		private double[] values;
+		
+		public String getId() {
+			return id;
+		}
+		
+		public String getOrigin() {
+			return origin;
+		}
+		
+		public String getDestination() {
+			return destination;
+		}
+		
+		/**@return false if the text file had no path for this track (too few columns, or no separators in the path)*/
+		public boolean hasPath() {
+			return hasPath;
+		}
+		
+		/**@return the first timestamp, or -1 if it wasn't a number*/
+		public long getFirstTimestamp() {
+			return firstTimestamp;
+		}
+		
+		/**@return the path, in the same order as the text file: lat,lon,altitude[,interval],...*/
+		public double[] getValues() {
+			return values;
+		}
+	}
+	
+	/**@return true if the file starts with {@link #MAGIC}*/
+	public static boolean isBinaryTrackFile(String filename) {
+		File f = new File(filename);
+		if (!f.isFile() || (f.length() < 4)) {
+			return false;
+		}
+		try (RandomAccessFile in = new RandomAccessFile(f, "r")) {
+			return in.readInt() == MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**maps the file and reads its header and index*/
+	public static BinaryTrackFile open(String filename) throws IOException {
+		BinaryTrackFile rval = new BinaryTrackFile();
+		rval.filename = filename;
+		try (RandomAccessFile in = new RandomAccessFile(filename, "r")) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(filename + " is not a binary track file");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException(filename + " is binary track file version " + version + ", expected " + VERSION);
+			}
+			rval.airportID = in.readUTF();
+			rval.latAirport = in.readDouble();
+			rval.lonAirport = in.readDouble();
+			rval.valuesPerPoint = in.readByte();
+			int count = in.readInt();
+			
+			// the index is read in one go, it's by far the biggest part of the header
+			ByteBuffer index = ByteBuffer.allocate((count + 1) * 8);
+			FileChannel channel = in.getChannel();
+			long position = in.getFilePointer();
+			while (index.hasRemaining() && (channel.read(index, position + index.position()) > 0)) {}
+			if (index.hasRemaining()) {
+				throw new IOException(filename + " is truncated");
+			}
+			index.flip();
+			rval.trackOffsets = new long[count + 1];
+			index.asLongBuffer().get(rval.trackOffsets);
+			
+			// map the tracks in segments of whole tracks
+			List<Integer> firstTracks = new ArrayList<Integer>();
+			int first = 0;
+			while (first < count) {
+				int last = first + 1; // exclusive
+				while ((last < count) && (rval.trackOffsets[last + 1] - rval.trackOffsets[first] <= MAX_SEGMENT_BYTES)) {
+					last++;
+				}
+				firstTracks.add(first);
+				first = last;
+			}
+			rval.segments = new ByteBuffer[firstTracks.size()];
+			rval.segmentFirstTracks = new int[firstTracks.size() + 1];
+			rval.segmentOffsets = new long[firstTracks.size()];
+			for (int i = 0; i < firstTracks.size(); i++) {
+				int from = firstTracks.get(i);
+				int to = (i + 1 < firstTracks.size()) ? firstTracks.get(i + 1) : count;
+				rval.segmentFirstTracks[i] = from;
+				rval.segmentOffsets[i] = rval.trackOffsets[from];
+				rval.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, rval.trackOffsets[from], rval.trackOffsets[to] - rval.trackOffsets[from]);
+			}
+			rval.segmentFirstTracks[firstTracks.size()] = count;
+		}
+		
+		return rval;
+	}
+	
+	private BinaryTrackFile() {}
+	
+	public String getFilename() {
+		return filename;
+	}
+	
+	public String getAirportID() {
+		return airportID;
+	}
+	
+	public double getLatAirport() {
+		return latAirport;
+	}
+	
+	public double getLonAirport() {
+		return lonAirport;
+	}
+	
+	/**@return 4 if the tracks include intervals, 3 if not*/
+	public int getValuesPerPoint() {
+		return valuesPerPoint;
+	}
+	
+	/**@return number of tracks (lines in the original text file, excluding the header)*/
+	public int size() {
+		return trackOffsets.length - 1;
+	}
+	
+	/**@return the track with this index (the line number in the original file, excluding the header). Safe to call from several threads*/
+	public RawTrack getTrack(int index) {
+		if ((index < 0) || (index >= size())) {
+			throw new IndexOutOfBoundsException("Track " + index + " of " + size());
+		}
+		
+		// find the segment
+		int lo = 0;
+		int hi = segments.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (segmentFirstTracks[mid] <= index) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		
+		Cursor c = new Cursor(segments[lo], (int)(trackOffsets[index] - segmentOffsets[lo]));
+		RawTrack rval = new RawTrack();
+		rval.id = c.readString();
+		rval.origin = c.readString();
+		rval.destination = c.readString();
+		rval.hasPath = c.readVarLong() != 0;
+		rval.firstTimestamp = c.readVarLong();
+		int points = (int)c.readVarLong();
+		rval.values = new double[points * valuesPerPoint];
+		for (int column = 0; column < 3; column++) { // lat, lon, altitude: deltas
+			long value = 0;
+			for (int i = 0; i < points; i++) {
+				value += c.readVarLong();
+				rval.values[(i * valuesPerPoint) + column] = (column < 2) ? value / MICRODEGREES : value;
+			}
+		}
+		for (int column = 3; column < valuesPerPoint; column++) { // intervals
+			for (int i = 0; i < points; i++) {
+				rval.values[(i * valuesPerPoint) + column] = c.readVarLong();
+			}
+		}
+		
+		return rval;
+	}
+	
+	/**reads from a position in a shared buffer, using absolute gets only so several threads can read the same buffer*/
+	private static class Cursor {
+		private ByteBuffer buffer;
+		private int position;
+		
+		Cursor(ByteBuffer buffer, int position) {
+			this.buffer = buffer;
+			this.position = position;
+		}
+		
+		long readVarLong() {
+			long raw = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buffer.get(position++);
+				raw |= (long)(b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return (raw >>> 1) ^ -(raw & 1); // undo zigzag
+		}
+		
+		String readString() {
+			int length = ((buffer.get(position) & 0xff) << 8) | (buffer.get(position + 1) & 0xff);
+			position += 2;
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = buffer.get(position++);
+			}
+			return new String(bytes, CHARSET);
+		}
+	}
+	
+	/**
+	 * converts a text flight track file (as read by {@link RawFlightTrackData}) to the binary format.
+	 * The id, origin and destination are stored as the loader would see them ("" and "?" if missing).
+	 */
+	public static void convert(String textFilename, String binaryFilename, String airportID, double latAirport, double lonAirport, boolean includesIntervals) throws IOException {
+		int valuesPerPoint = includesIntervals ? 4 : 3;
+		
+		// tracks are written to a temporary file first, as the index has to go before them
+		File tracksFile = File.createTempFile("tracks", ".tmp", new File(binaryFilename).getAbsoluteFile().getParentFile());
+		tracksFile.deleteOnExit();
+		List<Long> offsets = new ArrayList<Long>();
+		int countTruncated = 0;
+		try (BufferedReader in = CompressedFiles.openReader(textFilename);
+				CountingOutputStream tracks = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(tracksFile), 1 << 16))) {
+			String line = in.readLine();
+			if (line == null) {
+				throw new IOException("No header found in " + textFilename);
+			}
+			ColumnIndices columnIndices = new ColumnIndices(line.split(RawFlightTrackData.SEPARATOR), textFilename);
+			int idIndex = columnIndices.getColumnIndex(RawFlightTrackData.HEADER_ID, true);
+			int pathIndex = columnIndices.getColumnIndex(RawFlightTrackData.HEADER_TRACK, true);
+			int firstTimestampIndex = columnIndices.getColumnIndex(RawFlightTrackData.HEADER_FIRSTTIMESTAMP, true);
+			int destinationIndex = columnIndices.getColumnIndex(RawFlightTrackData.HEADER_DESTINATION, true);
+			int originIndex = columnIndices.getColumnIndex(RawFlightTrackData.HEADER_ORIGIN, true);
+			
+			long[][] columns = new long[valuesPerPoint][];
+			while ((line = in.readLine()) != null) {
+				offsets.add(tracks.getCount());
+				String[] cols = line.split(RawFlightTrackData.SEPARATOR);
+				writeString(tracks, (idIndex < cols.length) ? cols[idIndex] : "");
+				writeString(tracks, (originIndex < cols.length) ? cols[originIndex] : "?");
+				writeString(tracks, (destinationIndex < cols.length) ? cols[destinationIndex] : "?");
+				
+				boolean hasPath = (cols.length > Math.max(pathIndex, firstTimestampIndex)) && (cols[pathIndex].contains(RawFlightTrackData.SEPARATOR_COORDS));
+				long firstTimestamp = -1;
+				int points = 0;
+				if (hasPath) {
+					try {
+						firstTimestamp = Long.parseLong(cols[firstTimestampIndex]);
+					} catch (NumberFormatException e) {}
+					
+					String[] s = cols[pathIndex].split(RawFlightTrackData.SEPARATOR_COORDS);
+					points = s.length / valuesPerPoint;
+					if (points * valuesPerPoint != s.length) {
+						countTruncated++;
+					}
+					for (int column = 0; column < valuesPerPoint; column++) {
+						if ((columns[column] == null) || (columns[column].length < points)) {
+							columns[column] = new long[Math.max(points, 1024)];
+						}
+						for (int i = 0; i < points; i++) {
+							double value = Double.parseDouble(s[(i * valuesPerPoint) + column]);
+							if (column < 2) { // lat, lon
+								columns[column][i] = Math.round(value * MICRODEGREES);
+							} else if (column == 2) { // altitude
+								long altitude = Math.round(value);
+								columns[column][i] = ((altitude == 0) && (value != 0)) ? (long)Math.signum(value) : altitude;
+							} else { // interval
+								columns[column][i] = (long)value;
+							}
+						}
+					}
+				}
+				
+				writeVarLong(tracks, hasPath ? 1 : 0);
+				writeVarLong(tracks, firstTimestamp);
+				writeVarLong(tracks, points);
+				for (int column = 0; column < valuesPerPoint; column++) {
+					long previous = 0;
+					for (int i = 0; i < points; i++) {
+						if (column < 3) {
+							writeVarLong(tracks, columns[column][i] - previous);
+							previous = columns[column][i];
+						} else {
+							writeVarLong(tracks, columns[column][i]);
+						}
+					}
+				}
+			}
+			offsets.add(tracks.getCount());
+		}
+		
+		// now the header and index, then copy the tracks after them
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binaryFilename), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(airportID);
+			out.writeDouble(latAirport);
+			out.writeDouble(lonAirport);
+			out.writeByte(valuesPerPoint);
+			out.writeInt(offsets.size() - 1);
+			long tracksStart = out.size() + (offsets.size() * 8L);
+			for (long offset : offsets) {
+				out.writeLong(tracksStart + offset);
+			}
+			
+			try (RandomAccessFile tracks = new RandomAccessFile(tracksFile, "r")) {
+				byte[] buffer = new byte[1 << 16];
+				int read;
+				while ((read = tracks.read(buffer)) > 0) {
+					out.write(buffer, 0, read);
+				}
+			}
+		}
+		tracksFile.delete();
+		
+		System.out.println("Converted " + (offsets.size() - 1) + " tracks from " + textFilename + " to " + binaryFilename);
+		if (countTruncated > 0) {
+			System.out.println("Tracks with an incomplete last point (dropped): " + countTruncated);
+		}
+	}
+	
+	/**writes a zigzag encoded varint*/
+	private static void writeVarLong(OutputStream out, long value) throws IOException {
+		long raw = (value << 1) ^ (value >> 63);
+		while ((raw & ~0x7fL) != 0) {
+			out.write((int)((raw & 0x7f) | 0x80));
+			raw >>>= 7;
+		}
+		out.write((int)raw);
+	}
+	
+	/**writes the UTF-8 bytes of a string, after their length as two bytes*/
+	private static void writeString(OutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(CHARSET);
+		if (bytes.length > 0xffff) {
+			throw new IOException("String too long for a binary track file: " + s.substring(0, 100) + "...");
+		}
+		out.write(bytes.length >>> 8);
+		out.write(bytes.length & 0xff);
+		out.write(bytes);
+	}
+	
+	/**counts the bytes written, as a long (DataOutputStream's count stops at 2GB)*/
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+		
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+		
+		long getCount() {
+			return count;
+		}
+	}
+	
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			printUsage();
+			System.exit(1);
+		}
+		
+		String inFile = args[0];
+		String outFile = args[1];
+		String airportID = args[2];
+		double latAirport = 0;
+		double lonAirport = 0;
+		boolean includesIntervals = true;
+		for (int i = 3; i < args.length; i++) {
+			String a = args[i];
+			if (a.startsWith("-alat=")) {
+				latAirport = Double.parseDouble(a.substring(6));
+			} else if (a.startsWith("-alon=")) {
+				lonAirport = Double.parseDouble(a.substring(6));
+			} else if (a.equals("-nointervals")) {
+				includesIntervals = false;
+			} else {
+				System.err.println("Unknown argument: " + a);
+				printUsage();
+				System.exit(1);
+			}
+		}
+		
+		try {
+			convert(inFile, outFile, airportID, latAirport, lonAirport, includesIntervals);
+		} catch (IOException e) {
+			System.err.println("Problem converting " + inFile + ":");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+	public static void printUsage() {
+		System.out.println("Converts a flight track file to the compact binary format, which SnapTracks can read directly");
+		System.out.println("Usage: BinaryTrackFile inFile outFile airportID [options]");
+		System.out.println("(inFile can be gzipped)");
+		System.out.println();
+		System.out.println("Options:");
+		System.out.println("   -alat=x : lat of airport, recorded in the header");
+		System.out.println("   -alon=y : lon of airport, recorded in the header");
+		System.out.println("   -nointervals : the tracks are lat,lon,altitude only (default is lat,lon,altitude,interval)");
+	}
+}
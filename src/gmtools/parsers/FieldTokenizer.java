@@ -0,0 +1,287 @@
+package gmtools.parsers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ *
+ * <br/><br/>
+ * Walks the lines of a delimited text file held in a ByteBuffer (usually a memory-mapped region of the file),
+ * splitting each line into fields and one field into subfields without making any Strings: fields are just
+ * offsets into the buffer, and numbers are parsed straight from the bytes. Only the fields that are asked for as
+ * Strings are decoded.
+ * <br/><br/>
+ * Field and subfield counts match what String.split() would give for the same line,
+ * i.e. trailing empty fields are dropped. Lines can end with \n or \r\n; the last line needn't have either.
+ * Not thread safe: use one per thread.
+ */
+public class FieldTokenizer {
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	
+	/**powers of ten that are exactly representable as doubles, for the fast path of {@link #parseDouble(int, int)}*/
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+	
+	/**largest mantissa for which the fast path is exact (2^53)*/
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	
+	private final ByteBuffer buffer;
+	private final byte separator;
+	private final byte subSeparator;
+	private int end;
+	
+	private int position;
+	private int lineStart;
+	private int lineEnd;
+	
+	private int fieldCount;
+	private int[] fieldStarts = new int[16];
+	private int[] fieldEnds = new int[16];
+	
+	private int subfieldCount;
+	private int[] subfieldStarts = new int[1024];
+	private int[] subfieldEnds = new int[1024];
+	
+	private byte[] stringBuffer = new byte[64];
+	
+	/**
+	 * @param buffer - lines are read from its position to its limit
+	 * @param separator - between fields, e.g. a tab
+	 * @param subSeparator - between subfields, e.g. a comma
+	 */
+	public FieldTokenizer(ByteBuffer buffer, char separator, char subSeparator) {
+		this.buffer = buffer;
+		this.separator = (byte)separator;
+		this.subSeparator = (byte)subSeparator;
+		this.position = buffer.position();
+		this.end = buffer.limit();
+	}
+	
+	/**reads lines from this range of the buffer from now on, e.g. to jump to a line whose position is known*/
+	public void setRange(int start, int end) {
+		this.position = start;
+		this.end = end;
+	}
+	
+	/**
+	 * moves to the next line and splits it into fields
+	 * @return false if there are no more lines
+	 */
+	public boolean nextLine() {
+		if (position >= end) {
+			return false;
+		}
+		
+		lineStart = position;
+		fieldCount = 0;
+		subfieldCount = 0;
+		int lastNonEmptyField = -1;
+		int fieldStart = position;
+		int i = position;
+		for (; i < end; i++) {
+			byte b = buffer.get(i);
+			if (b == '\n') {
+				break;
+			} else if (b == separator) {
+				if (i > fieldStart) {
+					lastNonEmptyField = fieldCount;
+				}
+				addField(fieldStart, i);
+				fieldStart = i + 1;
+			}
+		}
+		
+		position = i + 1; // skip the \n
+		lineEnd = ((i > lineStart) && (buffer.get(i - 1) == '\r')) ? i - 1 : i;
+		if (fieldStart <= lineEnd) { // last field on the line
+			if (lineEnd > fieldStart) {
+				lastNonEmptyField = fieldCount;
+			}
+			addField(fieldStart, lineEnd);
+		}
+		
+		// like String.split(), drop trailing empty fields (but an empty line is one empty field)
+		fieldCount = (lineEnd == lineStart) ? 1 : lastNonEmptyField + 1;
+		
+		return true;
+	}
+	
+	private void addField(int start, int end) {
+		if (fieldCount == fieldStarts.length) {
+			fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+			fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+		}
+		fieldStarts[fieldCount] = start;
+		fieldEnds[fieldCount] = end;
+		fieldCount++;
+	}
+	
+	/**@return the current line as a String*/
+	public String getLine() {
+		return decode(lineStart, lineEnd);
+	}
+	
+	/**@return number of fields on the current line*/
+	public int getFieldCount() {
+		return fieldCount;
+	}
+	
+	/**@return the field with this index as a String, or null if there aren't that many fields*/
+	public String getString(int field) {
+		if (field >= fieldCount) {
+			return null;
+		}
+		return decode(fieldStarts[field], fieldEnds[field]);
+	}
+	
+	/**@return true if the field with this index contains the given character*/
+	public boolean fieldContains(int field, char c) {
+		if (field >= fieldCount) {
+			return false;
+		}
+		for (int i = fieldStarts[field]; i < fieldEnds[field]; i++) {
+			if (buffer.get(i) == c) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**@return the field with this index parsed as a long; throws NumberFormatException if it isn't one (as Long.parseLong())*/
+	public long getLong(int field) {
+		if (field >= fieldCount) {
+			throw new NumberFormatException("No field " + field);
+		}
+		
+		int start = fieldStarts[field];
+		int end = fieldEnds[field];
+		boolean negative = false;
+		if ((start < end) && ((buffer.get(start) == '-') || (buffer.get(start) == '+'))) {
+			negative = buffer.get(start) == '-';
+			start++;
+		}
+		if ((start == end) || (end - start > 18)) { // empty, or might overflow: leave it to Long
+			return Long.parseLong(decode(fieldStarts[field], fieldEnds[field]));
+		}
+		
+		long rval = 0;
+		for (int i = start; i < end; i++) {
+			int digit = buffer.get(i) - '0';
+			if ((digit < 0) || (digit > 9)) {
+				throw new NumberFormatException("For input string: \"" + decode(fieldStarts[field], fieldEnds[field]) + "\"");
+			}
+			rval = (rval * 10) + digit;
+		}
+		return negative ? -rval : rval;
+	}
+	
+	/**
+	 * splits the field with this index into subfields, which can then be read with {@link #getSubfieldDouble(int)}
+	 * @return the number of subfields (as String.split() would give, so trailing empty subfields aren't counted)
+	 */
+	public int splitField(int field) {
+		subfieldCount = 0;
+		if (field >= fieldCount) {
+			return 0;
+		}
+		
+		int lastNonEmpty = -1;
+		int start = fieldStarts[field];
+		int end = fieldEnds[field];
+		int subStart = start;
+		for (int i = start; i <= end; i++) {
+			if ((i == end) || (buffer.get(i) == subSeparator)) {
+				if (subfieldCount == subfieldStarts.length) {
+					subfieldStarts = Arrays.copyOf(subfieldStarts, subfieldCount * 2);
+					subfieldEnds = Arrays.copyOf(subfieldEnds, subfieldCount * 2);
+				}
+				if (i > subStart) {
+					lastNonEmpty = subfieldCount;
+				}
+				subfieldStarts[subfieldCount] = subStart;
+				subfieldEnds[subfieldCount] = i;
+				subfieldCount++;
+				subStart = i + 1;
+			}
+		}
+		
+		subfieldCount = (end == start) ? 1 : lastNonEmpty + 1;
+		return subfieldCount;
+	}
+	
+	/**@return number of subfields from the last call to {@link #splitField(int)}*/
+	public int getSubfieldCount() {
+		return subfieldCount;
+	}
+	
+	/**@return the subfield with this index (from the last call to {@link #splitField(int)}) parsed as a double*/
+	public double getSubfieldDouble(int subfield) {
+		if (subfield >= subfieldCount) {
+			throw new ArrayIndexOutOfBoundsException(subfield);
+		}
+		return parseDouble(subfieldStarts[subfield], subfieldEnds[subfield]);
+	}
+	
+	/**
+	 * parses a plain decimal number (optional sign, digits, optional fraction) directly from the buffer.
+	 * When there are few enough digits this is a single exact division, which gives exactly the same double as
+	 * Double.parseDouble(); anything else (exponents, very long numbers, junk) is handed to Double.parseDouble()
+	 */
+	private double parseDouble(int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if ((i < end) && ((buffer.get(i) == '-') || (buffer.get(i) == '+'))) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+		
+		long mantissa = 0;
+		int fractionDigits = -1; // -1 until we see the point
+		int digits = 0;
+		for (; i < end; i++) {
+			byte b = buffer.get(i);
+			if ((b >= '0') && (b <= '9')) {
+				mantissa = (mantissa * 10) + (b - '0');
+				digits++;
+				if (fractionDigits >= 0) {
+					fractionDigits++;
+				}
+				if (mantissa >= MAX_EXACT_MANTISSA) {
+					break;
+				}
+			} else if ((b == '.') && (fractionDigits < 0)) {
+				fractionDigits = 0;
+			} else {
+				break;
+			}
+		}
+		
+		if ((i < end) || (digits == 0) || (mantissa >= MAX_EXACT_MANTISSA) || (fractionDigits >= POWERS_OF_TEN.length)) { // not the simple case
+			return Double.parseDouble(decode(start, end));
+		}
+		
+		double rval = (fractionDigits > 0) ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+		return negative ? -rval : rval;
+	}
+	
+	private String decode(int start, int end) {
+		int length = end - start;
+		if (length > stringBuffer.length) {
+			stringBuffer = new byte[Math.max(length, stringBuffer.length * 2)];
+		}
+		for (int i = 0; i < length; i++) {
+			stringBuffer[i] = buffer.get(start + i);
+		}
+		return new String(stringBuffer, 0, length, CHARSET);
+	}
+}
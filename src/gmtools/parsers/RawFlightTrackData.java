@@ -1,13 +1,26 @@
 package gmtools.parsers;
 
 import gmtools.common.ArrayTools;
+import gmtools.common.CompressedFiles;
 import gmtools.tools.SnapTracks;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import uk.me.jstott.jcoord.LatLng;
 
@@ -31,11 +44,20 @@ public class RawFlightTrackData {
 	public static final String SEPARATOR = "\t";
 	public static final String SEPARATOR_COORDS = ",";
 	
+	/**put on a queue of lines passed to the loader (see {@link #loadAircraft(boolean, boolean, String, String[], double, double, double, String, long, int, int, long, long, boolean, Map)}) after the last line; compared by identity*/
+	public static final String END_OF_LINES = new String("END_OF_LINES");
+	
 	private static boolean isCoordsNearAirport(double lat, double lon, double latAirport, double lonAirport, double airportRadius) {
 		return (Math.abs(lat - latAirport) < airportRadius) && (Math.abs(lon - lonAirport) < airportRadius);
 	}
 	
 	/**
+	 * Each file is memory-mapped and split into chunks on line boundaries, and the chunks are parsed in parallel
+	 * (see {@link TrackFileChunk}). Gzipped files (.gz) are decompressed as they are read instead, and each chunk
+	 * is parsed as soon as it has been decompressed. Files converted to the binary format (see {@link BinaryTrackFile})
+	 * are read directly, in runs of tracks. The parsed lines are then merged in file order, so the result is the same as reading
+	 * the files one line at a time.
+	 *
 	 * @param scraped - true if the input files are in the format coming direct from scraping, false if it's come from the snapping code
 	 * @param basedir - base dir for input
 	 * @param inFiles - filenames to read
@@ -45,16 +67,22 @@ public class RawFlightTrackData {
 	 * @param airportID
 	 * @param breakTracksIfGapOverS - max gap between TimeCoordinates (number of seconds); if over this, the track will be split
 	 * @param min - if track has fewer points than this near the airport, it will be discarded
+	 * @param numThreads - for parsing the files
+	 * @param fromTimestamp - only keep the ground movements with at least one point at or after this (Long.MIN_VALUE for no limit); 
+	 * movements that overlap the window are kept whole, not cut down to it
+	 * @param toTimestamp - as fromTimestamp, for the latest point (Long.MAX_VALUE for no limit)
+	 * @param useIndex - if true, each file's {@link TrackIndex} is loaded (or built, the first time) and used to skip
+	 * the tracks that can't have any ground movements near the airport in the time window, without parsing them
+	 * @param queuedFiles - for each of the inFiles to be read from a queue of lines instead (e.g. from 
+	 * {@link gmtools.snaptracks.CleaningRawDataOutliers} as it cleans them, so they never need to be written out), the queue: 
+	 * the header line, then the tracks, then {@link #END_OF_LINES}. Lines are parsed in batches as they arrive. Can be null.
 	 * @return
 	 */
-	public static List<Aircraft> loadAircraft(boolean snapped, boolean includesIntervals, String basedir, String[] inFiles, double latAirport, double lonAirport, double airportRadius, String airportID, long breakTracksIfGapOverS, int min) {
-		int pathIncrement = includesIntervals ? 4 : 3;
-		
-		// somewhere to store coordinates
-		List<Aircraft> aircrafts = new ArrayList<Aircraft>();
-		
-		// keep track of aircraft loaded from different files
-		List<String> ids = new ArrayList<String>();
+	public static List<Aircraft> loadAircraft(boolean snapped, boolean includesIntervals, String basedir, String[] inFiles, double latAirport, double lonAirport, double airportRadius, String airportID, long breakTracksIfGapOverS, int min, int numThreads, long fromTimestamp, long toTimestamp, boolean useIndex, Map<String, BlockingQueue<String>> queuedFiles) {
+		// somewhere to store coordinates, keyed by the raw id so aircraft loaded from different files can be found quickly
+		// (an aircraft with several visits to the airport has several entries, "id-0", "id-1", ..., all under the same raw id)
+		// insertion ordered, so the aircraft come out in the order they were (last) added
+		Map<String, List<Aircraft>> aircraftsById = new LinkedHashMap<String, List<Aircraft>>();
 		
 		int countRawTracks = 0;
 		int countDroppedBecauseInMultipleFiles = 0;
@@ -65,236 +93,126 @@ public class RawFlightTrackData {
 		int countSingleValid = 0;
 		int countMultipleValid = 0;
 		int countMultipleValidTotal = 0;
+		int countOutsideTimeWindow = 0;
 		
-		int lastSize = 0;
-		
-		// read file
+		// start parsing all the files; chunks are merged below in the order they were submitted
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		List<Future<List<ParsedTrackLine>>> parsedChunks = new ArrayList<Future<List<ParsedTrackLine>>>();
+		List<String> chunkFiles = new ArrayList<String>();
 		for (String inFile : inFiles) {
 			try {
-				// try to open file
-				BufferedReader in = new BufferedReader(new FileReader(basedir + inFile));
-	
-				// get header
-				String[] header = in.readLine().split(SEPARATOR);
-				ColumnIndices columnIndices = new ColumnIndices(header, basedir + inFile);
+				BlockingQueue<String> queuedLines = (queuedFiles != null) ? queuedFiles.get(inFile) : null;
+				TrackFileChunk.submit(basedir + inFile, queuedLines, Math.max(1, numThreads), pool, parsedChunks, useIndex, snapped, includesIntervals, latAirport, lonAirport, airportRadius, airportID, breakTracksIfGapOverS, fromTimestamp, toTimestamp);
+				while (chunkFiles.size() < parsedChunks.size()) {
+					chunkFiles.add(inFile);
+				}
+			} catch(IOException e) {
+				System.err.println("Problem reading " + inFile + ":");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		pool.shutdown();
+		
+		for (int c = 0; c < parsedChunks.size(); c++) {
+			List<ParsedTrackLine> lines = null;
+			try {
+				lines = parsedChunks.get(c).get();
+			} catch (InterruptedException | ExecutionException e) {
+				System.err.println("Problem reading " + chunkFiles.get(c) + ":");
+				e.printStackTrace();
+				System.exit(1);
+			}
+			parsedChunks.set(c, null); // done with it: let the parsed lines go as we merge them
+			
+			for (ParsedTrackLine line : lines) {
+				countRawTracks++;
+				String id = line.id;
+				List<Track> coordsForThisAircraft = line.tracks;
 				
-				String line;
-				while ((line = in.readLine()) != null) {
-					countRawTracks++;
-					
-					String[] cols = line.split(SEPARATOR);
-										
-					int idIndex = columnIndices.getColumnIndex(HEADER_ID, true);
-					String id = (idIndex < cols.length) ? cols[idIndex] : "";
-	
-					int pathIndex = columnIndices.getColumnIndex(HEADER_TRACK, true);
-					
-					Integer firstTimestampIndex = columnIndices.getColumnIndex(HEADER_FIRSTTIMESTAMP, true);
-					Integer destinationIndex = columnIndices.getColumnIndex(HEADER_DESTINATION, true);
-					Integer originIndex = columnIndices.getColumnIndex(HEADER_ORIGIN, true);
-					
-					String destination = "?";
-					if ((destinationIndex != null) && (destinationIndex < cols.length)) {
-						destination = cols[destinationIndex];
+				if (line.outsideTimeWindow) {
+					if (SnapTracks.GLOBAL_DEBUG_LOAD_FILTERING) {
+						System.out.println("Outside time window:" + id);
 					}
-					String origin = "?";
-					if ((originIndex != null) && (originIndex < cols.length)) {
-						origin = cols[originIndex];
+					
+					countOutsideTimeWindow++;
+				} else if (coordsForThisAircraft == null) { // check for enough columns to include path
+					if (SnapTracks.GLOBAL_DEBUG_LOAD_FILTERING) {
+						System.out.println("Empty raw:" + id);
 					}
 					
-					// coords are in a comma separated list - split again
-					if ((cols.length > Math.max(pathIndex, firstTimestampIndex)) && (cols[pathIndex].contains(SEPARATOR_COORDS))) { // check there's enough columns, and that the path has some subseparators (so it might contain some coords)
-						String[] s = cols[pathIndex].split(SEPARATOR_COORDS);
-
-						// The destination/origin codes aren't always right! so just figure out inbound / outbound from the route data
-						// The route data is usually backwards in the raw data
-						// This still will be tripped up if an aircraft, in one route, leaves airport, goes elsewhere, then returns!
-						boolean outbound = false;
-						boolean inbound = false;
-						boolean forwards = false;
-						boolean found = false;
-						
-						long startDate = -1;
-						try {
-							startDate = Long.parseLong(cols[firstTimestampIndex]);
-						} catch (NumberFormatException e) {}
-						
-						if (snapped) { // if snapped, assume that all flights are at correct airport on the ground: just copy coords (they were forwards) and get origin/destination from file
-							outbound = cols[originIndex].equals(airportID);
-							inbound = cols[destinationIndex].equals(airportID);
-							forwards = true;
-							found = true;
+					countEmptyRawTracks++;
+				} else if (coordsForThisAircraft.size() > 0) {
+					boolean insert = true;
+					List<Aircraft> existing = aircraftsById.get(id);
+					if (existing != null) { // first, see if we've already got data for this aircraft from another file - then keep whichever is the larger data set (this code supports reading multiple FR24 datasets, possibly overlapping)
+						if (countAircraftPoints(existing) < countPoints(coordsForThisAircraft)) {
+							aircraftsById.remove(id); // removed rather than overwritten, so the replacement goes to the end as it would have done before
 						} else {
-							// originally it seemed that sometimes the coords are in forwards order, other times in reverse order.
-							// now (see further above) this is likely not true, but the org/dest codes are wrong, so just look at the coords themselves in reverse order
-							// before anything else, we should take a look at the first and last coordinates to see if either is close to the airport in question
-							double firstLat = Double.parseDouble(s[0]);
-							double firstLon = Double.parseDouble(s[1]);
-							double lastLat = Double.parseDouble(s[s.length - pathIncrement]);
-							double lastLon = Double.parseDouble(s[(s.length - pathIncrement) + 1]);
-							if (isCoordsNearAirport(firstLat, firstLon, latAirport, lonAirport, airportRadius)) {
-								// coords near start, so airport was destination
-								inbound = true;
-								found = true;
-							} else if (isCoordsNearAirport(lastLat, lastLon, latAirport, lonAirport, airportRadius)) {
-								// coords near end, so airport was origin
-								outbound = true;
-								found = true;
-							} else {
-								// airport wasn't found at beginning or end. Maybe it's somewhere in the middle? Direction is a bit less certain, assume it's backwards (this seems to mostly be the case)
-								// first, find where the movement at the airport is
-								for (int i = 0; !found && i < s.length - (pathIncrement - 1); i+=pathIncrement) {
-									double lat = Double.parseDouble(s[i]);
-									double lon = Double.parseDouble(s[i+1]);
-									double alt = Double.parseDouble(s[i+2]);
-									if ((alt == 0) && isCoordsNearAirport(lat, lon, latAirport, lonAirport, airportRadius)) {
-										forwards = false;
-										found = true;
-									}
-								}
-							}
+							insert = false;
 						}
-
-						// aircraft might have more than one set of ground movements at same airport (usually because ADS-B box wasn't reset at a remote destination)
-						List<List<TimeCoordinate>> coordsForThisAircraft = new ArrayList<List<TimeCoordinate>>();
-						List<TimeCoordinate> currentCoordsForThisAircraft = null;
-						boolean previousCoordWasNotAtAirport = true; // when this shows that we've moved from a non-local coord to one at the airport, create a new track
-						long previousTimestamp = startDate;
+					}
+					
+					if (insert) {
+						// does the track have multiple visits to the airport in it?
+						if (SnapTracks.GLOBAL_DEBUG_LOAD_FILTERING) {
+							System.out.println("Multiple ("+coordsForThisAircraft.size()+") tracks found for " + id);
+						}
+						countSplitTracks+= coordsForThisAircraft.size() - 1; // -1 as we're only counting additional tracks
 						
-						// now create a list of the coords for taxiing
-						// array is lat,lon,altitude,interval,...
-						// work through forwards or backwards as appropriate
-						if (found) {
-							boolean done = false;
-
-							for (int i = (forwards ? 0 : s.length - pathIncrement); (forwards ? (i < s.length) : (i >= 0)) && !done; i+=((forwards?1:-1)*pathIncrement)) {
-								double altitude = Double.parseDouble(s[i+2]);
-	
-								// always read this, as all coord timestamps are intervals relative to previous, so to get one we need to get all before it
-								int interval = includesIntervals ? (snapped?1:-1)*(int)(Double.parseDouble(s[i+3])) : 1; // parse as double and cast to int; sometimes we have .0 added to the figures, and -ve because FR24 has them as <0 already
-								long timestamp = previousTimestamp + interval; // timestamp is the interval associated with this coord after the previous timestamp (or the timestap column if on the first coord)
+						// run through the coords lists and drop any empty or nearly empty ones
+						for (int i = coordsForThisAircraft.size() - 1; i >= 0; i--) {
+							int size = coordsForThisAircraft.get(i).size();
+							if (size < min) {
+								coordsForThisAircraft.remove(i);
 								
-								if (interval > breakTracksIfGapOverS) { // is interval over allowed threshold? if so, split
-									currentCoordsForThisAircraft = new ArrayList<TimeCoordinate>();
-									coordsForThisAircraft.add(currentCoordsForThisAircraft);
-									previousCoordWasNotAtAirport = false; // also set this so we don't split again in a moment
-								}
-								
-								if (altitude == 0) {
-									double lat = Double.parseDouble(s[i]);
-									double lon = Double.parseDouble(s[i+1]);
-									
-									if (isCoordsNearAirport(lat, lon, latAirport, lonAirport, airportRadius)) {
-										// have we just newly found a block of coords at the airport?
-										if (previousCoordWasNotAtAirport) {
-											currentCoordsForThisAircraft = new ArrayList<TimeCoordinate>();
-											coordsForThisAircraft.add(currentCoordsForThisAircraft);
-											previousCoordWasNotAtAirport = false;
-										}
-										
-										TimeCoordinate tc = new TimeCoordinate(new LatLng(lat, lon), timestamp, interval);
-										currentCoordsForThisAircraft.add(tc);
-									} else {
-										previousCoordWasNotAtAirport = true;
-									}
-								} else {
-									previousCoordWasNotAtAirport = true;
+								if (SnapTracks.GLOBAL_DEBUG_LOAD_FILTERING) {
+									System.out.println("Processed track has too few points (" + id + "):" + size);
 								}
-								
-								previousTimestamp = timestamp;
+								countEmptyProcessedTracks++;
 							}
-						} // end of forwards/backwards block
+						}
 						
-						if (coordsForThisAircraft.size() > 0) {
-							boolean insert = true;
-							if (ids.contains(id)) { // first, see if we've already got data for this aircraft from another file - then keep whichever is the larger data set (this code supports reading multiple FR24 datasets, possibly overlapping)
-								int i = ids.indexOf(id);
-								if (aircrafts.get(i).coords.size() < coordsForThisAircraft.size()) {
-									aircrafts.remove(i);
-									ids.remove(i);
-								} else {
-									insert = false;
-								}
+						if (coordsForThisAircraft.size() == 1) { // if only 1 track at airport then just add aircraft to list for return (if no tracks, don't bother)
+							Aircraft ac = new Aircraft(id, line.origin, line.destination, coordsForThisAircraft.get(0), line.direction);
+							List<Aircraft> added = new ArrayList<Aircraft>(1);
+							added.add(ac);
+							aircraftsById.put(id, added);
+							countSingleValid++;
+						} else if (coordsForThisAircraft.size() > 1) { // >1 track at airport. Create multiple AC objects, one for each track. This should reduce need for track splitting after snapping, and avoid nasty jumps in the coords
+							List<Aircraft> added = new ArrayList<Aircraft>(coordsForThisAircraft.size());
+							int i = 0;
+							for (Track curCoords : coordsForThisAircraft) {
+								String subID = id + "-" + (i++);
+								Aircraft ac = new Aircraft(subID, line.origin, line.destination, curCoords, line.direction);
+								added.add(ac);
 							}
+							aircraftsById.put(id, added);
 							
-							if (insert) {
-								Aircraft.Direction direction;
-								if (inbound) {
-									direction = Aircraft.Direction.INBOUND;
-								} else if (outbound) {
-									direction = Aircraft.Direction.OUTBOUND;
-								} else {
-									direction = Aircraft.Direction.STOPOFF;
-								}
-								
-								// does the track have multiple visits to the airport in it? 
-								if (SnapTracks.GLOBAL_DEBUG_LOAD_FILTERING) {
-									System.out.println("Multiple ("+coordsForThisAircraft.size()+") tracks found for " + id);
-								}
-								countSplitTracks+= coordsForThisAircraft.size() - 1; // -1 as we're only counting additional tracks
-								
-								// run through the coords lists and drop any empty or nearly empty ones
-								for (int i = coordsForThisAircraft.size() - 1; i >= 0; i--) {
-									int size = coordsForThisAircraft.get(i).size();
-									if (size < min) {
-										coordsForThisAircraft.remove(i);
-										
-										if (SnapTracks.GLOBAL_DEBUG_LOAD_FILTERING) {
-											System.out.println("Processed track has too few points (" + id + "):" + size);
-										}
-										countEmptyProcessedTracks++;
-									}
-								}
-
-								if (coordsForThisAircraft.size() == 1) { // if only 1 track at airport then just add aircraft to list for return (if no tracks, don't bother) 
-									Aircraft ac = new Aircraft(id, origin, destination, coordsForThisAircraft.isEmpty()?new ArrayList<TimeCoordinate>():coordsForThisAircraft.get(0), direction);
-									aircrafts.add(ac);
-									ids.add(id);
-									countSingleValid++;
-								} else if (coordsForThisAircraft.size() > 1) { // >1 track at airport. Create multiple AC objects, one for each track. This should reduce need for track splitting after snapping, and avoid nasty jumps in the coords
-									int i = 0;
-									for (List<TimeCoordinate> curCoords : coordsForThisAircraft) {
-										String subID = id + "-" + (i++); 
-										Aircraft ac = new Aircraft(subID, origin, destination, curCoords, direction);
-										aircrafts.add(ac);
-										ids.add(subID);
-									}
-									
-									if (SnapTracks.GLOBAL_DEBUG_LOAD_FILTERING) {
-										System.out.println("Multiple ("+coordsForThisAircraft.size()+") tracks found for " + id);
-									}
-									countMultipleValidTotal += coordsForThisAircraft.size();
-
-									countMultipleValid++;
-								} // ignore ACs with zero tracks 
-							} else {
-								countDroppedBecauseInMultipleFiles++;
-							}
-						} else {
 							if (SnapTracks.GLOBAL_DEBUG_LOAD_FILTERING) {
-								System.out.println("No track added:" + id);
+								System.out.println("Multiple ("+coordsForThisAircraft.size()+") tracks found for " + id);
 							}
+							countMultipleValidTotal += coordsForThisAircraft.size();
 							
-							countNoTracks++;
-						}
-					} else { // check for enough columns to include path
-						if (SnapTracks.GLOBAL_DEBUG_LOAD_FILTERING) {
-							System.out.println("Empty raw:" + id);
-						}
-						
-						countEmptyRawTracks++;
+							countMultipleValid++;
+						} // ignore ACs with zero tracks
+					} else {
+						countDroppedBecauseInMultipleFiles++;
+					}
+				} else {
+					if (SnapTracks.GLOBAL_DEBUG_LOAD_FILTERING) {
+						System.out.println("No track added:" + id);
 					}
 					
-					lastSize = aircrafts.size();
-				} // loop over file content
-	
-				in.close();
-			} catch(IOException e) {
-				System.err.println("Problem reading " + inFile + ":");
-				e.printStackTrace();
-				System.exit(1);
-			}
+					countNoTracks++;
+				}
+			} // loop over file content
 		} // end of loop over files
+		
+		List<Aircraft> aircrafts = new ArrayList<Aircraft>();
+		for (List<Aircraft> l : aircraftsById.values()) {
+			aircrafts.addAll(l);
+		}
 
 		System.out.println("Loaded " + aircrafts.size() + " aircraft in total after validity checks and splitting.");
 		System.out.println("Raw data contained " + countRawTracks + " across " + inFiles.length + " files");
@@ -302,6 +220,9 @@ public class RawFlightTrackData {
 		System.out.println("Tracks dropped because the raw data had no points near the airport, on the ground: " + countNoTracks);
 		System.out.println("Tracks dropped because the raw data had too few (<" + min + ") points near airport, on the ground: " + countEmptyProcessedTracks);
 		System.out.println("Tracks dropped because the raw data had no coordinates in the track: " + countEmptyRawTracks);
+		if ((fromTimestamp != Long.MIN_VALUE) || (toTimestamp != Long.MAX_VALUE)) {
+			System.out.println("Tracks dropped because they had no ground movements between " + fromTimestamp + " and " + toTimestamp + ": " + countOutsideTimeWindow);
+		}
 		System.out.println("Tracks added because the raw data had multiple visits to the airport: " + countSplitTracks);
 		System.out.println("Aircraft with a single valid track: " + countSingleValid);
 		System.out.println("Aircraft with multiple valid tracks: "+ countMultipleValid + ", (" + countMultipleValidTotal + ") tracks in total");
@@ -309,19 +230,625 @@ public class RawFlightTrackData {
 		return aircrafts;
 	}
 	
+	/**the lines taken from a queue, up to {@link RawFlightTrackData#END_OF_LINES}, as a stream of UTF-8 bytes with a \n after each line*/
+	private static class QueuedLinesInputStream extends InputStream {
+		private static final Charset CHARSET = Charset.forName("UTF-8");
+		
+		private final BlockingQueue<String> lines;
+		private byte[] current = new byte[0];
+		private int currentPosition;
+		private boolean finished;
+		
+		QueuedLinesInputStream(BlockingQueue<String> lines) {
+			this.lines = lines;
+		}
+		
+		/**@return false at the end of the lines*/
+		private boolean nextLine() throws IOException {
+			while (!finished && (currentPosition >= current.length)) {
+				String line;
+				try {
+					line = lines.take();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while waiting for lines", e);
+				}
+				if (line == END_OF_LINES) {
+					finished = true;
+				} else {
+					byte[] bytes = line.getBytes(CHARSET);
+					current = Arrays.copyOf(bytes, bytes.length + 1);
+					current[bytes.length] = '\n';
+					currentPosition = 0;
+				}
+			}
+			return !finished;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (!nextLine()) {
+				return -1;
+			}
+			return current[currentPosition++] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextLine()) {
+				return -1;
+			}
+			int n = Math.min(len, current.length - currentPosition);
+			System.arraycopy(current, currentPosition, b, off, n);
+			currentPosition += n;
+			return n;
+		}
+	}
+	
+	/**one line of a flight track file, parsed but not yet merged with the aircraft from other lines and files*/
+	private static class ParsedTrackLine {
+		private String id = ""; // stays empty, along with origin and destination, for lines skipped using the index
+		private String origin = "?";
+		private String destination = "?";
+		private Aircraft.Direction direction;
+		/**the visits to the airport; null if the line had no path at all*/
+		private List<Track> tracks;
+		/**true if there were visits to the airport, but none in the time window*/
+		private boolean outsideTimeWindow;
+	}
+	
+	/**the numbers in the path of a raw track (lat,lon,altitude[,interval],...), from either a text or binary file*/
+	private interface PathValues {
+		int size();
+		double get(int i);
+	}
+	
+	/**
+	 * a run of whole lines from one flight track file, memory-mapped and parsed with a {@link FieldTokenizer}
+	 * (column indices are looked up once, from the file's header), or a run of tracks from a {@link BinaryTrackFile}
+	 */
+	private static class TrackFileChunk implements Callable<List<ParsedTrackLine>> {
+		/**keeps each mapping well under the 2GB a single MappedByteBuffer can hold*/
+		private static final long MAX_CHUNK_BYTES = 1L << 27;
+		/**files smaller than this aren't worth splitting*/
+		private static final long MIN_CHUNK_BYTES = 1L << 20;
+		/**gzipped files can't be mapped, so they're decompressed into chunks of about this size*/
+		private static final int COMPRESSED_CHUNK_BYTES = 1 << 23;
+		/**binary files are split into runs of at most this many tracks*/
+		private static final int MAX_BINARY_CHUNK_TRACKS = 10000;
+		
+		private ByteBuffer buffer;
+		private BinaryTrackFile binary;
+		private int firstTrack;
+		private int lastTrack; // exclusive
+		/**if set, tracks firstTrack to lastTrack are checked against it before being parsed, and buffer holds them from bufferStart on (for text files)*/
+		private TrackIndex index;
+		private long bufferStart;
+		private boolean snapped;
+		private int pathIncrement;
+		private boolean includesIntervals;
+		private double latAirport;
+		private double lonAirport;
+		private double airportRadius;
+		private String airportID;
+		private long breakTracksIfGapOverS;
+		private long fromTimestamp;
+		private long toTimestamp;
+		
+		private int idIndex;
+		private int pathIndex;
+		private int firstTimestampIndex;
+		private int destinationIndex;
+		private int originIndex;
+		
+		/**
+		 * reads the header of the file, and submits the rest of it to the pool in chunks of whole lines, in file order
+		 * @param minChunks - the file is split into at least this many chunks, if it's big enough to be worth it
+		 * @param parsedChunks - the futures for the chunks are added to this
+		 * @param queuedLines - if not null, the lines are taken from here rather than the file
+		 */
+		static void submit(String filename, BlockingQueue<String> queuedLines, int minChunks, ExecutorService pool, List<Future<List<ParsedTrackLine>>> parsedChunks, boolean useIndex, boolean snapped, boolean includesIntervals, double latAirport, double lonAirport, double airportRadius, String airportID, long breakTracksIfGapOverS, long fromTimestamp, long toTimestamp) throws IOException {
+			TrackFileChunk template = new TrackFileChunk(snapped, includesIntervals, latAirport, lonAirport, airportRadius, airportID, breakTracksIfGapOverS, fromTimestamp, toTimestamp);
+			if (queuedLines != null) {
+				template.submitStream(new QueuedLinesInputStream(queuedLines), filename, (int)MIN_CHUNK_BYTES, pool, parsedChunks);
+				return;
+			}
+			
+			TrackIndex index = useIndex ? TrackIndex.loadOrBuild(filename, includesIntervals) : null;
+			if (index != null) {
+				template.submitIndexed(filename, index, minChunks, pool, parsedChunks);
+			} else if (CompressedFiles.isGzipped(filename)) {
+				try (InputStream in = CompressedFiles.openInputStream(filename)) {
+					template.submitStream(in, filename, COMPRESSED_CHUNK_BYTES, pool, parsedChunks);
+				}
+			} else if (BinaryTrackFile.isBinaryTrackFile(filename)) {
+				template.submitBinary(filename, minChunks, pool, parsedChunks);
+			} else {
+				template.submitMapped(filename, minChunks, pool, parsedChunks);
+			}
+		}
+		
+		private void submitMapped(String filename, int minChunks, ExecutorService pool, List<Future<List<ParsedTrackLine>>> parsedChunks) throws IOException {
+			try (FileChannel channel = new RandomAccessFile(filename, "r").getChannel()) {
+				long size = channel.size();
+				
+				// get header
+				long headerEnd = findNextLineStart(channel, 0);
+				ByteBuffer headerBytes = ByteBuffer.allocate((int)headerEnd);
+				while (headerBytes.hasRemaining() && (channel.read(headerBytes, headerBytes.position()) >= 0)) {}
+				headerBytes.flip();
+				readHeader(headerBytes, filename);
+				
+				int chunks = (int)Math.max((size - headerEnd) / MAX_CHUNK_BYTES + 1, Math.min(minChunks, (size - headerEnd) / MIN_CHUNK_BYTES + 1));
+				long start = headerEnd;
+				for (int i = 1; (i <= chunks) && (start < size); i++) {
+					long end = (i == chunks) ? size : Math.max(start, findNextLineStart(channel, headerEnd + (((size - headerEnd) * i) / chunks)));
+					if (end > start) {
+						parsedChunks.add(pool.submit(withBuffer(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start))));
+					}
+					start = end;
+				}
+			}
+		}
+		
+		/**
+		 * splits the tracks into runs, each of which checks the index before parsing a track. For text files, each run maps
+		 * the part of the file it covers, but only the lines it parses are read.
+		 */
+		private void submitIndexed(String filename, TrackIndex index, int minChunks, ExecutorService pool, List<Future<List<ParsedTrackLine>>> parsedChunks) throws IOException {
+			BinaryTrackFile binaryFile = null;
+			if (BinaryTrackFile.isBinaryTrackFile(filename)) {
+				binaryFile = BinaryTrackFile.open(filename);
+			}
+			
+			try (FileChannel channel = new RandomAccessFile(filename, "r").getChannel()) {
+				if (binaryFile == null) {
+					// get header
+					long headerEnd = findNextLineStart(channel, 0);
+					ByteBuffer headerBytes = ByteBuffer.allocate((int)headerEnd);
+					while (headerBytes.hasRemaining() && (channel.read(headerBytes, headerBytes.position()) >= 0)) {}
+					headerBytes.flip();
+					readHeader(headerBytes, filename);
+				}
+				
+				int tracksPerChunk = Math.max(1, Math.min(MAX_BINARY_CHUNK_TRACKS, (index.size() + minChunks - 1) / minChunks));
+				int first = 0;
+				while (first < index.size()) {
+					int last = first + 1; // exclusive
+					while ((last < index.size()) && (last - first < tracksPerChunk) && 
+							((binaryFile != null) || (index.getPosition(last) + index.getLength(last) - index.getPosition(first) <= MAX_CHUNK_BYTES))) {
+						last++;
+					}
+					
+					TrackFileChunk chunk = withBuffer(null);
+					chunk.index = index;
+					chunk.firstTrack = first;
+					chunk.lastTrack = last;
+					if (binaryFile != null) {
+						chunk.binary = binaryFile;
+					} else {
+						chunk.bufferStart = index.getPosition(first);
+						chunk.buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk.bufferStart, index.getPosition(last - 1) + index.getLength(last - 1) - chunk.bufferStart);
+					}
+					parsedChunks.add(pool.submit(chunk));
+					first = last;
+				}
+			}
+		}
+		
+		private void submitBinary(String filename, int minChunks, ExecutorService pool, List<Future<List<ParsedTrackLine>>> parsedChunks) throws IOException {
+			BinaryTrackFile file = BinaryTrackFile.open(filename);
+			if (file.getValuesPerPoint() != pathIncrement) {
+				System.err.println("Warning: " + filename + " has " + file.getValuesPerPoint() + " values per point, but " + pathIncrement + " were expected");
+			}
+			if (!file.getAirportID().equals(airportID)) {
+				System.out.println("Note: " + filename + " was converted for airport " + file.getAirportID() + ", loading for " + airportID);
+			}
+			
+			int chunks = Math.max((file.size() / MAX_BINARY_CHUNK_TRACKS) + 1, Math.min(minChunks, file.size()));
+			for (int i = 0; i < chunks; i++) {
+				TrackFileChunk chunk = withBuffer(null);
+				chunk.binary = file;
+				chunk.firstTrack = (int)(((long)file.size() * i) / chunks);
+				chunk.lastTrack = (int)(((long)file.size() * (i + 1)) / chunks);
+				if (chunk.lastTrack > chunk.firstTrack) {
+					parsedChunks.add(pool.submit(chunk));
+				}
+			}
+		}
+		
+		/**
+		 * reads the header, then hands over the stream in blocks of whole lines of about chunkBytes each, submitting each
+		 * as soon as it has been read (so parsing overlaps with decompressing, or with whatever is producing the lines)
+		 */
+		private void submitStream(InputStream in, String filename, int chunkBytes, ExecutorService pool, List<Future<List<ParsedTrackLine>>> parsedChunks) throws IOException {
+			byte[] block = new byte[chunkBytes];
+			int filled = 0;
+			boolean headerRead = false;
+			boolean eof = false;
+			while (!eof) {
+				int read = in.read(block, filled, block.length - filled);
+				if (read < 0) {
+					eof = true;
+				} else {
+					filled += read;
+				}
+				if (!eof && (filled < block.length)) { // keep going until the block is full
+					continue;
+				}
+				
+				int start = 0;
+				if (!headerRead) {
+					start = indexAfterNewline(block, 0, filled, true);
+					if ((start < 0) && !eof) { // header is longer than the block
+						block = Arrays.copyOf(block, block.length * 2);
+						continue;
+					}
+					start = (start < 0) ? filled : start;
+					readHeader(ByteBuffer.wrap(block, 0, start), filename);
+					headerRead = true;
+				}
+				
+				// hand over everything up to the last complete line, and carry the rest over to a new block
+				int end = eof ? filled : indexAfterNewline(block, start, filled, false);
+				if (end < 0) { // no complete line in the block: make room for more of it
+					block = Arrays.copyOfRange(block, start, Math.max(block.length, 2 * (filled - start)));
+					filled -= start;
+					continue;
+				}
+				if (end > start) {
+					parsedChunks.add(pool.submit(withBuffer(ByteBuffer.wrap(block, start, end - start))));
+				}
+				byte[] next = new byte[Math.max(chunkBytes, 2 * (filled - end))];
+				System.arraycopy(block, end, next, 0, filled - end);
+				filled -= end;
+				block = next;
+			}
+			
+			if (!headerRead) {
+				readHeader(ByteBuffer.allocate(0), filename);
+			}
+		}
+		
+		/**@return the index just after the first (or last) \n in the given range of the array, or -1 if there isn't one*/
+		private static int indexAfterNewline(byte[] bytes, int start, int end, boolean first) {
+			if (first) {
+				for (int i = start; i < end; i++) {
+					if (bytes[i] == '\n') {
+						return i + 1;
+					}
+				}
+			} else {
+				for (int i = end - 1; i >= start; i--) {
+					if (bytes[i] == '\n') {
+						return i + 1;
+					}
+				}
+			}
+			return -1;
+		}
+		
+		/**picks out the column indices from the header line in the given buffer*/
+		private void readHeader(ByteBuffer headerBytes, String filename) throws IOException {
+			FieldTokenizer header = new FieldTokenizer(headerBytes, SEPARATOR.charAt(0), SEPARATOR_COORDS.charAt(0));
+			if (!header.nextLine()) {
+				throw new IOException("No header found in " + filename);
+			}
+			String[] headerFields = new String[header.getFieldCount()];
+			for (int i = 0; i < headerFields.length; i++) {
+				headerFields[i] = header.getString(i);
+			}
+			ColumnIndices columnIndices = new ColumnIndices(headerFields, filename);
+			
+			this.idIndex = columnIndices.getColumnIndex(HEADER_ID, true);
+			this.pathIndex = columnIndices.getColumnIndex(HEADER_TRACK, true);
+			this.firstTimestampIndex = columnIndices.getColumnIndex(HEADER_FIRSTTIMESTAMP, true);
+			this.destinationIndex = columnIndices.getColumnIndex(HEADER_DESTINATION, true);
+			this.originIndex = columnIndices.getColumnIndex(HEADER_ORIGIN, true);
+		}
+		
+		/**@return a chunk with the same settings and column indices as this one, to parse the lines in the given buffer*/
+		private TrackFileChunk withBuffer(ByteBuffer buffer) {
+			TrackFileChunk rval = new TrackFileChunk(snapped, includesIntervals, latAirport, lonAirport, airportRadius, airportID, breakTracksIfGapOverS, fromTimestamp, toTimestamp);
+			rval.idIndex = this.idIndex;
+			rval.pathIndex = this.pathIndex;
+			rval.firstTimestampIndex = this.firstTimestampIndex;
+			rval.destinationIndex = this.destinationIndex;
+			rval.originIndex = this.originIndex;
+			rval.buffer = buffer;
+			return rval;
+		}
+		
+		/**@return the position just after the next \n at or after the given position, or the end of the file*/
+		private static long findNextLineStart(FileChannel channel, long position) throws IOException {
+			ByteBuffer b = ByteBuffer.allocate(8192);
+			long size = channel.size();
+			while (position < size) {
+				b.clear();
+				int read = channel.read(b, position);
+				if (read <= 0) {
+					break;
+				}
+				for (int i = 0; i < read; i++) {
+					if (b.get(i) == '\n') {
+						return position + i + 1;
+					}
+				}
+				position += read;
+			}
+			return size;
+		}
+		
+		private TrackFileChunk(boolean snapped, boolean includesIntervals, double latAirport, double lonAirport, double airportRadius, String airportID, long breakTracksIfGapOverS, long fromTimestamp, long toTimestamp) {
+			this.snapped = snapped;
+			this.includesIntervals = includesIntervals;
+			this.pathIncrement = includesIntervals ? 4 : 3;
+			this.latAirport = latAirport;
+			this.lonAirport = lonAirport;
+			this.airportRadius = airportRadius;
+			this.airportID = airportID;
+			this.breakTracksIfGapOverS = breakTracksIfGapOverS;
+			this.fromTimestamp = fromTimestamp;
+			this.toTimestamp = toTimestamp;
+		}
+		
+		@Override
+		public List<ParsedTrackLine> call() {
+			List<ParsedTrackLine> rval = new ArrayList<ParsedTrackLine>();
+			final FieldTokenizer line = (buffer != null) ? new FieldTokenizer(buffer, SEPARATOR.charAt(0), SEPARATOR_COORDS.charAt(0)) : null;
+			PathValues linePath = new PathValues() {
+				@Override
+				public int size() {
+					return line.getSubfieldCount();
+				}
+				
+				@Override
+				public double get(int i) {
+					return line.getSubfieldDouble(i);
+				}
+			};
+			
+			if (index != null) {
+				for (int i = firstTrack; i < lastTrack; i++) {
+					if (!index.hasPath(i)) { // as if parsed: no path
+						rval.add(new ParsedTrackLine());
+					} else if (!index.mayBeNearAirport(i, latAirport, lonAirport, airportRadius)) { // as if parsed: no tracks at the airport
+						ParsedTrackLine skipped = new ParsedTrackLine();
+						skipped.tracks = new ArrayList<Track>(0);
+						rval.add(skipped);
+					} else if (!index.mayOverlap(i, fromTimestamp, toTimestamp, snapped, includesIntervals)) {
+						ParsedTrackLine skipped = new ParsedTrackLine();
+						skipped.outsideTimeWindow = true;
+						rval.add(skipped);
+					} else if (binary != null) {
+						rval.add(parse(binary.getTrack((int)index.getPosition(i))));
+					} else {
+						int start = (int)(index.getPosition(i) - bufferStart);
+						line.setRange(start, start + index.getLength(i));
+						line.nextLine();
+						rval.add(parse(line, linePath));
+					}
+				}
+				index = null;
+				binary = null;
+				buffer = null;
+			} else if (binary != null) {
+				for (int i = firstTrack; i < lastTrack; i++) {
+					rval.add(parse(binary.getTrack(i)));
+				}
+				binary = null;
+			} else {
+				while (line.nextLine()) {
+					rval.add(parse(line, linePath));
+				}
+				buffer = null;
+			}
+			return rval;
+		}
+		
+		private ParsedTrackLine parse(FieldTokenizer line, PathValues linePath) {
+			ParsedTrackLine rval = new ParsedTrackLine();
+			int cols = line.getFieldCount();
+			rval.id = (idIndex < cols) ? line.getString(idIndex) : "";
+			rval.destination = (destinationIndex < cols) ? line.getString(destinationIndex) : "?";
+			rval.origin = (originIndex < cols) ? line.getString(originIndex) : "?";
+			
+			// coords are in a comma separated list - split again
+			if ((cols > Math.max(pathIndex, firstTimestampIndex)) && (line.fieldContains(pathIndex, SEPARATOR_COORDS.charAt(0)))) { // check there's enough columns, and that the path has some subseparators (so it might contain some coords)
+				line.splitField(pathIndex);
+				
+				long startDate = -1;
+				try {
+					startDate = line.getLong(firstTimestampIndex);
+				} catch (NumberFormatException e) {}
+				
+				parsePath(rval, startDate, linePath);
+			}
+			
+			return rval;
+		}
+		
+		private ParsedTrackLine parse(BinaryTrackFile.RawTrack track) {
+			ParsedTrackLine rval = new ParsedTrackLine();
+			rval.id = track.getId();
+			rval.destination = track.getDestination();
+			rval.origin = track.getOrigin();
+			if (track.hasPath()) {
+				final double[] values = track.getValues();
+				parsePath(rval, track.getFirstTimestamp(), new PathValues() {
+					@Override
+					public int size() {
+						return values.length;
+					}
+					
+					@Override
+					public double get(int i) {
+						return values[i];
+					}
+				});
+			}
+			
+			return rval;
+		}
+		
+		/**works out the direction of a track, and splits out its visits to the airport into rval.tracks*/
+		private void parsePath(ParsedTrackLine rval, long startDate, PathValues path) {
+			int sLength = path.size();
+			
+			// The destination/origin codes aren't always right! so just figure out inbound / outbound from the route data
+			// The route data is usually backwards in the raw data
+			// This still will be tripped up if an aircraft, in one route, leaves airport, goes elsewhere, then returns!
+			boolean outbound = false;
+			boolean inbound = false;
+			boolean forwards = false;
+			boolean found = false;
+			
+			if (snapped) { // if snapped, assume that all flights are at correct airport on the ground: just copy coords (they were forwards) and get origin/destination from file
+				outbound = rval.origin.equals(airportID);
+				inbound = rval.destination.equals(airportID);
+				forwards = true;
+				found = true;
+			} else {
+				// originally it seemed that sometimes the coords are in forwards order, other times in reverse order.
+				// now (see further above) this is likely not true, but the org/dest codes are wrong, so just look at the coords themselves in reverse order
+				// before anything else, we should take a look at the first and last coordinates to see if either is close to the airport in question
+				double firstLat = path.get(0);
+				double firstLon = path.get(1);
+				double lastLat = path.get(sLength - pathIncrement);
+				double lastLon = path.get((sLength - pathIncrement) + 1);
+				if (isCoordsNearAirport(firstLat, firstLon, latAirport, lonAirport, airportRadius)) {
+					// coords near start, so airport was destination
+					inbound = true;
+					found = true;
+				} else if (isCoordsNearAirport(lastLat, lastLon, latAirport, lonAirport, airportRadius)) {
+					// coords near end, so airport was origin
+					outbound = true;
+					found = true;
+				} else {
+					// airport wasn't found at beginning or end. Maybe it's somewhere in the middle? Direction is a bit less certain, assume it's backwards (this seems to mostly be the case)
+					// first, find where the movement at the airport is
+					for (int i = 0; !found && i < sLength - (pathIncrement - 1); i+=pathIncrement) {
+						double lat = path.get(i);
+						double lon = path.get(i+1);
+						double alt = path.get(i+2);
+						if ((alt == 0) && isCoordsNearAirport(lat, lon, latAirport, lonAirport, airportRadius)) {
+							forwards = false;
+							found = true;
+						}
+					}
+				}
+			}
+			
+			// aircraft might have more than one set of ground movements at same airport (usually because ADS-B box wasn't reset at a remote destination)
+			List<Track> coordsForThisAircraft = new ArrayList<Track>();
+			Track currentCoordsForThisAircraft = null;
+			boolean previousCoordWasNotAtAirport = true; // when this shows that we've moved from a non-local coord to one at the airport, create a new track
+			long previousTimestamp = startDate;
+			
+			// now create a list of the coords for taxiing
+			// array is lat,lon,altitude,interval,...
+			// work through forwards or backwards as appropriate
+			if (found) {
+				for (int i = (forwards ? 0 : sLength - pathIncrement); (forwards ? (i < sLength) : (i >= 0)); i+=((forwards?1:-1)*pathIncrement)) {
+					double altitude = path.get(i+2);
+					
+					// always read this, as all coord timestamps are intervals relative to previous, so to get one we need to get all before it
+					int interval = includesIntervals ? (snapped?1:-1)*(int)(path.get(i+3)) : 1; // parse as double and cast to int; sometimes we have .0 added to the figures, and -ve because FR24 has them as <0 already
+					long timestamp = previousTimestamp + interval; // timestamp is the interval associated with this coord after the previous timestamp (or the timestap column if on the first coord)
+					
+					if (interval > breakTracksIfGapOverS) { // is interval over allowed threshold? if so, split
+						currentCoordsForThisAircraft = new Track();
+						coordsForThisAircraft.add(currentCoordsForThisAircraft);
+						previousCoordWasNotAtAirport = false; // also set this so we don't split again in a moment
+					}
+					
+					if (altitude == 0) {
+						double lat = path.get(i);
+						double lon = path.get(i+1);
+						
+						if (isCoordsNearAirport(lat, lon, latAirport, lonAirport, airportRadius)) {
+							// have we just newly found a block of coords at the airport?
+							if (previousCoordWasNotAtAirport) {
+								currentCoordsForThisAircraft = new Track();
+								coordsForThisAircraft.add(currentCoordsForThisAircraft);
+								previousCoordWasNotAtAirport = false;
+							}
+							
+							currentCoordsForThisAircraft.add(lat, lon, timestamp, interval);
+						} else {
+							previousCoordWasNotAtAirport = true;
+						}
+					} else {
+						previousCoordWasNotAtAirport = true;
+					}
+					
+					previousTimestamp = timestamp;
+				}
+			} // end of forwards/backwards block
+			
+			for (Track t : coordsForThisAircraft) {
+				t.trimToSize();
+			}
+			
+			// keep only the ground movements that have a point in the time window
+			if (((fromTimestamp != Long.MIN_VALUE) || (toTimestamp != Long.MAX_VALUE)) && !coordsForThisAircraft.isEmpty()) {
+				for (int i = coordsForThisAircraft.size() - 1; i >= 0; i--) {
+					Track t = coordsForThisAircraft.get(i);
+					if (!t.isEmpty()) {
+						long first = Math.min(t.getTimestamp(0), t.getTimestamp(t.size() - 1));
+						long last = Math.max(t.getTimestamp(0), t.getTimestamp(t.size() - 1));
+						if ((last < fromTimestamp) || (first > toTimestamp)) {
+							coordsForThisAircraft.remove(i);
+						}
+					}
+				}
+				rval.outsideTimeWindow = coordsForThisAircraft.isEmpty();
+			}
+			
+			if (inbound) {
+				rval.direction = Aircraft.Direction.INBOUND;
+			} else if (outbound) {
+				rval.direction = Aircraft.Direction.OUTBOUND;
+			} else {
+				rval.direction = Aircraft.Direction.STOPOFF;
+			}
+			rval.tracks = coordsForThisAircraft;
+		}
+	}
+
+	/**@return total number of points in the given tracks*/
+	private static int countPoints(List<Track> tracks) {
+		int count = 0;
+		for (Track t : tracks) {
+			count += t.size();
+		}
+		return count;
+	}
+	
+	/**@return total number of points in the tracks of the given aircraft*/
+	private static int countAircraftPoints(List<Aircraft> aircrafts) {
+		int count = 0;
+		for (Aircraft ac : aircrafts) {
+			count += ac.track.size();
+		}
+		return count;
+	}
+	
 	public static class Aircraft implements Comparable<Aircraft> {
 		private enum Direction {INBOUND,OUTBOUND,STOPOFF,UNKNOWN}
 		private Direction direction;
-		private List<TimeCoordinate> coords;
+		private Track track;
 		private String id;
 		private String origin;
 		private String destination;
 		
-		public Aircraft(String id, String origin, String destination, List<TimeCoordinate> coords, Direction direction) {
+		public Aircraft(String id, String origin, String destination, Track track, Direction direction) {
 			this.id = id;
 			this.origin = origin;
 			this.destination = destination;
-			this.coords = coords;
+			this.track = track;
 			this.direction = direction;
 		}
 		
@@ -341,8 +868,8 @@ public class RawFlightTrackData {
 			return direction;
 		}
 		
-		public List<TimeCoordinate> getCoords() {
-			return coords;
+		public Track getTrack() {
+			return track;
 		}
 		
 		public String getLabel() {
@@ -352,27 +879,60 @@ public class RawFlightTrackData {
 		@Override
 		public String toString() {
 			// collapse coords into single arrays
-			double[] ccoords = new double[coords.size() * 2];
-			for (int i = 0; i < coords.size(); i++) {
-				ccoords[i * 2] = coords.get(i).getCoord().getLat();
-				ccoords[(i * 2) + 1] = coords.get(i).getCoord().getLng();
+			double[] ccoords = new double[track.size() * 2];
+			for (int i = 0; i < track.size(); i++) {
+				ccoords[i * 2] = track.getLat(i);
+				ccoords[(i * 2) + 1] = track.getLon(i);
 			}
 			
 			ArrayTools.roundPlaces = ArrayTools.NOROUNDING;
 			return getLabel() + SEPARATOR + direction + SEPARATOR + ArrayTools.toString(ccoords, SEPARATOR_COORDS);
 		}
 
+		/**
+		 * same ordering as comparing the {@link #toString()}s used to give (label, then direction, then coords), 
+		 * but without formatting every coordinate; coords are compared numerically, point by point
+		 */
 		@Override
 		public int compareTo(Aircraft o) {
-			return this.toString().compareTo(o.toString());
+			int rval = this.getLabel().compareTo(o.getLabel());
+			if (rval == 0) {
+				rval = this.direction.toString().compareTo(o.direction.toString());
+			}
+			for (int i = 0; (rval == 0) && (i < Math.min(this.track.size(), o.track.size())); i++) {
+				rval = Double.compare(this.track.getLat(i), o.track.getLat(i));
+				if (rval == 0) {
+					rval = Double.compare(this.track.getLon(i), o.track.getLon(i));
+				}
+			}
+			if (rval == 0) {
+				rval = Integer.compare(this.track.size(), o.track.size());
+			}
+			
+			return rval;
 		}
 		
 		@Override
 		public boolean equals(Object that) {
-			return this.toString().equals(((Aircraft)that).toString());
+			if (!(that instanceof Aircraft)) {
+				return false;
+			}
+			return this.compareTo((Aircraft)that) == 0;
+		}
+		
+		@Override
+		public int hashCode() {
+			int rval = getLabel().hashCode();
+			rval = (31 * rval) + direction.ordinal();
+			for (int i = 0; i < track.size(); i++) {
+				long bits = Double.doubleToLongBits(track.getLat(i)) ^ (Double.doubleToLongBits(track.getLon(i)) * 31);
+				rval = (31 * rval) + (int)(bits ^ (bits >>> 32));
+			}
+			return rval;
 		}
 	}
 	
+	/**a single point of a track; the tracks themselves are held as {@link Track}s, which make these on demand*/
 	public static class TimeCoordinate {
 		private LatLng coord;
 		private long timestamp;
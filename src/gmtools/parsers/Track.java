@@ -0,0 +1,172 @@
+package gmtools.parsers;
+
+import gmtools.parsers.RawFlightTrackData.TimeCoordinate;
+
+import java.util.Arrays;
+
+import uk.me.jstott.jcoord.LatLng;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * A flight track held as parallel primitive arrays (lat, lon, timestamp, interval), rather than a list of 
+ * {@link TimeCoordinate}s each with its own LatLng: about 28 bytes a point instead of 100 or so. 
+ * Points are appended with {@link #add(double, double, long, int)} while loading; after that a track is treated as 
+ * read only, so displaced copies made with {@link #withCoords(double[], double[])} can share the times with the original.
+ * Altitudes are only held once a point off the ground has been added (the loader only keeps points on the ground; the cleaner 
+ * keeps the rest too), so they cost nothing for most tracks.
+ */
+public class Track {
+	private static final int DEFAULT_CAPACITY = 16;
+	
+	private int size;
+	private double[] lats;
+	private double[] lons;
+	private long[] timestamps;
+	private int[] intervals;
+	/**null while every point is on the ground*/
+	private double[] altitudes;
+	
+	public Track() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	public Track(int capacity) {
+		this.lats = new double[capacity];
+		this.lons = new double[capacity];
+		this.timestamps = new long[capacity];
+		this.intervals = new int[capacity];
+	}
+	
+	private Track(int size, double[] lats, double[] lons, long[] timestamps, int[] intervals, double[] altitudes) {
+		this.size = size;
+		this.lats = lats;
+		this.lons = lons;
+		this.timestamps = timestamps;
+		this.intervals = intervals;
+		this.altitudes = altitudes;
+	}
+	
+	/**adds a point on the ground to the end of the track*/
+	public void add(double lat, double lon, long timestamp, int interval) {
+		add(lat, lon, 0, timestamp, interval);
+	}
+	
+	/**adds a point to the end of the track*/
+	public void add(double lat, double lon, double altitude, long timestamp, int interval) {
+		if (size == lats.length) {
+			int capacity = Math.max(DEFAULT_CAPACITY, size * 2);
+			lats = Arrays.copyOf(lats, capacity);
+			lons = Arrays.copyOf(lons, capacity);
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			intervals = Arrays.copyOf(intervals, capacity);
+			if (altitudes != null) {
+				altitudes = Arrays.copyOf(altitudes, capacity);
+			}
+		}
+		if ((altitudes == null) && (altitude != 0)) {
+			altitudes = new double[lats.length];
+		}
+		lats[size] = lat;
+		lons[size] = lon;
+		timestamps[size] = timestamp;
+		intervals[size] = interval;
+		if (altitudes != null) {
+			altitudes[size] = altitude;
+		}
+		size++;
+	}
+	
+	/**drops any spare capacity left over from loading*/
+	public void trimToSize() {
+		if (size < lats.length) {
+			lats = Arrays.copyOf(lats, size);
+			lons = Arrays.copyOf(lons, size);
+			timestamps = Arrays.copyOf(timestamps, size);
+			intervals = Arrays.copyOf(intervals, size);
+			if (altitudes != null) {
+				altitudes = Arrays.copyOf(altitudes, size);
+			}
+		}
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public double getLat(int i) {
+		return lats[i];
+	}
+	
+	public double getLon(int i) {
+		return lons[i];
+	}
+	
+	public long getTimestamp(int i) {
+		return timestamps[i];
+	}
+	
+	public int getInterval(int i) {
+		return intervals[i];
+	}
+	
+	/**@return the altitude of the i'th point; 0 for points on the ground*/
+	public double getAltitude(int i) {
+		return (altitudes != null) ? altitudes[i] : 0;
+	}
+	
+	/**@return a new LatLng for the i'th point*/
+	public LatLng getLatLng(int i) {
+		return new LatLng(lats[i], lons[i]);
+	}
+	
+	/**@return a new TimeCoordinate for the i'th point*/
+	public TimeCoordinate getTimeCoordinate(int i) {
+		return new TimeCoordinate(getLatLng(i), timestamps[i], intervals[i]);
+	}
+	
+	/**@return the points as new LatLngs*/
+	public LatLng[] toLatLngs() {
+		LatLng[] rval = new LatLng[size];
+		for (int i = 0; i < size; i++) {
+			rval[i] = getLatLng(i);
+		}
+		return rval;
+	}
+	
+	/**
+	 * @return a track with the same times and altitudes as this one, but the given coordinates (e.g. a displaced copy). 
+	 * The arrays are used directly, not copied, and must be at least size() long
+	 */
+	public Track withCoords(double[] lats, double[] lons) {
+		return new Track(size, lats, lons, timestamps, intervals, altitudes);
+	}
+	
+	@Override
+	public String toString() {
+		StringBuffer buf = new StringBuffer("Track[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				buf.append(",");
+			}
+			buf.append("(");
+			buf.append(lats[i]);
+			buf.append(",");
+			buf.append(lons[i]);
+			buf.append(",");
+			buf.append(timestamps[i]);
+			buf.append(",");
+			buf.append(intervals[i]);
+			buf.append(")");
+		}
+		buf.append("]");
+		return buf.toString();
+	}
+}
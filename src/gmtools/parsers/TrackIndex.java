@@ -0,0 +1,420 @@
+package gmtools.parsers;
+
+import gmtools.common.CompressedFiles;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ *
+ * <br/><br/>
+ * An index over a flight track file (text or {@link BinaryTrackFile}), saved alongside it, so
+ * {@link RawFlightTrackData#loadAircraft(boolean, boolean, String, String[], double, double, double, String, long, int, int, long, long, boolean, java.util.Map)}
+ * can go straight to the tracks it needs without parsing the others.
+ * <br/><br/>
+ * For each track (line) it holds where the track is in the file, whether it has a path at all, the bounding box of its points
+ * on the ground, and the range its timestamps can fall in. It doesn't depend on the airport, so the same index works for any
+ * airport and radius: a track can only give a ground movement at an airport if its ground bounding box overlaps the airport's box,
+ * and can only be in a time window if its possible times overlap the window. Both are conservative, so the loader still checks
+ * the tracks it parses.
+ * <br/><br/>
+ * The timestamps of the points depend on which way the loader reads the path (forwards or backwards, decided by where the
+ * airport is), so the index keeps the smallest and largest sums of intervals from either end; the times are the first timestamp
+ * plus these, with the sign the loader gives the intervals.
+ * <br/><br/>
+ * Not available for gzipped text files, which can't be read from an arbitrary position.
+ */
+public class TrackIndex {
+	public static final String EXTENSION = ".idx";
+	private static final int FILE_VERSION = 1;
+	
+	private long sourceLength;
+	private long sourceLastModified;
+	private int valuesPerPoint;
+	
+	/**byte offset of each line in a text file, or the track number in a binary file*/
+	private long[] positions;
+	/**length of each line in bytes (including the line ending); 0 for binary files*/
+	private int[] lengths;
+	private boolean[] hasPath;
+	private int[] points;
+	private long[] firstTimestamps;
+	private long[] minIntervalSums;
+	private long[] maxIntervalSums;
+	/**bounding box of the points with altitude 0; NaN if there are none*/
+	private float[] minLats;
+	private float[] maxLats;
+	private float[] minLons;
+	private float[] maxLons;
+	
+	private int size;
+	
+	private TrackIndex(int capacity) {
+		positions = new long[capacity];
+		lengths = new int[capacity];
+		hasPath = new boolean[capacity];
+		points = new int[capacity];
+		firstTimestamps = new long[capacity];
+		minIntervalSums = new long[capacity];
+		maxIntervalSums = new long[capacity];
+		minLats = new float[capacity];
+		maxLats = new float[capacity];
+		minLons = new float[capacity];
+		maxLons = new float[capacity];
+	}
+	
+	/**@return the name of the index for the given track file*/
+	public static String indexFilename(String trackFilename) {
+		return trackFilename + EXTENSION;
+	}
+	
+	/**@return number of tracks (lines, not counting the header)*/
+	public int size() {
+		return size;
+	}
+	
+	/**@return byte offset of the line in a text file, or the track number in a binary file*/
+	public long getPosition(int track) {
+		return positions[track];
+	}
+	
+	/**@return length of the line in bytes, including the line ending (0 for binary files)*/
+	public int getLength(int track) {
+		return lengths[track];
+	}
+	
+	/**@return false if the loader would find no path for this track (too few columns, or no separators in the path)*/
+	public boolean hasPath(int track) {
+		return hasPath[track];
+	}
+	
+	/**
+	 * @return false if none of the track's points on the ground can be within airportRadius (degrees, as for
+	 * the loader's filtering) of the airport, so the track won't give any ground movements there
+	 */
+	public boolean mayBeNearAirport(int track, double latAirport, double lonAirport, double airportRadius) {
+		if (Float.isNaN(minLats[track])) {
+			return false;
+		}
+		// the box is stored as floats, rounded outwards, so this is still conservative
+		return (maxLats[track] > latAirport - airportRadius) && (minLats[track] < latAirport + airportRadius) &&
+				(maxLons[track] > lonAirport - airportRadius) && (minLons[track] < lonAirport + airportRadius);
+	}
+	
+	/**
+	 * @param snapped, includesIntervals - as passed to the loader, which uses them to decide how intervals become timestamps
+	 * @return false if none of the track's points can have a timestamp between from and to (inclusive)
+	 */
+	public boolean mayOverlap(int track, long from, long to, boolean snapped, boolean includesIntervals) {
+		long earliest;
+		long latest;
+		if (!includesIntervals) { // intervals are all 1
+			earliest = firstTimestamps[track] + 1;
+			latest = firstTimestamps[track] + points[track];
+		} else if (snapped) {
+			earliest = firstTimestamps[track] + minIntervalSums[track];
+			latest = firstTimestamps[track] + maxIntervalSums[track];
+		} else { // raw intervals are negated
+			earliest = firstTimestamps[track] - maxIntervalSums[track];
+			latest = firstTimestamps[track] - minIntervalSums[track];
+		}
+		return (latest >= from) && (earliest <= to);
+	}
+	
+	/**
+	 * @param includesIntervals - whether the track has 4 values per point (lat,lon,altitude,interval) rather than 3
+	 * @return the index for the given track file, loaded if it's there and up to date, built and saved otherwise;
+	 * null if the file is gzipped text (which can't be indexed) or can't be read
+	 */
+	public static TrackIndex loadOrBuild(String trackFilename, boolean includesIntervals) {
+		String indexFilename = indexFilename(trackFilename);
+		int valuesPerPoint = includesIntervals ? 4 : 3;
+		try {
+			TrackIndex rval = load(indexFilename, trackFilename, valuesPerPoint);
+			if (rval != null) {
+				System.out.println("Loaded track index from " + indexFilename);
+				return rval;
+			}
+		} catch (IOException e) {
+			System.err.println("Couldn't read track index from " + indexFilename + ", building it again");
+			e.printStackTrace();
+		}
+		
+		if (CompressedFiles.isGzipped(trackFilename)) {
+			System.out.println("Can't index " + trackFilename + " as it is gzipped; it will be read in full");
+			return null;
+		}
+		
+		System.out.println("Building track index for " + trackFilename);
+		TrackIndex rval;
+		try {
+			rval = build(trackFilename, valuesPerPoint);
+		} catch (IOException e) {
+			System.err.println("Couldn't index " + trackFilename);
+			e.printStackTrace();
+			return null;
+		}
+		
+		try {
+			rval.save(indexFilename);
+			System.out.println("Saved track index (" + rval.size() + " tracks) to " + indexFilename);
+		} catch (IOException e) {
+			System.err.println("Couldn't save track index to " + indexFilename);
+			e.printStackTrace();
+		}
+		return rval;
+	}
+	
+	/**reads every track in the file once, to index it*/
+	static TrackIndex build(String trackFilename, int valuesPerPoint) throws IOException {
+		File source = new File(trackFilename);
+		TrackIndex rval = new TrackIndex(1024);
+		rval.sourceLength = source.length();
+		rval.sourceLastModified = source.lastModified();
+		rval.valuesPerPoint = valuesPerPoint;
+		
+		if (BinaryTrackFile.isBinaryTrackFile(trackFilename)) {
+			BinaryTrackFile file = BinaryTrackFile.open(trackFilename);
+			for (int i = 0; i < file.size(); i++) {
+				BinaryTrackFile.RawTrack track = file.getTrack(i);
+				int n = rval.add(i, 0, track.hasPath(), track.getFirstTimestamp());
+				if (track.hasPath()) {
+					rval.addPath(n, track.getValues(), track.getValues().length);
+				}
+			}
+		} else {
+			rval.buildFromText(trackFilename);
+		}
+		
+		return rval;
+	}
+	
+	/**reads the lines of a text file one at a time, keeping track of their offsets*/
+	private void buildFromText(String trackFilename) throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(trackFilename), 1 << 16)) {
+			byte[] line = new byte[1 << 16];
+			double[] values = new double[1024];
+			long offset = 0;
+			ColumnIndices columnIndices = null;
+			int pathIndex = 0;
+			int firstTimestampIndex = 0;
+			
+			while (true) {
+				// read a line, including its \n
+				int length = 0;
+				int b;
+				while (((b = in.read()) >= 0)) {
+					if (length == line.length) {
+						line = Arrays.copyOf(line, line.length * 2);
+					}
+					line[length++] = (byte)b;
+					if (b == '\n') {
+						break;
+					}
+				}
+				if (length == 0) {
+					break;
+				}
+				
+				FieldTokenizer tokenizer = new FieldTokenizer(ByteBuffer.wrap(line, 0, length), RawFlightTrackData.SEPARATOR.charAt(0), RawFlightTrackData.SEPARATOR_COORDS.charAt(0));
+				tokenizer.nextLine();
+				if (columnIndices == null) { // header
+					String[] header = new String[tokenizer.getFieldCount()];
+					for (int i = 0; i < header.length; i++) {
+						header[i] = tokenizer.getString(i);
+					}
+					columnIndices = new ColumnIndices(header, trackFilename);
+					columnIndices.getColumnIndex(RawFlightTrackData.HEADER_ID, true); // not needed here, but the loader will insist on it
+					pathIndex = columnIndices.getColumnIndex(RawFlightTrackData.HEADER_TRACK, true);
+					firstTimestampIndex = columnIndices.getColumnIndex(RawFlightTrackData.HEADER_FIRSTTIMESTAMP, true);
+				} else {
+					int cols = tokenizer.getFieldCount();
+					boolean path = (cols > Math.max(pathIndex, firstTimestampIndex)) && tokenizer.fieldContains(pathIndex, RawFlightTrackData.SEPARATOR_COORDS.charAt(0));
+					long firstTimestamp = -1;
+					if (path) {
+						try {
+							firstTimestamp = tokenizer.getLong(firstTimestampIndex);
+						} catch (NumberFormatException e) {}
+					}
+					int n = add(offset, length, path, firstTimestamp);
+					if (path) {
+						int count = tokenizer.splitField(pathIndex);
+						if (values.length < count) {
+							values = new double[Math.max(count, values.length * 2)];
+						}
+						for (int i = 0; i < count; i++) {
+							values[i] = tokenizer.getSubfieldDouble(i);
+						}
+						addPath(n, values, count);
+					}
+				}
+				offset += length;
+			}
+			
+			if (columnIndices == null) {
+				throw new IOException("No header found in " + trackFilename);
+			}
+		}
+	}
+	
+	/**@return the index of the new track*/
+	private int add(long position, int length, boolean path, long firstTimestamp) {
+		if (size == positions.length) {
+			int capacity = size * 2;
+			positions = Arrays.copyOf(positions, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			hasPath = Arrays.copyOf(hasPath, capacity);
+			points = Arrays.copyOf(points, capacity);
+			firstTimestamps = Arrays.copyOf(firstTimestamps, capacity);
+			minIntervalSums = Arrays.copyOf(minIntervalSums, capacity);
+			maxIntervalSums = Arrays.copyOf(maxIntervalSums, capacity);
+			minLats = Arrays.copyOf(minLats, capacity);
+			maxLats = Arrays.copyOf(maxLats, capacity);
+			minLons = Arrays.copyOf(minLons, capacity);
+			maxLons = Arrays.copyOf(maxLons, capacity);
+		}
+		positions[size] = position;
+		lengths[size] = length;
+		hasPath[size] = path;
+		firstTimestamps[size] = firstTimestamp;
+		minLats[size] = maxLats[size] = minLons[size] = maxLons[size] = Float.NaN;
+		return size++;
+	}
+	
+	/**works out the ground bounding box and the interval sums from the path values (lat,lon,altitude[,interval],...)*/
+	private void addPath(int track, double[] values, int count) {
+		int n = count / valuesPerPoint;
+		points[track] = n;
+		
+		double minLat = Double.POSITIVE_INFINITY;
+		double maxLat = Double.NEGATIVE_INFINITY;
+		double minLon = Double.POSITIVE_INFINITY;
+		double maxLon = Double.NEGATIVE_INFINITY;
+		long total = 0;
+		for (int i = 0; i < n; i++) {
+			int p = i * valuesPerPoint;
+			if (values[p + 2] == 0) {
+				minLat = Math.min(minLat, values[p]);
+				maxLat = Math.max(maxLat, values[p]);
+				minLon = Math.min(minLon, values[p + 1]);
+				maxLon = Math.max(maxLon, values[p + 1]);
+			}
+			if (valuesPerPoint > 3) {
+				total += (int)values[p + 3]; // as the loader does
+			}
+		}
+		if (minLat <= maxLat) {
+			minLats[track] = roundDown(minLat);
+			maxLats[track] = roundUp(maxLat);
+			minLons[track] = roundDown(minLon);
+			maxLons[track] = roundUp(maxLon);
+		}
+		
+		// sums of intervals from the start (reading forwards) and from the end (reading backwards), including the point itself
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		if (valuesPerPoint > 3) {
+			long forwards = 0;
+			for (int i = 0; i < n; i++) {
+				int interval = (int)values[(i * valuesPerPoint) + 3];
+				forwards += interval;
+				long backwards = total - forwards + interval;
+				min = Math.min(min, Math.min(forwards, backwards));
+				max = Math.max(max, Math.max(forwards, backwards));
+			}
+		}
+		minIntervalSums[track] = (n > 0) ? min : 0;
+		maxIntervalSums[track] = (n > 0) ? max : 0;
+	}
+	
+	private static float roundDown(double d) {
+		float f = (float)d;
+		return (f > d) ? Math.nextAfter(f, Double.NEGATIVE_INFINITY) : f;
+	}
+	
+	private static float roundUp(double d) {
+		float f = (float)d;
+		return (f < d) ? Math.nextUp(f) : f;
+	}
+	
+	public void save(String filename) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(filename))))) {
+			out.writeInt(FILE_VERSION);
+			out.writeLong(sourceLength);
+			out.writeLong(sourceLastModified);
+			out.writeInt(valuesPerPoint);
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeLong(positions[i]);
+				out.writeInt(lengths[i]);
+				out.writeBoolean(hasPath[i]);
+				out.writeInt(points[i]);
+				out.writeLong(firstTimestamps[i]);
+				out.writeLong(minIntervalSums[i]);
+				out.writeLong(maxIntervalSums[i]);
+				out.writeFloat(minLats[i]);
+				out.writeFloat(maxLats[i]);
+				out.writeFloat(minLons[i]);
+				out.writeFloat(maxLons[i]);
+			}
+		}
+	}
+	
+	/**
+	 * loads an index written by {@link #save(String)}
+	 * @return null if the index doesn't exist, or the track file has changed since it was made, or it was made for a different number of values per point
+	 */
+	public static TrackIndex load(String filename, String trackFilename, int valuesPerPoint) throws IOException {
+		File source = new File(trackFilename);
+		if (!new File(filename).exists() || !source.exists()) {
+			return null;
+		}
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(filename))))) {
+			if ((in.readInt() != FILE_VERSION) || (in.readLong() != source.length()) || (in.readLong() != source.lastModified()) || (in.readInt() != valuesPerPoint)) {
+				return null;
+			}
+			
+			int size = in.readInt();
+			TrackIndex rval = new TrackIndex(Math.max(size, 1));
+			rval.sourceLength = source.length();
+			rval.sourceLastModified = source.lastModified();
+			rval.valuesPerPoint = valuesPerPoint;
+			rval.size = size;
+			for (int i = 0; i < size; i++) {
+				rval.positions[i] = in.readLong();
+				rval.lengths[i] = in.readInt();
+				rval.hasPath[i] = in.readBoolean();
+				rval.points[i] = in.readInt();
+				rval.firstTimestamps[i] = in.readLong();
+				rval.minIntervalSums[i] = in.readLong();
+				rval.maxIntervalSums[i] = in.readLong();
+				rval.minLats[i] = in.readFloat();
+				rval.maxLats[i] = in.readFloat();
+				rval.minLons[i] = in.readFloat();
+				rval.maxLons[i] = in.readFloat();
+			}
+			return rval;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "TrackIndex[" + size + " tracks, " + valuesPerPoint + " values per point]";
+	}
+}
@@ -1,30 +1,28 @@
 package gmtools.snaptracks;
 
 import gmtools.common.ArrayTools;
+import gmtools.common.CompressedFiles;
 import gmtools.common.Geography;
-import gmtools.common.KMLUtils;
+import gmtools.common.LocalGeodesy;
 import gmtools.common.Sets;
 import gmtools.parsers.ColumnIndices;
 import gmtools.parsers.RawFlightTrackData;
+import gmtools.parsers.Track;
 import gmtools.tools.SnapTracks;
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
-
-import uk.me.jstott.jcoord.LatLng;
-import de.micromata.opengis.kml.v_2_2_0.Document;
-import de.micromata.opengis.kml.v_2_2_0.Kml;
-import de.micromata.opengis.kml.v_2_2_0.KmlFactory;
-import de.micromata.opengis.kml.v_2_2_0.LineString;
-import de.micromata.opengis.kml.v_2_2_0.Style;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
@@ -33,22 +31,51 @@ import de.micromata.opengis.kml.v_2_2_0.Style;
  * are available at https://github.com/gm-tools/gm-tools/
  */
 public class CleaningRawDataOutliers {
+	/**how the points to remove from a track are found*/
+	public enum Engine { DP, COMBINATORIAL }
+	
 	/**
 	 * Originally conceived as a separate tool, this is now called from SnapTracks
 	 * usage: CleaningRawFR24DataOutliers inFile outFile [args...]
+	 * (inFile is decompressed as it is read if it ends with .gz, and outFile is compressed if it ends with .gz)
 	 * args:
 	 *     -m=0.8 : maximum fraction of points in a track that we'll try to fix (more than this and we'll give up) (default=0.8)
 	 *     -M=15 : maximum number of points in a track that we'll try to fix (more than this and we'll give up) (default=unlimited) (over 30 seems very slow - an hour or two to process the track, plus several GB of heap needed to store the intermediate results)
 	 *     -d=n : max distance from airport in km (default is 10)
 	 *     -alat=x : lat of airport
 	 *     -alon=y : lon of airport
+	 *     -jcoord : work out distances and angles with jcoord throughout, rather than a faster local approximation around the airport (see LocalGeodesy)
+	 *     -threads=4 : number of tracks to clean at once; the output is still in the same order as the input (default is whatever is returned by JVM for Runtime.getRuntime().availableProcessors(); 1 if debugging)
+	 *     -engine=combinatorial : how to find the fewest points to remove from a track with bad points: dp (a dynamic programme over the points kept; polynomial time) or combinatorial (tries subsets of the bad points; exponential time, the original method) (default=combinatorial). dp may remove any points, not just those flagged as bad, so it can give a different cleaned track
+	 *     -nokml : don't write outFile_Cleaned.kml, showing each track before and after cleaning (default is to write it, a track at a time as they are cleaned)
 	 *     Not yet implemented: -speeds=a:b,c:d,e:f... : pairs of values defining speed limits for turns. These are MaxTurningAngleDegrees:MaxSpeedMperS
 	 */
 	public static void main(String[] args) {
+		clean(args, null);
+	}
+	
+	/**
+	 * as {@link #main(String[])}, but also putting the header and each cleaned track line on a queue as they are cleaned
+	 * (in the same order as the output file), then {@link RawFlightTrackData#END_OF_LINES}, so they can be loaded without being written out first
+	 * @param args - as for main, except that outFile can be null, in which case no output file or KML are written
+	 * @param cleanedLines - can be null
+	 */
+	public static void clean(String[] args, BlockingQueue<String> cleanedLines) {
+		try {
+			cleanFile(args, cleanedLines);
+		} finally {
+			if (cleanedLines != null) { // even if the cleaning failed, so whoever's reading the queue isn't left waiting
+				try {
+					cleanedLines.put(RawFlightTrackData.END_OF_LINES);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+	
+	private static void cleanFile(String[] args, BlockingQueue<String> cleanedLines) {
 		// first, read file
-		List<List<PointInTrack>> flightTracksOriginal = new ArrayList<List<PointInTrack>>();
-		List<List<PointInTrack>> flightTracksUpdated = new ArrayList<List<PointInTrack>>();
-		List<String> flightTracksComments = new ArrayList<String>();
 		String fileNameIn = null;
 		String fileNameOut = null;
 
@@ -60,6 +87,10 @@ public class CleaningRawDataOutliers {
 		double lonAirport = Double.NaN;
 		double maxDistanceFromAirportInKM = 10;
 		double maxAltitudeInM = 2000; // points with altitude higher than this will be omitted from the output
+		boolean useJcoord = false;
+		Engine engine = Engine.COMBINATORIAL;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		boolean writeKML = true;
 		
 		if (args.length < 2) {
 			System.err.println("usage: CleaningRawDataOutliers inFile outFile [args...]");
@@ -83,6 +114,14 @@ public class CleaningRawDataOutliers {
 					maxBadPoints = Integer.parseInt(a.substring(3));
 				} else if (a.startsWith("-m=")) {
 					maxFractionBad = Double.parseDouble(a.substring(3));
+				} else if (a.equals("-jcoord")) {
+					useJcoord = true;
+				} else if (a.startsWith("-threads=")) {
+					numThreads = Integer.parseInt(a.substring(9));
+				} else if (a.startsWith("-engine=")) {
+					engine = Engine.valueOf(a.substring(8).toUpperCase());
+				} else if (a.equals("-nokml")) {
+					writeKML = false;
 				}
 			} catch (Exception e) {
 				System.err.println("Error parsing argument " + a);
@@ -102,14 +141,24 @@ public class CleaningRawDataOutliers {
 		
 		System.out.println("Cleaning with params:");
 		System.out.println("  Input file: " + fileNameIn);
-		System.out.println("  Output file: " + fileNameOut);
+		System.out.println("  Output file: " + (fileNameOut != null ? fileNameOut : "none"));
+		writeKML = writeKML && (fileNameOut != null);
+		System.out.println("  KML: " + (writeKML ? fileNameOut + "_Cleaned.kml" : "none"));
 		System.out.println("  Airport lat, lon: " + latAirport + ", " + lonAirport);
 		System.out.println("  Max distance from airport KM: " + maxDistanceFromAirportInKM);
 		System.out.println("  Max bad points: " + maxBadPoints);
 		System.out.println("  Max fraction bad: " + maxFractionBad);
+		System.out.println("  Geodesy: " + (useJcoord ? "jcoord" : "local"));
+		System.out.println("  Engine: " + engine);
+		if (debug) {
+			numThreads = 1; // keep the debugging output for each track together
+		}
+		numThreads = Math.max(1, numThreads);
+		System.out.println("  Threads: " + numThreads);
 		System.out.println();
 		
-		LatLng llMan = new LatLng(latAirport, lonAirport);
+		Geography.setLocalGeodesy(useJcoord ? null : new LocalGeodesy(latAirport, lonAirport)); // no effect when run from SnapTracks, which has already chosen
+		final TrackCleaner cleaner = new TrackCleaner(latAirport, lonAirport, maxDistanceFromAirportInKM, maxAltitudeInM, elementsPerPointInTrack, engine, maxBadPoints, maxFractionBad, writeKML, debug);
 		int countRaw = 0;
 		int countCleaned = 0;
 		int countPointsRemoteToAirportRemoved = 0;
@@ -118,150 +167,76 @@ public class CleaningRawDataOutliers {
 		int countEmptyTracks = 0;
 		int countTotalInOutput = 0;
 		
+		// tracks are cleaned independently on a pool of threads; the results are taken in the order the tracks were read, 
+		// so the output and counts are the same as cleaning them one at a time (and are only touched on this thread)
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		int maxPending = numThreads * 64; // enough to keep the threads busy while waiting for a slow track, without holding the whole file
+		Deque<Future<CleanedTrack>> pending = new ArrayDeque<Future<CleanedTrack>>(maxPending + 1);
 		try {
-			BufferedReader in = new BufferedReader(new FileReader(fileNameIn));
-			PrintStream out = new PrintStream(new FileOutputStream(fileNameOut));
+			BufferedReader in = CompressedFiles.openReader(fileNameIn);
+			PrintStream out = (fileNameOut != null) ? new PrintStream(CompressedFiles.openOutputStream(fileNameOut)) : null;
+			CleaningKMLWriter kml = writeKML ? new CleaningKMLWriter(fileNameOut + "_Cleaned.kml") : null;
 			String line = in.readLine();
-			out.println(line); // copy header to output file
+			// copy header to output
+			if (out != null) {
+				out.println(line);
+			}
+			if (cleanedLines != null) {
+				cleanedLines.put(line);
+			}
 			String[] header = line.split(RawFlightTrackData.SEPARATOR);
-			ColumnIndices columnIndices = new ColumnIndices(header, fileNameIn);
-			while ((line = in.readLine()) != null) {
-				countRaw++;
-				//debug = (flightTracksOriginal.size() == 1488);
-				if (debug) { System.out.print("AC" + flightTracksOriginal.size()); System.out.flush(); }
-				String[] cols = line.split(RawFlightTrackData.SEPARATOR);
-				String id = cols[columnIndices.getColumnIndex(RawFlightTrackData.HEADER_ID, false)];
-				id = id != null ? id : "Track" + countRaw;
+			cleaner.setColumnIndices(new ColumnIndices(header, fileNameIn));
+			boolean endOfFile = false;
+			while (!endOfFile) {
+				final String rawLine = in.readLine();
+				if (rawLine == null) {
+					endOfFile = true;
+				} else {
+					final int trackNumber = countRaw++;
+					pending.add(pool.submit(new Callable<CleanedTrack>() {
+						@Override
+						public CleanedTrack call() {
+							return cleaner.clean(trackNumber, rawLine);
+						}
+					}));
+				}
 				
-				if (debug) System.out.println(" (" + id + ")");
-								
-				boolean trackGood;
-				String[] track = cols[columnIndices.getColumnIndex(RawFlightTrackData.HEADER_TRACK, true)].split(RawFlightTrackData.SEPARATOR_COORDS);
-				List<PointInTrack> trackOriginal = new ArrayList<PointInTrack>(track.length / elementsPerPointInTrack);
-				List<PointInTrack> trackUpdated = new ArrayList<PointInTrack>(track.length / elementsPerPointInTrack);
-				flightTracksOriginal.add(trackOriginal);
-				flightTracksUpdated.add(trackUpdated);
-
-				String comment;
-				if (track.length >= elementsPerPointInTrack) {
-					boolean rawTrackUnaltered = true;
-					for (int i = 0; i < track.length; i+=elementsPerPointInTrack) {
-						double altitude = Double.parseDouble(track[i+2]);
-						if (altitude < maxAltitudeInM) { // used to just look for zero altitude - no longer checked - we want the altitude to distinguish separate visits by the same aircraft 
-							LatLng point = new LatLng(Double.parseDouble(track[i]), Double.parseDouble(track[i+1]));
-							double time = -1 * Double.parseDouble(track[i+3]);
-							PointInTrack pit = new PointInTrack(point, time, altitude);
-							
-							if (Geography.distance(point, llMan) < (maxDistanceFromAirportInKM * 1000.0)) { // within 10km of airport (this means we omit data for GM at other airports)
-								trackOriginal.add(pit);
-							} else { // end of check for distance from airport
-								rawTrackUnaltered = false; // we've dropped some points
-							}
-						} // end of check for altitude
-					} // end of loop over elements in track
-					
-					if (!rawTrackUnaltered) {
+				// write out the tracks that are finished, in order (all of them once the whole file has been read)
+				while (!pending.isEmpty() && (endOfFile || (pending.size() > maxPending) || pending.peek().isDone())) {
+					CleanedTrack cleaned = pending.remove().get();
+					switch (cleaned.outcome) {
+						case GOOD: countGoodTracks++; break;
+						case CLEANED: countCleaned++; break;
+						case UNCLEANABLE: countUncleanable++; break;
+						case EMPTY: countEmptyTracks++; break;
+					}
+					if (cleaned.pointsRemoteToAirportRemoved) {
 						countPointsRemoteToAirportRemoved++;
 					}
 					
-					// step 1-6.
-					ExtremePointDecisionCache cache = new ExtremePointDecisionCache();
-					List<Integer> badPointsInOriginal = getIndicesWithBadSpeedAndAngle(trackOriginal, cache, debug);
-					if (badPointsInOriginal.isEmpty()) {
-						if (debug) System.out.println("All good");
-						comment = "good-no cleaning";
-						trackUpdated.addAll(trackOriginal);
-						countGoodTracks++;
-						trackGood = true;
-					} else {
-						if (debug) System.out.println("AC" + (flightTracksOriginal.size()-1) + " (" + id + ")" + " bad points:" + ArrayTools.toString(badPointsInOriginal.toArray()));
-						trackGood = false;
-						
-						// step 7 onward.
-						// now, we'll try removing the bad points and see which removals are needed to make a route 
-						// that complies with the speed/angle limits
-						// we slowly increase the number of points being removed to avoid removing any unnecessarily
-						boolean done = false;
-						List<Integer> badPoints = new ArrayList<Integer>(badPointsInOriginal);
-						List<PointInTrack> badTrack = new ArrayList<PointInTrack>(trackOriginal);
-						while (!done && !badPoints.isEmpty() && (badPoints.size() < Math.min(maxBadPoints, (badTrack.size() * maxFractionBad)))) { // stop if we have found a valid track, or if there are too many bad points (>80% of points are bad)
-							if (debug) System.out.println("AC" + (flightTracksOriginal.size()-1) + " (" + id + ")" + " still has " + badPoints.size() + " bad points out of " + badTrack.size());
-							for (int numberToRemove = 1; !done && (numberToRemove <= badPoints.size()); numberToRemove++) {
-								if (debug) System.out.println(numberToRemove + "/" + badPoints.size());
-								// get the possible indices to remove
-								int[][] allToRemove = Sets.nChooseKSets(badPoints.size(), numberToRemove);
-								
-								for (int removalIndex = 0; !done && (removalIndex < allToRemove.length); removalIndex++) {
-									int[] toRemove = allToRemove[removalIndex]; // these will be indices in to the badPoints list
-									
-									// step 13. generate a new track with the appropriate points removed
-									if (debug) System.out.print("removing:");
-									int currentIndexInPointsToRemove = 0;
-									for (int i = 0; i < badTrack.size(); i++) {
-										int indexToRemove = badPoints.get(toRemove[currentIndexInPointsToRemove]);
-										if (indexToRemove == i) { // done this way for speed, as toRemove will be in ascending order
-											if (debug) System.out.print(" " + i);
-											// if we've dropped a point, add to the time interval for the next point so the speed in the gap is still right
-											// ("next point" in time is actually previous point in the list in FR24 format)
-											if (trackUpdated.size() > 0) { // don't do this for the last point in time (ie first point in the list)
-												trackUpdated.get(trackUpdated.size() - 1).timeSinceLastPoint += badTrack.get(i).timeSinceLastPoint;
-											} // doesn't matter if it was the last point (first point in the list) as there is no following point to update the time for
-											
-											currentIndexInPointsToRemove = Math.min(toRemove.length-1, currentIndexInPointsToRemove+1);
-										} else {
-											trackUpdated.add(badTrack.get(i).copyOf()); // need copy of to get original interval back
-										}
-									}
-									if (debug) System.out.println();
-									
-									// step 14. test it
-									List<Integer> badPointsUpdated = getIndicesWithBadSpeedAndAngle(trackUpdated, cache, debug);
-									
-									// steps 15-16. if it's all ok, keep
-									if (badPointsUpdated.isEmpty()) {
-										done = true;
-									} else { // otherwise, clear updated track and try again, unless this is the last one, in which case we'll keep the results of removing all points (this is checked in the last iteration), and update the route and list of bad points for trying again
-										if (numberToRemove == badPoints.size()) {
-											badPoints = badPointsUpdated;
-											badTrack = new ArrayList<PointInTrack>(trackUpdated);
-										}
-										
-										trackUpdated.clear();
-									}
-								} // end of loop over possible points to remove
-							} // end of loop over increasing number of points to remove
-						} // end of bad point fixing loop
-						
-						if (done) {
-							if (debug) System.out.println("FIXED");
-							comment = "fixed";
-							countCleaned++;
-							trackGood = true;
-						} else {
-							if (debug) System.out.println("NO FIXES FOUND");
-							countUncleanable++;
-							comment = "no fix found";
+					if (kml != null) {
+						kml.writeTrack(cleaned.comment, cleaned.original, cleaned.updated);
+					}
+					
+					if (cleaned.outputLine != null) {
+						countTotalInOutput++;
+						if (out != null) {
+							out.println(cleaned.outputLine);
 						}
-					} // end of bad point fixing
-				} else { // end of check for elements in track
-					countEmptyTracks++;
-					trackGood = false;
-					comment = "too few elements in track";
-				}
-				comment = "(" + id + ") " + comment;
-				flightTracksComments.add(comment);
-				
-				if (trackGood) {
-					cols[columnIndices.getColumnIndex(RawFlightTrackData.HEADER_TRACK, true)] = trackToCoordsString(trackUpdated);
-					countTotalInOutput++;
-					out.println(ArrayTools.toString(cols, RawFlightTrackData.SEPARATOR));
+						if (cleanedLines != null) {
+							cleanedLines.put(cleaned.outputLine);
+						}
+					}
 				}
 			} // end of loop over file
 			
 			in.close();
-			out.close();
-			
-			tracksToKML(fileNameOut + "_Cleaned.kml", flightTracksOriginal, flightTracksUpdated, flightTracksComments);
+			if (out != null) {
+				out.close();
+			}
+			if (kml != null) {
+				kml.close();
+			}
 			
 			System.out.println("Cleaning done.");
 			System.out.println("Raw tracks read:" + countRaw);
@@ -273,81 +248,437 @@ public class CleaningRawDataOutliers {
 			System.out.println("Tracks written to output:" + countTotalInOutput);
 		} catch (IOException e) {
 			e.printStackTrace();
+		} catch (InterruptedException | ExecutionException e) {
+			System.err.println("Problem cleaning " + fileNameIn + ":");
+			e.printStackTrace();
+			System.exit(1);
+		} finally {
+			pool.shutdownNow();
 		}
 	}
 	
-	private static String trackToCoordsString(List<PointInTrack> track) {
-		StringBuffer buf = new StringBuffer();
+	/**what happened to one track*/
+	private enum Outcome { GOOD, CLEANED, UNCLEANABLE, EMPTY }
+	
+	/**the result of cleaning one line of the input file*/
+	private static class CleanedTrack {
+		private Outcome outcome;
+		private boolean pointsRemoteToAirportRemoved;
+		private String comment;
+		/**for the KML; only the points on the ground, and null if there's no KML*/
+		private Track original;
+		private Track updated;
+		/**the line to write to the output file; null if the track is dropped*/
+		private String outputLine;
+	}
+	
+	/**cleans the tracks from each line of a file; safe to use from several threads at once, once the column indices are set*/
+	private static class TrackCleaner {
+		private final double latAirport;
+		private final double lonAirport;
+		private final double maxDistanceFromAirportInKM;
+		private final double maxAltitudeInM;
+		private final int elementsPerPointInTrack;
+		private final Engine engine;
+		private final int maxBadPoints;
+		private final double maxFractionBad;
+		private final boolean keepGroundPoints;
+		private final boolean debug;
+		private ColumnIndices columnIndices;
 		
-		boolean first = true;
-		for (PointInTrack p : track) {
-			if (first) {
-				first = false;
-			} else {
-				buf.append(RawFlightTrackData.SEPARATOR_COORDS);
+		/**@param keepGroundPoints - true to fill in {@link CleanedTrack#original} and {@link CleanedTrack#updated}, for the KML*/
+		public TrackCleaner(double latAirport, double lonAirport, double maxDistanceFromAirportInKM, double maxAltitudeInM, int elementsPerPointInTrack, Engine engine, int maxBadPoints, double maxFractionBad, boolean keepGroundPoints, boolean debug) {
+			this.latAirport = latAirport;
+			this.lonAirport = lonAirport;
+			this.maxDistanceFromAirportInKM = maxDistanceFromAirportInKM;
+			this.maxAltitudeInM = maxAltitudeInM;
+			this.elementsPerPointInTrack = elementsPerPointInTrack;
+			this.engine = engine;
+			this.maxBadPoints = maxBadPoints;
+			this.maxFractionBad = maxFractionBad;
+			this.keepGroundPoints = keepGroundPoints;
+			this.debug = debug;
+		}
+		
+		public void setColumnIndices(ColumnIndices columnIndices) {
+			this.columnIndices = columnIndices;
+		}
+		
+		/**@param trackNumber - position of the line in the file, from 0 (for the debugging output)*/
+		public CleanedTrack clean(int trackNumber, String line) {
+			CleanedTrack rval = new CleanedTrack();
+			if (debug) { System.out.print("AC" + trackNumber); System.out.flush(); }
+			String[] cols = line.split(RawFlightTrackData.SEPARATOR);
+			String id = cols[columnIndices.getColumnIndex(RawFlightTrackData.HEADER_ID, false)];
+			id = id != null ? id : "Track" + (trackNumber + 1);
+			
+			if (debug) System.out.println(" (" + id + ")");
+			
+			boolean trackGood;
+			String[] track = cols[columnIndices.getColumnIndex(RawFlightTrackData.HEADER_TRACK, true)].split(RawFlightTrackData.SEPARATOR_COORDS);
+			Track trackOriginal = new Track(track.length / elementsPerPointInTrack);
+			Track trackUpdated = null; // stays null if the track can't be cleaned
+			
+			String comment;
+			if (track.length >= elementsPerPointInTrack) {
+				boolean rawTrackUnaltered = true;
+				for (int i = 0; i < track.length; i+=elementsPerPointInTrack) {
+					double altitude = Double.parseDouble(track[i+2]);
+					if (altitude < maxAltitudeInM) { // used to just look for zero altitude - no longer checked - we want the altitude to distinguish separate visits by the same aircraft 
+						double lat = Double.parseDouble(track[i]);
+						double lon = Double.parseDouble(track[i+1]);
+						int interval = -1 * (int)Double.parseDouble(track[i+3]); // parse as double and cast to int, as the loader does
+						
+						if (Geography.distance(lat, lon, latAirport, lonAirport) < (maxDistanceFromAirportInKM * 1000.0)) { // within 10km of airport (this means we omit data for GM at other airports)
+							trackOriginal.add(lat, lon, altitude, 0, interval); // the cleaner only needs the intervals, not the timestamps
+						} else { // end of check for distance from airport
+							rawTrackUnaltered = false; // we've dropped some points
+						}
+					} // end of check for altitude
+				} // end of loop over elements in track
+				
+				rval.pointsRemoteToAirportRemoved = !rawTrackUnaltered;
+				
+				// step 1-6.
+				BadPointSet badPointSet = new BadPointSet(trackOriginal, new ExtremePointDecisionCache(), debug);
+				List<Integer> badPointsInOriginal = badPointSet.getBadPoints();
+				if (badPointsInOriginal.isEmpty()) {
+					if (debug) System.out.println("All good");
+					comment = "good-no cleaning";
+					trackUpdated = trackOriginal;
+					rval.outcome = Outcome.GOOD;
+					trackGood = true;
+				} else {
+					if (debug) System.out.println("AC" + trackNumber + " (" + id + ")" + " bad points:" + ArrayTools.toString(badPointsInOriginal.toArray()));
+					trackGood = false;
+					
+					// step 7 onward.
+					String label = "AC" + trackNumber + " (" + id + ")";
+					if (engine == Engine.COMBINATORIAL) {
+						trackUpdated = removeOutliersCombinatorial(badPointSet, maxBadPoints, maxFractionBad, label, debug);
+					} else {
+						trackUpdated = removeOutliersDP(trackOriginal, badPointSet.getCache(), maxBadPoints, maxFractionBad, label, debug);
+					}
+					
+					if (trackUpdated != null) {
+						if (debug) System.out.println("FIXED");
+						comment = "fixed";
+						rval.outcome = Outcome.CLEANED;
+						trackGood = true;
+					} else {
+						if (debug) System.out.println("NO FIXES FOUND");
+						rval.outcome = Outcome.UNCLEANABLE;
+						comment = "no fix found";
+					}
+				} // end of bad point fixing
+			} else { // end of check for elements in track
+				rval.outcome = Outcome.EMPTY;
+				trackGood = false;
+				comment = "too few elements in track";
+			}
+			rval.comment = "(" + id + ") " + comment;
+			if (keepGroundPoints) {
+				rval.original = groundPoints(trackOriginal);
+				rval.updated = (trackUpdated != null) ? groundPoints(trackUpdated) : new Track(0);
 			}
 			
-			buf.append(p.getLatLng().getLat());
-			buf.append(RawFlightTrackData.SEPARATOR_COORDS);
-			buf.append(p.getLatLng().getLng());
-			buf.append(RawFlightTrackData.SEPARATOR_COORDS);
-			buf.append(p.getAltitude()); // altitude
-			buf.append(RawFlightTrackData.SEPARATOR_COORDS);
-			buf.append(-1 * p.getTimeSinceLastPoint()); // convert back to negatives for consistency with original data 
+			if (trackGood) {
+				cols[columnIndices.getColumnIndex(RawFlightTrackData.HEADER_TRACK, true)] = trackToCoordsString(trackUpdated);
+				rval.outputLine = ArrayTools.toString(cols, RawFlightTrackData.SEPARATOR);
+			}
+			
+			return rval;
 		}
+	}
+	
+	/**
+	 * steps 7-16: tries removing every subset of the bad points, smallest subsets first, until the track passes the checks; 
+	 * if none does, all the bad points are removed and the search starts again with the points that are now bad.
+	 * The number of subsets grows exponentially with the number of bad points; see {@link #removeOutliersDP} for a faster alternative.
+	 * @param track - the track to clean; points are removed from it
+	 * @return the cleaned track (with intervals adjusted for the points removed), or null if no track passing the checks was found
+	 */
+	private static Track removeOutliersCombinatorial(BadPointSet track, int maxBadPoints, double maxFractionBad, String label, boolean debug) {
+		// now, we'll try removing the bad points and see which removals are needed to make a route 
+		// that complies with the speed/angle limits
+		// we slowly increase the number of points being removed to avoid removing any unnecessarily
+		boolean done = false;
+		List<Integer> badPoints = track.getBadPoints(); // indices in the original track
+		while (!done && !badPoints.isEmpty() && (badPoints.size() < Math.min(maxBadPoints, (track.size() * maxFractionBad)))) { // stop if we have found a valid track, or if there are too many bad points (>80% of points are bad)
+			if (debug) System.out.println(label + " still has " + badPoints.size() + " bad points out of " + track.size());
+			for (int numberToRemove = 1; !done && (numberToRemove <= badPoints.size()); numberToRemove++) {
+				if (debug) System.out.println(numberToRemove + "/" + badPoints.size());
+				// get the possible indices to remove
+				int[][] allToRemove = Sets.nChooseKSets(badPoints.size(), numberToRemove);
+				
+				for (int removalIndex = 0; !done && (removalIndex < allToRemove.length); removalIndex++) {
+					int[] toRemove = allToRemove[removalIndex]; // these will be indices in to the badPoints list
+					
+					// step 13. remove the points (only their neighbours need checked again)
+					if (debug) System.out.print("removing:");
+					for (int r : toRemove) {
+						if (debug) System.out.print(" " + badPoints.get(r));
+						track.remove(badPoints.get(r));
+					}
+					if (debug) System.out.println();
+					
+					// steps 14-16. if it's all ok, keep
+					if (track.getBadCount() == 0) {
+						done = true;
+					} else if (numberToRemove == badPoints.size()) { // this is the last one, so we'll keep the results of removing all points, and update the list of bad points for trying again
+						badPoints = track.getBadPoints();
+					} else { // otherwise, put the points back and try again
+						for (int r = toRemove.length - 1; r >= 0; r--) {
+							track.restore(badPoints.get(toRemove[r]));
+						}
+					}
+				} // end of loop over possible points to remove
+			} // end of loop over increasing number of points to remove
+		} // end of bad point fixing loop
 		
-		return buf.toString();
+		return done ? track.getTrack() : null;
 	}
 	
-	/**assumes that points are in FR24 order - latest first, going back in time, with timings on each point being time from previous point (so the next point in the list)*/
-	private static List<Integer> getIndicesWithBadSpeedAndAngle(List<PointInTrack> points, ExtremePointDecisionCache cache, boolean debug) {
-		List<Integer> rval = new ArrayList<Integer>();
+	/**
+	 * steps 7-16 in polynomial time: finds the longest subsequence of the track that passes the checks in 
+	 * {@link BadPointSet}, so as few points as possible are removed (any points, not just those flagged as bad).
+	 * Whether a subsequence passes only depends on each run of three consecutive points kept, and on the first and last three,
+	 * so the search is a dynamic programme over the last two points kept: O(n.w^2) checks, where w is the most consecutive
+	 * points allowed to be removed. w starts small and is doubled until the best track found removes no more than w+1 points 
+	 * (any track removing a longer run would remove at least that many), or until it covers the most points that we'll remove.
+	 * @return the cleaned track (with intervals adjusted for the points removed), or null if no track passing the checks was found
+	 */
+	private static Track removeOutliersDP(Track trackOriginal, ExtremePointDecisionCache cache, int maxBadPoints, double maxFractionBad, String label, boolean debug) {
+		int n = trackOriginal.size();
+		int maxRemoved = Math.min(n - 3, (int)Math.ceil(Math.min(maxBadPoints, n * maxFractionBad)) - 1); // as for the bad points in the combinatorial search; always keep 3 so the checks are made
+		if (maxRemoved < 1) {
+			return null;
+		}
 		
-		if (points.size() < 3) { // not much to say if there are this few points
-			return rval;
+		boolean[] kept = null;
+		int removed = -1;
+		for (int maxRun = 1; ; maxRun = Math.min(maxRun * 2, maxRemoved)) {
+			boolean[] keptForRun = longestValidSubsequence(trackOriginal, timeTo(trackOriginal), maxRun);
+			int removedForRun = -1;
+			if (keptForRun != null) {
+				removedForRun = 0;
+				for (boolean k : keptForRun) {
+					removedForRun += k ? 0 : 1;
+				}
+				if ((kept == null) || (removedForRun < removed)) {
+					kept = keptForRun;
+					removed = removedForRun;
+				}
+			}
+			if (debug) System.out.println(label + " longest run of removed points " + maxRun + ": " + (keptForRun == null ? "no valid track" : removedForRun + " points removed"));
+			
+			if (((kept != null) && (removed <= maxRun + 1)) || (maxRun >= maxRemoved)) {
+				break;
+			}
 		}
 		
-		// check first element
-		if ((points.get(0).altitude == 0) && endPointTooExtreme(points.get(0).getLatLng(), points.get(1).getLatLng(), points.get(2).getLatLng(), debug)) {
-			rval.add(0);
+		if ((kept == null) || (removed > maxRemoved)) {
+			return null;
 		}
 		
-		for (int i = 1; i < points.size() - 1; i++) {
-			PointInTrack prev = points.get(i - 1);
-			PointInTrack cur = points.get(i);
-			PointInTrack next = points.get(i + 1);
-			if ((prev.getAltitude() == 0) && (cur.getAltitude() == 0) && (next.getAltitude() == 0)) { // only perform checks on points with zero altitude (landing/taking off ACs will be going much faster)
-				Boolean decision = debug ? null : cache.getDecision(prev, cur, next);
-			
-				if (decision == null) {
-					if (debug) System.out.print(i+":");
-					decision = angleAndSpeedAroundPointTooExtreme(prev.getLatLng(), cur.getLatLng(), next.getLatLng(), prev.getTimeSinceLastPoint(), cur.getTimeSinceLastPoint(), debug);
-					cache.addDecision(prev, cur, next, decision.booleanValue());
+		// steps 13-14. generate a new track with the points removed, and test it (it should pass; this just keeps the two engines honest)
+		BadPointSet track = new BadPointSet(trackOriginal, cache, debug);
+		if (debug) System.out.print("removing:");
+		for (int i = 0; i < n; i++) {
+			if (!kept[i]) {
+				if (debug) System.out.print(" " + i);
+				track.remove(i);
+			}
+		}
+		if (debug) System.out.println();
+		
+		if (track.getBadCount() > 0) {
+			System.err.println(label + ": cleaned track unexpectedly failed the checks; discarding it");
+			return null;
+		}
+		
+		return track.getTrack();
+	}
+	
+	/**
+	 * Each run of three points is only checked once here, so the decisions aren't cached (there would be O(n.w^2) of them)
+	 * @param timeTo - from {@link #timeTo(Track)}
+	 * @param maxRun - most consecutive points that can be removed (including at the start and end)
+	 * @return which points to keep for the longest subsequence (of at least 3 points) that passes the checks, or null if there is none
+	 */
+	private static boolean[] longestValidSubsequence(Track points, double[] timeTo, int maxRun) {
+		int n = points.size();
+		int maxStep = maxRun + 1; // between consecutive points kept
+		
+		// for the pair of points j,k last kept (k - maxStep <= j < k): the most points that can be kept up to k, 
+		// and the point kept before j (encoded as -1 - i if j was the first point kept, i.e. only j and k were kept so far)
+		int[][] longest = new int[n][maxStep];
+		int[][] before = new int[n][maxStep];
+		
+		int bestLength = 0;
+		int bestJ = -1;
+		int bestK = -1;
+		int bestL = -1;
+		boolean bestFromFirst = false;
+		for (int k = 1; k < n - 1; k++) {
+			for (int l = k + 1; (l < n) && (l - k <= maxStep); l++) {
+				for (int j = Math.max(0, k - maxStep); j < k; j++) {
+					int lengthToJK = longest[k][k - j - 1];
+					boolean jFirst = (j <= maxRun); // j can be the first point kept
+					if ((lengthToJK == 0) && !jFirst) {
+						continue;
+					}
+					if (pointTooExtreme(points, timeTo, null, j, k, l, false)) {
+						continue;
+					}
+					
+					int length = 0;
+					boolean fromFirst = false;
+					if (lengthToJK > 0) {
+						length = lengthToJK + 1;
+					}
+					if ((length == 0) && jFirst && !endPointTooExtreme(points, null, j, k, l, false)) {
+						length = 3;
+						fromFirst = true;
+					}
+					if (length == 0) {
+						continue;
+					}
+					
+					if (length > longest[l][l - k - 1]) {
+						longest[l][l - k - 1] = length;
+						before[l][l - k - 1] = fromFirst ? (-1 - j) : j;
+					}
+					
+					// could l be the last point kept?
+					if ((n - 1 - l <= maxRun) && (length > bestLength) && !endPointTooExtreme(points, null, l, k, j, false)) {
+						bestLength = length;
+						bestJ = j;
+						bestK = k;
+						bestL = l;
+						bestFromFirst = fromFirst;
+					}
 				}
-				
-				if (decision.booleanValue()) {
-					rval.add(i);
+			}
+		}
+		
+		if (bestLength == 0) {
+			return null;
+		}
+		
+		boolean[] rval = new boolean[n];
+		rval[bestL] = true;
+		rval[bestK] = true;
+		rval[bestJ] = true;
+		if (!bestFromFirst) {
+			int j = bestJ;
+			int k = bestK;
+			while (true) {
+				int i = before[k][k - j - 1];
+				if (i < 0) { // i is the first point kept
+					rval[-1 - i] = true;
+					break;
 				}
+				rval[i] = true;
+				k = j;
+				j = i;
 			}
 		}
 		
-		// check last element
-		if ((points.get(points.size() - 1).altitude == 0) && endPointTooExtreme(points.get(points.size() - 1).getLatLng(), points.get(points.size() - 2).getLatLng(), points.get(points.size() - 3).getLatLng(), debug)) {
-			rval.add(points.size() - 1);
+		return rval;
+	}
+	
+	/**@return timeTo, where timeTo[j] - timeTo[i] is the time from point i to point j, with those between removed (timeTo[n] is just after the last point)*/
+	private static double[] timeTo(Track points) {
+		double[] rval = new double[points.size() + 1];
+		for (int i = 0; i < points.size(); i++) {
+			rval[i + 1] = rval[i] + points.getInterval(i);
+		}
+		return rval;
+	}
+	
+	/**
+	 * checks the middle point of three consecutive points in a track made from the original by removing points; 
+	 * prev, cur and next are indices in the original track, and the times between them come from timeTo.
+	 * Only applies to points on the ground (landing/taking off ACs will be going much faster)
+	 * @param cache - can be null, in which case the decision is always worked out, and not kept
+	 */
+	private static boolean pointTooExtreme(Track points, double[] timeTo, ExtremePointDecisionCache cache, int prev, int cur, int next, boolean debug) {
+		if ((points.getAltitude(prev) != 0) || (points.getAltitude(cur) != 0) || (points.getAltitude(next) != 0)) {
+			return false;
+		}
+		
+		Boolean decision = (debug || (cache == null)) ? null : cache.getDecision(ExtremePointDecisionCache.MIDDLE, prev, cur, next);
+		if (decision == null) {
+			if (debug) System.out.print(cur + ":");
+			decision = angleAndSpeedAroundPointTooExtreme(points, prev, cur, next, timeTo[cur] - timeTo[prev], timeTo[next] - timeTo[cur], debug);
+			if (cache != null) {
+				cache.addDecision(ExtremePointDecisionCache.MIDDLE, prev, cur, next, decision.booleanValue());
+			}
+		}
+		return decision.booleanValue();
+	}
+	
+	/**checks the first or last point (end) of a track made from the original by removing points; point1 and point2 are the next ones in. cache can be null*/
+	private static boolean endPointTooExtreme(Track points, ExtremePointDecisionCache cache, int end, int point1, int point2, boolean debug) {
+		if (points.getAltitude(end) != 0) {
+			return false;
 		}
 		
+		Boolean decision = (debug || (cache == null)) ? null : cache.getDecision(ExtremePointDecisionCache.END, end, point1, point2);
+		if (decision == null) {
+			decision = endPointTooExtremeByDistance(points, end, point1, point2, debug);
+			if (cache != null) {
+				cache.addDecision(ExtremePointDecisionCache.END, end, point1, point2, decision.booleanValue());
+			}
+		}
+		return decision.booleanValue();
+	}
+	
+	/**@return the points with zero altitude*/
+	private static Track groundPoints(Track points) {
+		Track rval = new Track(points.size());
+		for (int i = 0; i < points.size(); i++) {
+			if (points.getAltitude(i) == 0) {
+				rval.add(points.getLat(i), points.getLon(i), points.getTimestamp(i), points.getInterval(i));
+			}
+		}
+		rval.trimToSize();
 		return rval;
 	}
 	
+	private static String trackToCoordsString(Track track) {
+		StringBuffer buf = new StringBuffer();
+		
+		for (int i = 0; i < track.size(); i++) {
+			if (i > 0) {
+				buf.append(RawFlightTrackData.SEPARATOR_COORDS);
+			}
+			
+			buf.append(track.getLat(i));
+			buf.append(RawFlightTrackData.SEPARATOR_COORDS);
+			buf.append(track.getLon(i));
+			buf.append(RawFlightTrackData.SEPARATOR_COORDS);
+			buf.append(track.getAltitude(i)); // altitude
+			buf.append(RawFlightTrackData.SEPARATOR_COORDS);
+			buf.append((double)(-1 * track.getInterval(i))); // convert back to negatives for consistency with original data (and written as a double, as it always has been)
+		}
+		
+		return buf.toString();
+	}
+	
 	/**
 	 * perform tests on a point given its neighbours in the path
 	 * currently uses fixed values for tests, noted in paper
 	 */
-	private static boolean angleAndSpeedAroundPointTooExtreme(LatLng prev, LatLng point, LatLng next, double timePrevToPoint, double timePointToNext, boolean debug) {
-		double angle = Geography.angleBetweenPoints(prev, point, next);
-		double distancePrevPoint = Geography.distance(prev, point);
-		double distancePointNext = Geography.distance(point, next);
-		double distancePrevNext = Geography.distance(prev, next);
+	private static boolean angleAndSpeedAroundPointTooExtreme(Track points, int prev, int point, int next, double timePrevToPoint, double timePointToNext, boolean debug) {
+		double prevLat = points.getLat(prev), prevLon = points.getLon(prev);
+		double pointLat = points.getLat(point), pointLon = points.getLon(point);
+		double nextLat = points.getLat(next), nextLon = points.getLon(next);
+		double angle = Geography.angleBetweenPoints(prevLat, prevLon, pointLat, pointLon, nextLat, nextLon);
+		double distancePrevPoint = Geography.distance(prevLat, prevLon, pointLat, pointLon);
+		double distancePointNext = Geography.distance(pointLat, pointLon, nextLat, nextLon);
+		double distancePrevNext = Geography.distance(prevLat, prevLon, nextLat, nextLon);
 		double speed = (distancePrevPoint + distancePointNext) / (timePrevToPoint + timePointToNext);
 		
 		// if two of the points are overlaid, then the angle calc is meaningless - reset to zero (no turning)
@@ -368,149 +699,375 @@ public class CleaningRawDataOutliers {
 		boolean testD1Fails = (distancePrevPoint > 100) && (distancePrevPoint > (5 * distancePrevNext)) && (distancePointNext > (5 * distancePrevNext)); // catch massive deviations. if two points are near each other, and the point between them is very far away, it can be dropped (only do this for larger jumps, ie >10m/100m)
 		boolean testD2Fails = ((distancePrevPoint > 250) && (distancePointNext < 10) || (distancePrevPoint < 10) && (distancePointNext > 250)); // catch massive deviations. if this point is right next to other point (within 10m), but next one is 100m, then this is probably an outlier too
 		
-		if (debug) System.out.println("AS " + prev + "," + point + "," + next + "," + angle + "," + speed + "," + testA1Fails + "," + testA2Fails + "," + testA3Fails+ "," + testA4Fails + "," + testA5Fails + "," + testA6Fails + "," + testD1Fails + "," + testD2Fails);
+		if (debug) System.out.println("AS " + pointToString(points, prev) + "," + pointToString(points, point) + "," + pointToString(points, next) + "," + angle + "," + speed + "," + testA1Fails + "," + testA2Fails + "," + testA3Fails+ "," + testA4Fails + "," + testA5Fails + "," + testA6Fails + "," + testD1Fails + "," + testD2Fails);
 		
 		return testA1Fails || testA2Fails || testA3Fails || testA4Fails || testA5Fails || testA6Fails || testD1Fails || testD2Fails;
 	}
 	
 	/**only checks distance wrt to distance between the next two points in*/
-	private static boolean endPointTooExtreme(LatLng point, LatLng point1, LatLng point2, boolean debug) {
-		double distancePointTo1 = Geography.distance(point, point1);
-		double distance1To2 = Geography.distance(point1, point2);
+	private static boolean endPointTooExtremeByDistance(Track points, int point, int point1, int point2, boolean debug) {
+		double distancePointTo1 = Geography.distance(points.getLat(point), points.getLon(point), points.getLat(point1), points.getLon(point1));
+		double distance1To2 = Geography.distance(points.getLat(point1), points.getLon(point1), points.getLat(point2), points.getLon(point2));
 		boolean testD1Fails = (distancePointTo1 > 100) && (distancePointTo1 > (20 * distance1To2)); // catch massive deviations
 		
-		if (debug) System.out.println("EP " + point + "," + point1 + "," + point2 + "," + distancePointTo1 + "," + distance1To2 + "," + testD1Fails);
+		if (debug) System.out.println("EP " + pointToString(points, point) + "," + pointToString(points, point1) + "," + pointToString(points, point2) + "," + distancePointTo1 + "," + distance1To2 + "," + testD1Fails);
 		
 		return testD1Fails;
 	}
 	
-	private static void tracksToKML(String filename, List<List<PointInTrack>> originalRoutes, List<List<PointInTrack>> updatedRoutes, List<String> comments) {
-		final Kml kml = KmlFactory.createKml();
-		final Document document = kml.createAndSetDocument().withName(filename).withOpen(true);
-		Document[] documents = new Document[originalRoutes.size()];
-		for (int i = 0; i < documents.length; i++) {
-			documents[i] = document.createAndAddDocument().withName(i + "_" + comments.get(i)).withOpen(false);
-		}
-		
-		final Style styleOriginal = document.createAndAddStyle().withId("linestyleOriginal");
-		styleOriginal.createAndSetLineStyle().withColor("ff0000ff").withWidth(4.0d);
-		final Style styleUpdated = document.createAndAddStyle().withId("linestyleUpdated");
-		styleUpdated.createAndSetLineStyle().withColor("ffff0000").withWidth(4.0d);
-
-		for (int i = 0; i < documents.length; i++) {
-			LineString lsO = documents[i].createAndAddPlacemark().withName("O").withStyleUrl("#linestyleOriginal").withVisibility(false).createAndSetLineString();
-			//lsO.setAltitudeMode(AltitudeMode.RELATIVE_TO_GROUND);
-			for (PointInTrack pip : originalRoutes.get(i)) {
-				if (pip.getAltitude() == 0) {
-					LatLng ll = pip.getLatLng();
-					lsO.addToCoordinates(ll.getLng() + "," + ll.getLat() + ",0.0");// + pip.getAltitude()); // dropped altitude stuff as the track was sometimes hidden by small bumps in terrain
-				}
-			}
-			
-			LineString lsU = documents[i].createAndAddPlacemark().withName("U").withStyleUrl("#linestyleUpdated").withVisibility(false).createAndSetLineString();
-			
-			for (PointInTrack pip : updatedRoutes.get(i)) {
-				if (pip.getAltitude() == 0) {
-					LatLng ll = pip.getLatLng();
-					lsU.addToCoordinates(ll.getLng() + "," + ll.getLat() + ",0,0");// + pip.getAltitude());
+	/**for the debugging output*/
+	private static String pointToString(Track points, int i) {
+		return "(" + points.getLat(i) + ", " + points.getLon(i) + ")";
+	}
+	
+	/**
+	 * writes the KML showing each track before and after cleaning, a track at a time, so the tracks don't need to be kept until the end.
+	 * The layout is as it was when the whole document was built with JAK: a Document for each track, holding hidden placemarks 
+	 * for the original (O) and updated (U) routes (just the points on the ground, from {@link #groundPoints(Track)}), 
+	 * then a blank ground overlay covering all of them, as from KMLUtils.addGroundOverlayToKMLDocument()
+	 */
+	private static class CleaningKMLWriter {
+		/**added around the points for the ground overlay, as in KMLUtils*/
+		private static final double BORDER = 0.002;
+		
+		private final String filename;
+		private final PrintStream out;
+		private int tracksWritten = 0;
+		/**of all the points written so far: minLat(south),maxLat(north),minLon(west),maxLon(east)*/
+		private final double[] bounds = new double[] {180,-180,180,-180};
+		
+		public CleaningKMLWriter(String filename) throws IOException {
+			this.filename = filename;
+			this.out = new PrintStream(CompressedFiles.openOutputStream(filename), false, "UTF-8");
+			out.println("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+			out.println("<kml xmlns=\"http://www.opengis.net/kml/2.2\">");
+			out.println("<Document>");
+			out.println("\t<name>" + escape(filename) + "</name>");
+			out.println("\t<open>1</open>");
+			writeStyle("linestyleOriginal", "ff0000ff");
+			writeStyle("linestyleUpdated", "ffff0000");
+		}
+		
+		private void writeStyle(String id, String colour) {
+			out.println("\t<Style id=\"" + id + "\">");
+			out.println("\t\t<LineStyle>");
+			out.println("\t\t\t<color>" + colour + "</color>");
+			out.println("\t\t\t<width>4.0</width>");
+			out.println("\t\t</LineStyle>");
+			out.println("\t</Style>");
+		}
+		
+		/**the routes are just the points on the ground, from {@link #groundPoints(Track)}*/
+		public void writeTrack(String comment, Track original, Track updated) {
+			out.println("\t<Document>");
+			out.println("\t\t<name>" + escape(tracksWritten + "_" + comment) + "</name>");
+			out.println("\t\t<open>0</open>");
+			writePlacemark("O", "#linestyleOriginal", original);
+			writePlacemark("U", "#linestyleUpdated", updated);
+			out.println("\t</Document>");
+			tracksWritten++;
+		}
+		
+		private void writePlacemark(String name, String styleUrl, Track route) {
+			out.println("\t\t<Placemark>");
+			out.println("\t\t\t<name>" + name + "</name>");
+			out.println("\t\t\t<visibility>0</visibility>");
+			out.println("\t\t\t<styleUrl>" + styleUrl + "</styleUrl>");
+			out.println("\t\t\t<LineString>");
+			out.print("\t\t\t\t<coordinates>");
+			for (int j = 0; j < route.size(); j++) {
+				double lat = route.getLat(j);
+				double lon = route.getLon(j);
+				if (j > 0) {
+					out.print(' ');
 				}
+				out.print(lon + "," + lat + ",0.0"); // dropped altitude stuff as the track was sometimes hidden by small bumps in terrain
+				bounds[0] = Math.min(bounds[0], lat);
+				bounds[1] = Math.max(bounds[1], lat);
+				bounds[2] = Math.min(bounds[2], lon);
+				bounds[3] = Math.max(bounds[3], lon);
 			}
+			out.println("</coordinates>");
+			out.println("\t\t\t</LineString>");
+			out.println("\t\t</Placemark>");
 		}
 		
-		KMLUtils.addGroundOverlayToKMLDocument(filename, document);
-
-		try {
-			if (kml.marshal(new File(filename))) {
-				System.out.println(filename + " written successfully");
-			} else {
+		/**writes the ground overlay, and finishes the file*/
+		public void close() {
+			out.println("\t<GroundOverlay>");
+			out.println("\t\t<name>Blank background</name>");
+			out.println("\t\t<color>ffffffff</color>");
+			out.println("\t\t<LatLonBox>");
+			out.println("\t\t\t<north>" + (bounds[1] + BORDER) + "</north>");
+			out.println("\t\t\t<south>" + (bounds[0] - BORDER) + "</south>");
+			out.println("\t\t\t<east>" + (bounds[3] + BORDER) + "</east>");
+			out.println("\t\t\t<west>" + (bounds[2] - BORDER) + "</west>");
+			out.println("\t\t</LatLonBox>");
+			out.println("\t</GroundOverlay>");
+			out.println("</Document>");
+			out.println("</kml>");
+			out.close();
+			
+			if (out.checkError()) {
 				System.out.println(filename + " not written");
+			} else {
+				System.out.println(filename + " written successfully");
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
+		}
+		
+		private static String escape(String text) {
+			return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
 		}
 	}
 	
-	// this could be made far more efficient if we just used indices into the original track rather than object lists
-	// that way the cache could be 2 3D arrays of booleans; one for whether the test result is in the cache, one for test results
-	private static class ExtremePointDecisionCache {
-		// outer map is prev point, middle map is current point, inner map is next point
-		private Map<PointInTrack, Map<PointInTrack, Map<PointInTrack, Boolean>>> cache;
-		public ExtremePointDecisionCache() {
-			this.cache = new HashMap<PointInTrack, Map<PointInTrack, Map<PointInTrack, Boolean>>>();
+	/**
+	 * the points of a track that fail the checks, kept up to date as points are removed from the track and put back.
+	 * Assumes that points are in FR24 order - latest first, going back in time, with timings on each point being time from previous point (so the next point in the list).
+	 * The points left are a linked list over the indices in the original track; removing a point only changes 
+	 * the decisions for its neighbours and the end points, so removing or restoring a point is O(1).
+	 */
+	private static class BadPointSet {
+		private final Track points;
+		private final double[] timeTo;
+		private final ExtremePointDecisionCache cache;
+		private final boolean debug;
+		
+		/**previous and next points still in the track, -1 at the ends; left alone for removed points so they can be restored*/
+		private final int[] prev;
+		private final int[] next;
+		private final boolean[] bad;
+		private int first;
+		private int last;
+		private int size;
+		private int badCount;
+		
+		public BadPointSet(Track points, ExtremePointDecisionCache cache, boolean debug) {
+			this.points = points;
+			this.timeTo = timeTo(points);
+			this.cache = cache;
+			this.debug = debug;
+			this.size = points.size();
+			this.prev = new int[size];
+			this.next = new int[size];
+			this.bad = new boolean[size];
+			for (int i = 0; i < size; i++) {
+				prev[i] = i - 1;
+				next[i] = (i + 1 < size) ? i + 1 : -1;
+			}
+			this.first = (size > 0) ? 0 : -1;
+			this.last = size - 1;
+			
+			for (int i = 0; i < size; i++) {
+				update(i);
+			}
 		}
 		
-		/**decision is null if cache miss, true/false otherwise*/
-		public Boolean getDecision(PointInTrack prev, PointInTrack current, PointInTrack next) {
-			Map<PointInTrack, Map<PointInTrack, Boolean>> m1 = this.cache.get(prev);
-			if (m1 != null) {
-				Map<PointInTrack, Boolean> m2 = m1.get(current);
-				if (m2 != null) {
-					Boolean b = m2.get(next);
-					
-					return b;
-				}
+		/**removes a point that is still in the track*/
+		public void remove(int i) {
+			int p = prev[i];
+			int n = next[i];
+			if (p >= 0) {
+				next[p] = n;
+			} else {
+				first = n;
+			}
+			if (n >= 0) {
+				prev[n] = p;
+			} else {
+				last = p;
 			}
+			size--;
+			setBad(i, false);
 			
-			return null;
+			updateAround(p, n);
 		}
 		
-		public void addDecision(PointInTrack prev, PointInTrack current, PointInTrack next, boolean decision) {
-			Map<PointInTrack, Map<PointInTrack, Boolean>> m1 = this.cache.get(prev);
-			if (m1 == null) {
-				m1 = new HashMap<PointInTrack, Map<PointInTrack, Boolean>>();
-				this.cache.put(prev, m1);
+		/**puts back the point removed most recently (points have to be restored in the reverse of the order they were removed)*/
+		public void restore(int i) {
+			int p = prev[i];
+			int n = next[i];
+			if (p >= 0) {
+				next[p] = i;
+			} else {
+				first = i;
+			}
+			if (n >= 0) {
+				prev[n] = i;
+			} else {
+				last = i;
 			}
+			size++;
 			
-			Map<PointInTrack, Boolean> m2 = m1.get(current);
-			if (m2 == null) {
-				m2 = new HashMap<PointInTrack, Boolean>();
-				m1.put(current, m2);
+			update(i);
+			updateAround(p, n);
+		}
+		
+		private void updateAround(int p, int n) {
+			if (p >= 0) {
+				update(p);
 			}
-				
-			m2.put(next, Boolean.valueOf(decision));
+			if (n >= 0) {
+				update(n);
+			}
+			// the end points are checked against the next two in, so might have changed too
+			if (first >= 0) {
+				update(first);
+			}
+			if (last >= 0) {
+				update(last);
+			}
+		}
+		
+		private void update(int i) {
+			boolean b;
+			if (size < 3) { // not much to say if there are this few points
+				b = false;
+			} else if (i == first) {
+				b = endPointTooExtreme(points, cache, i, next[i], next[next[i]], debug);
+			} else if (i == last) {
+				b = endPointTooExtreme(points, cache, i, prev[i], prev[prev[i]], debug);
+			} else {
+				b = pointTooExtreme(points, timeTo, cache, prev[i], i, next[i], debug);
+			}
+			setBad(i, b);
+		}
+		
+		private void setBad(int i, boolean b) {
+			if (bad[i] != b) {
+				bad[i] = b;
+				badCount += b ? 1 : -1;
+			}
+		}
+		
+		/**@return number of points left in the track*/
+		public int size() {
+			return size;
+		}
+		
+		public int getBadCount() {
+			return badCount;
+		}
+		
+		/**@return indices in the original track of the bad points left, in order*/
+		public List<Integer> getBadPoints() {
+			List<Integer> rval = new ArrayList<Integer>(badCount);
+			for (int i = first; (i >= 0) && (rval.size() < badCount); i = next[i]) {
+				if (bad[i]) {
+					rval.add(i);
+				}
+			}
+			return rval;
+		}
+		
+		public ExtremePointDecisionCache getCache() {
+			return cache;
+		}
+		
+		/**
+		 * @return a new track of the points left; if we've dropped a point, its time interval is added to the next point 
+		 * so the speed in the gap is still right ("next point" in time is actually previous point in the list in FR24 format)
+		 */
+		public Track getTrack() {
+			Track rval = new Track(size);
+			for (int i = first; i >= 0; i = next[i]) {
+				int interval = points.getInterval(i);
+				for (int j = i + 1; j < ((next[i] >= 0) ? next[i] : points.size()); j++) {
+					interval += points.getInterval(j);
+				}
+				rval.add(points.getLat(i), points.getLon(i), points.getAltitude(i), points.getTimestamp(i), interval);
+			}
+			return rval;
 		}
 	}
 	
-	private static class PointInTrack {
-		private LatLng latLng;
-		private double timeSinceLastPoint;
-		private double altitude;
+	/**
+	 * decisions for runs of three points in a track, keyed by their indices in the original track (times between
+	 * the points only depend on which points they are, see {@link #timeTo(Track)}). 
+	 * Held in an open-addressed hash table of packed keys, rather than boxed objects.
+	 */
+	private static class ExtremePointDecisionCache {
+		/**the check on a middle point*/
+		public static final int MIDDLE = 1;
+		/**the check on a first or last point*/
+		public static final int END = 2;
+		
+		/**bits for each index in a key; tracks with more points than this allows aren't cached*/
+		private static final int INDEX_BITS = 20;
+		private static final int MAX_INDEX = (1 << INDEX_BITS) - 1;
 		
-		public PointInTrack(LatLng latLng, double timeSinceLastPoint, double altitude) {
-			this.latLng = latLng;
-			this.timeSinceLastPoint = timeSinceLastPoint;
-			this.altitude = altitude;
+		/**0 for an empty slot; the check type is in the top bits so no key is 0*/
+		private long[] keys;
+		private boolean[] decisions;
+		private int size;
+		
+		public ExtremePointDecisionCache() {
+			this.keys = new long[1024];
+			this.decisions = new boolean[1024];
 		}
 		
-		public LatLng getLatLng() {
-			return latLng;
+		/**decision is null if cache miss, true/false otherwise*/
+		public Boolean getDecision(int type, int a, int b, int c) {
+			long key = key(type, a, b, c);
+			if (key == 0) {
+				return null;
+			}
+			
+			for (int slot = slot(key, keys.length); keys[slot] != 0; slot = (slot + 1) & (keys.length - 1)) {
+				if (keys[slot] == key) {
+					return Boolean.valueOf(decisions[slot]);
+				}
+			}
+			return null;
 		}
 		
-		public double getTimeSinceLastPoint() {
-			return timeSinceLastPoint;
+		public void addDecision(int type, int a, int b, int c, boolean decision) {
+			long key = key(type, a, b, c);
+			if (key == 0) {
+				return;
+			}
+			
+			if (2 * (size + 1) > keys.length) {
+				resize(keys.length * 2);
+			}
+			int slot = slot(key, keys.length);
+			while ((keys[slot] != 0) && (keys[slot] != key)) {
+				slot = (slot + 1) & (keys.length - 1);
+			}
+			if (keys[slot] == 0) {
+				size++;
+			}
+			keys[slot] = key;
+			decisions[slot] = decision;
 		}
 		
-		public double getAltitude() {
-			return altitude;
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			boolean[] oldDecisions = decisions;
+			keys = new long[capacity];
+			decisions = new boolean[capacity];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != 0) {
+					int slot = slot(oldKeys[i], capacity);
+					while (keys[slot] != 0) {
+						slot = (slot + 1) & (capacity - 1);
+					}
+					keys[slot] = oldKeys[i];
+					decisions[slot] = oldDecisions[i];
+				}
+			}
 		}
 		
-		public PointInTrack copyOf() {
-			return new PointInTrack(latLng, timeSinceLastPoint, altitude);
+		/**@return the packed key, or 0 if an index is too big to pack*/
+		private static long key(int type, int a, int b, int c) {
+			if ((a > MAX_INDEX) || (b > MAX_INDEX) || (c > MAX_INDEX)) {
+				return 0;
+			}
+			return ((long)type << (3 * INDEX_BITS)) | ((long)a << (2 * INDEX_BITS)) | ((long)b << INDEX_BITS) | c;
 		}
 		
-		@Override
-		public String toString() {
-			StringBuffer buf = new StringBuffer();
-			buf.append("PIT[");
-			buf.append(latLng.getLat());
-			buf.append(",");
-			buf.append(latLng.getLng());
-			buf.append(",");
-			buf.append(timeSinceLastPoint);
-			buf.append(",");
-			buf.append(altitude);
-			buf.append("]");
-			return buf.toString();
+		private static int slot(long key, int capacity) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int)(h >>> 32) & (capacity - 1);
 		}
 	}
 }
@@ -0,0 +1,80 @@
+package gmtools.snaptracks;
+
+import gmtools.common.LocalGeodesy;
+import gmtools.parsers.Track;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * Copies of a track displaced by each offset in the spiral from {@link DisplaceAroundAPoint#spiralStep(int)}, 
+ * with index 0 being the original track. Rather than building every displaced copy up front, each one is only created 
+ * when it is asked for, by adding the offset (converted to degrees at each point) to the original coordinates. 
+ * Memory is proportional to the track length, and the cost is proportional to the number of displacements actually tried.
+ * Displaced copies of a {@link Track} are Tracks sharing the original's times, so only the coordinates are new.
+ * <br/><br/>
+ * The offsets are true east/north, in metres on the same sphere as {@link LocalGeodesy}, rather than UTM grid east/north, 
+ * so they can differ by a few cm and by the grid convergence angle (a couple of degrees at most) from offsets made in UTM. 
+ * <br/><br/>
+ * Thread safe once constructed, so candidates can be generated from several threads at once
+ */
+public class DisplacedTracks {
+	private Track originalTrack;
+	private int maxStepsOut;
+	private double stepWidthMetres;
+	
+	/**degrees of latitude per metre north (the same everywhere on a sphere)*/
+	private static final double LAT_DEGREES_PER_METRE = 1 / LocalGeodesy.metresPerDegreeLat();
+	
+	/**for each point, degrees of longitude per metre east*/
+	private double[] lngDegreesPerMetre;
+	
+	public DisplacedTracks(Track originalTrack, int maxStepsOut, double stepWidthMetres) {
+		this.originalTrack = originalTrack;
+		this.maxStepsOut = maxStepsOut;
+		this.stepWidthMetres = stepWidthMetres;
+		
+		this.lngDegreesPerMetre = new double[originalTrack.size()];
+		for (int i = 0; i < originalTrack.size(); i++) {
+			lngDegreesPerMetre[i] = 1 / LocalGeodesy.metresPerDegreeLon(originalTrack.getLat(i));
+		}
+	}
+	
+	/**@return number of displaced tracks, including the original*/
+	public int size() {
+		return DisplaceAroundAPoint.numberOfDisplacements(maxStepsOut);
+	}
+	
+	/**@return offset in metres (east, north) of the displacement with this index*/
+	public double[] getOffsetMetres(int index) {
+		int[] step = DisplaceAroundAPoint.spiralStep(index);
+		return new double[] {step[0] * stepWidthMetres, step[1] * stepWidthMetres};
+	}
+	
+	/**@return the track, shifted by the displacement with this index, with the original's times. Index 0 returns the original Track itself*/
+	public Track getDisplaced(int index) {
+		if ((index < 0) || (index >= size())) {
+			throw new IndexOutOfBoundsException("Displacement " + index + " of " + size());
+		}
+		if (index == 0) {
+			return originalTrack;
+		}
+		
+		double[] offset = getOffsetMetres(index);
+		return getDisplacedBy(offset[0], offset[1]);
+	}
+	
+	/**@return the track, shifted by an arbitrary offset (not necessarily on the spiral) in metres east and north, with the original's times*/
+	public Track getDisplacedBy(double eastMetres, double northMetres) {
+		double[] lats = new double[originalTrack.size()];
+		double[] lngs = new double[originalTrack.size()];
+		for (int i = 0; i < lats.length; i++) {
+			lats[i] = originalTrack.getLat(i) + (northMetres * LAT_DEGREES_PER_METRE);
+			lngs[i] = originalTrack.getLon(i) + (eastMetres * lngDegreesPerMetre[i]);
+		}
+		
+		return originalTrack.withCoords(lats, lngs);
+	}
+}
@@ -0,0 +1,127 @@
+package gmtools.snaptracks;
+
+import gmtools.graph.CompactGraph;
+import gmtools.graph.EdgeClusters;
+import gmtools.graph.EdgeDistanceField;
+import gmtools.graph.TaxiEdge;
+
+import uk.me.jstott.jcoord.LatLng;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * The candidate search for stage 1 of the snapping: for a point, finds the edges near it (from {@link EdgeClusters}), 
+ * with the distance to each and the nearest point on each. Everything is worked out in the 
+ * {@link CompactGraph}'s local east/north plane, with plain arithmetic, into arrays that are reused from one point 
+ * to the next, so nothing is allocated unless a LatLng is asked for (which need only be done for edges that are kept).
+ * <br/><br/>
+ * Not thread safe: use one per thread.
+ */
+public class NearbyEdges {
+	private CompactGraph graph;
+	private EdgeClusters edgeClusters;
+	
+	private int count;
+	private int[] edges;
+	private double[] distances;
+	/**along the edge in the plane, 0 at the from node and 1 at the to node*/
+	private double[] positions;
+	private double[] nearestXs;
+	private double[] nearestYs;
+	
+	public NearbyEdges(EdgeClusters edgeClusters) {
+		this.graph = edgeClusters.getCompactGraph();
+		this.edgeClusters = edgeClusters;
+		allocate(64);
+	}
+	
+	private void allocate(int size) {
+		this.edges = new int[size];
+		this.distances = new double[size];
+		this.positions = new double[size];
+		this.nearestXs = new double[size];
+		this.nearestYs = new double[size];
+	}
+	
+	/**
+	 * finds the edges near the point; get the details for each with the other methods, for indices 0 to the value returned - 1
+	 * @return number of edges found
+	 */
+	public int find(double lat, double lon) {
+		count = edgeClusters.getEdgesNearPoint(lat, lon, edges);
+		if (count > edges.length) {
+			allocate(Integer.highestOneBit(count) * 2);
+			count = edgeClusters.getEdgesNearPoint(lat, lon, edges);
+		}
+		
+		double x = graph.projectLon(lon);
+		double y = graph.projectLat(lat);
+		for (int i = 0; i < count; i++) {
+			int edge = edges[i];
+			double x1 = graph.getX(graph.getEdgeFrom(edge));
+			double y1 = graph.getY(graph.getEdgeFrom(edge));
+			double ex = graph.getX(graph.getEdgeTo(edge)) - x1;
+			double ey = graph.getY(graph.getEdgeTo(edge)) - y1;
+			double lengthSquared = (ex * ex) + (ey * ey);
+			double t = (lengthSquared > 0) ? Math.max(0, Math.min(1, (((x - x1) * ex) + ((y - y1) * ey)) / lengthSquared)) : 0;
+			nearestXs[i] = x1 + (t * ex);
+			nearestYs[i] = y1 + (t * ey);
+			positions[i] = t;
+			double dx = x - nearestXs[i];
+			double dy = y - nearestYs[i];
+			distances[i] = Math.sqrt((dx * dx) + (dy * dy));
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * @return true if the point is less than distanceM from any edge. Uses the edgeClusters' {@link EdgeDistanceField} 
+	 * if it has one, which mostly doesn't need to look at the edges at all; otherwise the same as calling {@link #find(double, double)}
+	 * and checking the distances (which then replaces anything previously found)
+	 */
+	public boolean isNearAnEdge(double lat, double lon, double distanceM) {
+		EdgeDistanceField field = edgeClusters.getDistanceField();
+		if ((field != null) && (distanceM <= field.getMaxDistanceM())) {
+			return field.isNearAnEdge(lat, lon, distanceM);
+		}
+		
+		int found = find(lat, lon);
+		for (int i = 0; i < found; i++) {
+			if (distances[i] < distanceM) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**@return the i'th edge found, as its index in the CompactGraph*/
+	public int getEdgeIndex(int i) {
+		return edges[i];
+	}
+	
+	public TaxiEdge getEdge(int i) {
+		return graph.getEdge(edges[i]);
+	}
+	
+	/**@return distance in metres from the point to the nearest point on the i'th edge*/
+	public double getDistance(int i) {
+		return distances[i];
+	}
+	
+	/**
+	 * @return distance along the i'th edge from its from node to the nearest point, as a fraction of the edge's length (as Snapping uses).
+	 * This is the fraction in the plane, so it is always 0-1, however the edge's length was measured
+	 */
+	public double getFractionAlongEdge(int i) {
+		return positions[i];
+	}
+	
+	/**@return the nearest point on the i'th edge; this allocates, so only call for edges that are kept*/
+	public LatLng getNearestPoint(int i) {
+		return new LatLng(graph.unprojectY(nearestYs[i]), graph.unprojectX(nearestXs[i]));
+	}
+}
@@ -0,0 +1,321 @@
+package gmtools.snaptracks;
+
+import gmtools.common.Geography;
+import gmtools.common.LocalGeodesy;
+import gmtools.graph.Runway;
+import gmtools.graph.TaxiEdge;
+import gmtools.graph.TaxiNode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.me.jstott.jcoord.LatLng;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * Estimates the displacement needed for a track in one go, rather than searching for it: the straight run of points
+ * at either end of a track is usually the landing or takeoff roll, so it should lie on a runway centreline. 
+ * Each straight run that is parallel to a runway gives the offset across that runway (as the mean perpendicular 
+ * distance of the run's points from the centreline, i.e. the least-squares fit). Two runs on non-parallel runways 
+ * fix the offset completely; otherwise the offset along the runway is left free, and a short line search along the runway is suggested.
+ * <br/><br/>
+ * All geometry is done in a local east/north plane in metres: that of the {@link LocalGeodesy} in use, or one centred 
+ * on the first runway node (see {@link Geography#localGeodesyAround(double, double)}).
+ */
+public class RunwayAlignment {
+	/**straight runs must be at least this long to be compared with the runways*/
+	private static final double MIN_RUN_LENGTH_METRES = 500;
+	
+	/**straight runs must have at least this many points*/
+	private static final int MIN_RUN_POINTS = 5;
+	
+	/**a point is part of a straight run if it is no further than this from the line fitted through the run*/
+	private static final double MAX_RUN_RESIDUAL_METRES = 15;
+	
+	/**a run is aligned with a runway if the angle between them is less than this*/
+	private static final double MAX_ANGLE_DEGREES = 5;
+	
+	/**if the runs at both ends give offsets across the same direction, they must agree to within this*/
+	private static final double MAX_DISAGREEMENT_METRES = 2 * MAX_RUN_RESIDUAL_METRES;
+	
+	private LocalGeodesy plane;
+	
+	/**runway centrelines in the local plane; each is x1,y1,x2,y2 for the two ends*/
+	private List<double[]> runwayLines;
+	private List<String> runwayNames;
+	
+	/**offsets larger than this are treated as a failed fit*/
+	private double maxOffsetMetres;
+	
+	/**
+	 * @param runways from {@link gmtools.tools.TaxiGen#getRunways()}
+	 * @param maxOffsetMetres largest offset we'd accept (e.g. the furthest the spiral search would go)
+	 */
+	public RunwayAlignment(Map<String, Runway> runways, double maxOffsetMetres) {
+		this.maxOffsetMetres = maxOffsetMetres;
+		this.runwayLines = new ArrayList<double[]>();
+		this.runwayNames = new ArrayList<String>();
+		
+		boolean first = true;
+		for (Runway rw : runways.values()) {
+			Set<TaxiNode> nodes = new LinkedHashSet<TaxiNode>();
+			for (TaxiEdge te : rw.getEdges()) {
+				nodes.add(te.getTnFrom());
+				nodes.add(te.getTnTo());
+			}
+			if (nodes.size() < 2) {
+				continue;
+			}
+			
+			if (first) {
+				plane = Geography.localGeodesyAround(nodes.iterator().next().getLatCoordinate(), nodes.iterator().next().getLonCoordinate());
+				first = false;
+			}
+			
+			// the ends of the runway are the two nodes furthest apart
+			double[] bestLine = null;
+			double bestLength = -1;
+			for (TaxiNode tn1 : nodes) {
+				for (TaxiNode tn2 : nodes) {
+					double[] line = new double[] {toX(tn1.getLonCoordinate()), toY(tn1.getLatCoordinate()), toX(tn2.getLonCoordinate()), toY(tn2.getLatCoordinate())};
+					double length = Math.hypot(line[2] - line[0], line[3] - line[1]);
+					if (length > bestLength) {
+						bestLength = length;
+						bestLine = line;
+					}
+				}
+			}
+			
+			runwayLines.add(bestLine);
+			runwayNames.add(rw.getName());
+		}
+	}
+	
+	private double toX(double lng) {
+		return plane.toX(lng);
+	}
+	
+	private double toY(double lat) {
+		return plane.toY(lat);
+	}
+	
+	/**
+	 * @return the estimated displacement for the track, or null if no straight run at either end lines up with a runway, 
+	 * or the runs disagree, or the offset would be too large
+	 */
+	public Estimate estimateDisplacement(LatLng[] track) {
+		if (runwayLines.isEmpty()) {
+			return null;
+		}
+		
+		double[] x = new double[track.length];
+		double[] y = new double[track.length];
+		for (int i = 0; i < track.length; i++) {
+			x[i] = toX(track[i].getLng());
+			y[i] = toY(track[i].getLat());
+		}
+		
+		// each constraint is nx,ny,d: the offset t must satisfy n.t = d, where n is the unit normal of the runway
+		List<double[]> constraints = new ArrayList<double[]>();
+		List<String> runwaysUsed = new ArrayList<String>();
+		for (boolean fromStart : new boolean[] {true, false}) {
+			int[] run = straightRun(x, y, fromStart);
+			if (run == null) {
+				continue;
+			}
+			
+			double[] direction = fitLine(x, y, run[0], run[1]);
+			double bestD = Double.POSITIVE_INFINITY;
+			double[] bestConstraint = null;
+			String bestRunway = null;
+			for (int r = 0; r < runwayLines.size(); r++) {
+				double[] rw = runwayLines.get(r);
+				double rwLength = Math.hypot(rw[2] - rw[0], rw[3] - rw[1]);
+				double ux = (rw[2] - rw[0]) / rwLength;
+				double uy = (rw[3] - rw[1]) / rwLength;
+				
+				// direction of the run doesn't matter (landing or takeoff, either end of the runway)
+				double cosAngle = Math.abs((ux * direction[2]) + (uy * direction[3]));
+				if (cosAngle < Math.cos(Math.toRadians(MAX_ANGLE_DEGREES))) {
+					continue;
+				}
+				
+				// at least some of the run should lie alongside the runway
+				boolean overlaps = false;
+				double sumD = 0;
+				for (int i = run[0]; i < run[1]; i++) {
+					double along = ((x[i] - rw[0]) * ux) + ((y[i] - rw[1]) * uy);
+					overlaps |= (along >= 0) && (along <= rwLength);
+					sumD += ((rw[0] - x[i]) * -uy) + ((rw[1] - y[i]) * ux); // perpendicular distance, along normal (-uy,ux)
+				}
+				double d = sumD / (run[1] - run[0]);
+				if (overlaps && (Math.abs(d) < Math.abs(bestD))) {
+					bestD = d;
+					bestConstraint = new double[] {-uy, ux, d};
+					bestRunway = runwayNames.get(r);
+				}
+			}
+			
+			if (bestConstraint != null) {
+				constraints.add(bestConstraint);
+				runwaysUsed.add(bestRunway);
+			}
+		}
+		
+		if (constraints.isEmpty()) {
+			return null;
+		}
+		
+		// least squares: solve (sum n n^T) t = sum n d
+		double a11 = 0, a12 = 0, a22 = 0, b1 = 0, b2 = 0;
+		for (double[] c : constraints) {
+			a11 += c[0] * c[0];
+			a12 += c[0] * c[1];
+			a22 += c[1] * c[1];
+			b1 += c[0] * c[2];
+			b2 += c[1] * c[2];
+		}
+		double det = (a11 * a22) - (a12 * a12);
+		
+		double[] offset;
+		double[] freeDirection;
+		if (det > Math.pow(Math.sin(Math.toRadians(MAX_ANGLE_DEGREES * 2)), 2)) { // runways far enough from parallel to fix both directions
+			offset = new double[] {((a22 * b1) - (a12 * b2)) / det, ((a11 * b2) - (a12 * b1)) / det};
+			freeDirection = null;
+		} else { // only the offset across the runway is known
+			double[] n = constraints.get(0);
+			double sumD = 0;
+			for (double[] c : constraints) {
+				double sign = Math.signum((c[0] * n[0]) + (c[1] * n[1])); // normals may point in opposite directions
+				if (Math.abs((sign * c[2]) - n[2]) > MAX_DISAGREEMENT_METRES) {
+					return null;
+				}
+				sumD += sign * c[2];
+			}
+			double d = sumD / constraints.size();
+			offset = new double[] {n[0] * d, n[1] * d};
+			freeDirection = new double[] {n[1], -n[0]};
+		}
+		
+		if (Math.hypot(offset[0], offset[1]) > maxOffsetMetres) {
+			return null;
+		}
+		
+		return new Estimate(offset, freeDirection, runwaysUsed);
+	}
+	
+	/**
+	 * @return start (inclusive) and end (exclusive) indices of the straight run of points at the start or end of the track, 
+	 * or null if there isn't one long enough
+	 */
+	private static int[] straightRun(double[] x, double[] y, boolean fromStart) {
+		if (x.length < MIN_RUN_POINTS) {
+			return null;
+		}
+		
+		int count = MIN_RUN_POINTS;
+		while (count <= x.length) {
+			int start = fromStart ? 0 : x.length - count;
+			int end = fromStart ? count : x.length;
+			double[] line = fitLine(x, y, start, end);
+			double maxResidual = 0;
+			for (int i = start; i < end; i++) {
+				maxResidual = Math.max(maxResidual, Math.abs(((x[i] - line[0]) * -line[3]) + ((y[i] - line[1]) * line[2])));
+			}
+			if (maxResidual > MAX_RUN_RESIDUAL_METRES) {
+				break;
+			}
+			count++;
+		}
+		count--; // the last one tried either failed or went past the end of the track
+		
+		if (count < MIN_RUN_POINTS) {
+			return null;
+		}
+		int start = fromStart ? 0 : x.length - count;
+		int end = fromStart ? count : x.length;
+		if (Math.hypot(x[end - 1] - x[start], y[end - 1] - y[start]) < MIN_RUN_LENGTH_METRES) {
+			return null;
+		}
+		
+		return new int[] {start, end};
+	}
+	
+	/**
+	 * total least squares line through the points from start (inclusive) to end (exclusive)
+	 * @return centroid x,y and unit direction x,y
+	 */
+	private static double[] fitLine(double[] x, double[] y, int start, int end) {
+		double cx = 0, cy = 0;
+		for (int i = start; i < end; i++) {
+			cx += x[i];
+			cy += y[i];
+		}
+		cx /= (end - start);
+		cy /= (end - start);
+		
+		double sxx = 0, sxy = 0, syy = 0;
+		for (int i = start; i < end; i++) {
+			sxx += (x[i] - cx) * (x[i] - cx);
+			sxy += (x[i] - cx) * (y[i] - cy);
+			syy += (y[i] - cy) * (y[i] - cy);
+		}
+		
+		// direction of the principal axis of the scatter matrix
+		double theta = 0.5 * Math.atan2(2 * sxy, sxx - syy);
+		return new double[] {cx, cy, Math.cos(theta), Math.sin(theta)};
+	}
+	
+	/**the result of fitting a track to the runways*/
+	public static class Estimate {
+		private double[] offsetMetres;
+		private double[] freeDirection;
+		private List<String> runwaysUsed;
+		
+		public Estimate(double[] offsetMetres, double[] freeDirection, List<String> runwaysUsed) {
+			this.offsetMetres = offsetMetres;
+			this.freeDirection = freeDirection;
+			this.runwaysUsed = runwaysUsed;
+		}
+		
+		/**@return offset in metres (east, north) that lines the track up with the runways*/
+		public double[] getOffsetMetres() {
+			return offsetMetres;
+		}
+		
+		/**@return unit vector (east, north) along which the offset is not known, or null if it is fully determined*/
+		public double[] getFreeDirection() {
+			return freeDirection;
+		}
+		
+		public List<String> getRunwaysUsed() {
+			return runwaysUsed;
+		}
+		
+		/**
+		 * @return offsets (east, north, in metres) to try, best first: the estimate itself, then if it's only known across
+		 * the runway, steps alternately forwards and backwards along the runway from it, up to maxStepsOut each way
+		 */
+		public List<double[]> getCandidateOffsets(int maxStepsOut, double stepWidthMetres) {
+			List<double[]> rval = new ArrayList<double[]>();
+			rval.add(offsetMetres);
+			if (freeDirection != null) {
+				for (int step = 1; step <= maxStepsOut; step++) {
+					for (int sign : new int[] {1, -1}) {
+						double along = sign * step * stepWidthMetres;
+						rval.add(new double[] {offsetMetres[0] + (along * freeDirection[0]), offsetMetres[1] + (along * freeDirection[1])});
+					}
+				}
+			}
+			
+			return rval;
+		}
+	}
+}
@@ -1,16 +1,23 @@
 package gmtools.snaptracks;
 
 import gmtools.common.ArrayTools;
+import gmtools.common.BoundedCache;
+import gmtools.common.BoundedCache.EvictionPolicy;
 import gmtools.common.Geography;
 import gmtools.common.KMLUtils;
 import gmtools.common.Maths;
 import gmtools.graph.EdgeClusters;
+import gmtools.graph.AStarRouter;
+import gmtools.graph.CompactGraph;
+import gmtools.graph.NodePair;
+import gmtools.graph.ShortestPathTree;
 import gmtools.graph.TaxiEdge;
 import gmtools.graph.TaxiEdge.EdgeType;
 import gmtools.graph.TaxiNode;
 import gmtools.graph.TaxiNode.NodeType;
 import gmtools.parsers.RawFlightTrackData.Aircraft;
 import gmtools.parsers.RawFlightTrackData.TimeCoordinate;
+import gmtools.parsers.Track;
 import gmtools.snaptracks.SnapTracksThread.Snapping.CoordTime;
 import gmtools.tools.SnapTracks;
 import gmtools.tools.TaxiGen;
@@ -21,6 +28,7 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -28,12 +36,18 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.jgrapht.GraphPath;
-import org.jgrapht.alg.DijkstraShortestPath;
 import org.jgrapht.alg.KShortestPaths;
 import org.jgrapht.graph.WeightedMultigraph;
 
@@ -78,6 +92,8 @@ public class SnapTracksThread extends Thread {
 	private int threadNum;
 	private List<Aircraft> aircraft;
 	private WeightedMultigraph<TaxiNode,TaxiEdge> graph;
+	/**same graph as above, for the shortest path searches*/
+	private CompactGraph compactGraph;
 	private List<Integer> indicesToProcess;
 	private boolean flightTracksFilesIncludedIntervals;
 	
@@ -93,6 +109,26 @@ public class SnapTracksThread extends Thread {
 	
 	private EdgeClusters edgeClusters;
 	
+	/**stage 1 candidate search, one per thread as several threads can use the same SnapTracksThread*/
+	private ThreadLocal<NearbyEdges> nearbyEdges = new ThreadLocal<NearbyEdges>() {
+		@Override
+		protected NearbyEdges initialValue() {
+			return new NearbyEdges(edgeClusters);
+		}
+	};
+	
+	/**if more than 0, only this many of the displacements that score best in a quick check against the taxiways get fully snapped*/
+	private int maxDisplacementsToSnap;
+	
+	/**if set, displacements are first estimated by fitting the ends of the track to the runways*/
+	private RunwayAlignment runwayAlignment;
+	
+	/**if set, used (rather than Dijkstra / jgrapht KShortestPaths) to find the paths between unambiguous edges in stage 3a*/
+	private AStarRouter router;
+	
+	/**if set, the displacements in each ring around the original track are snapped concurrently using this pool*/
+	private ExecutorService displacementPool;
+	
 	/**snapped version of the original flight track; useful to rerun snapping process without so much work*/
 	private PrintStream snappedOut;
 	
@@ -104,8 +140,22 @@ public class SnapTracksThread extends Thread {
 	private int kForStage2PathReduction;
 	private double snapDistanceM;
 	
-	private static Map<TaxiNode,Map<TaxiNode,List<GraphPath<TaxiNode, TaxiEdge>>>> kShortestPathsCache = new ConcurrentHashMap<>();
-	private static Map<TaxiNode,Map<TaxiNode,DijkstraShortestPath<TaxiNode, TaxiEdge>>> shortestPathCache = new ConcurrentHashMap<>();
+	/**default max number of node pairs held in the k shortest paths cache*/
+	public static final int DEFAULT_PATH_CACHE_SIZE = 100000;
+	
+	/**default max number of source nodes held in the shortest path tree cache; each tree covers the whole graph, so far fewer are kept*/
+	public static final int DEFAULT_TREE_CACHE_SIZE = 500;
+	
+	private static BoundedCache<NodePair,List<GraphPath<TaxiNode, TaxiEdge>>> kShortestPathsCache = new BoundedCache<>("kShortestPaths cache", DEFAULT_PATH_CACHE_SIZE, EvictionPolicy.LRU);
+	private static BoundedCache<TaxiNode,ShortestPathTree> shortestPathTreeCache = new BoundedCache<>("shortestPathTree cache", DEFAULT_TREE_CACHE_SIZE, EvictionPolicy.LRU);
+	
+	/**k shortest paths loaded from a table (see ShortestPathsTable); null if not using one*/
+	private static Map<NodePair,List<GraphPath<TaxiNode, TaxiEdge>>> precomputedKShortestPaths = null;
+	private static final AtomicLong precomputedHits = new AtomicLong();
+	private static final AtomicLong precomputedMisses = new AtomicLong();
+	
+	/**node pairs looked up that weren't in the table (all of them, if there's no table); null unless they're being recorded*/
+	private static Set<NodePair> missedPairs = null;
 	
 	/**
 	 * @param TaxiGen is a param so we can get the GMW IDs for edges and nodes
@@ -117,6 +167,7 @@ public class SnapTracksThread extends Thread {
 		this.threadNum = threadNum;
 		this.aircraft = aircraft;
 		this.graph = graph;
+		this.compactGraph = ((at != null) && (at.getGraphWholeAirport() == graph)) ? at.getCompactGraph() : new CompactGraph(graph);
 		this.flightpaths = flightpaths;
 		this.aircraftRoutes = aircraftRoutes;
 		this.flightNames = flightNames;
@@ -137,6 +188,14 @@ public class SnapTracksThread extends Thread {
 		this.snapDistanceM = snapDistanceM;
 	}
 	
+	/**
+	 * for use with {@link #snapAircraft(int)} only, where results are returned per aircraft rather than
+	 * written to shared arrays, and scheduling is left to an executor rather than this thread's {@link #run()}
+	 */
+	public SnapTracksThread(List<Aircraft> aircraft, WeightedMultigraph<TaxiNode,TaxiEdge> graph, boolean flightTracksFilesIncludedIntervals, double stepWidthMetres, int maxStepsOut, double snapDistanceM, TaxiGen at, EdgeClusters edgeClusters, PrintStream snappedOut, PrintStream timesOut) {
+		this(0, aircraft, Collections.<Integer>emptyList(), graph, null, null, null, flightTracksFilesIncludedIntervals, stepWidthMetres, maxStepsOut, snapDistanceM, at, edgeClusters, snappedOut, timesOut);
+	}
+	
 	/**if there are any indices left to process, grab one and process it*/
 	public Integer getNextIndex() {
 		Integer i = null;
@@ -152,165 +211,342 @@ public class SnapTracksThread extends Thread {
 	public void run() {
 		Integer currentAircraft;
 		while ((currentAircraft = getNextIndex()) != null) {
-			printlnSafelyToSystemOut("Snapping route for aircraft " + currentAircraft + " of " + aircraft.size() + ", " + aircraft.get(currentAircraft).getLabel());
+			SnapResult result = snapAircraft(currentAircraft);
+			flightpaths[result.getIndex()] = result.getFlightpath();
+			flightNames[result.getIndex()] = result.getFlightName();
+			aircraftRoutes[result.getIndex()] = result.getRoutes();
+		} // end of loop over available aircraft
+		
+		printlnSafelyToSystemOut("Thread " + this.threadNum + " terminated."); // all done!
+	}
+	
+	/**
+	 * snap a single aircraft's track, trying displacements if the raw track won't snap. Safe to call
+	 * concurrently on the same instance, so it can be used as the body of one task per aircraft
+	 * (see {@link SnapTracks}) as well as from {@link #run()}
+	 * @param currentAircraft index into the list of aircraft
+	 * @return the routes, flightpaths (original, displaced and snapped) and name for this aircraft
+	 */
+	public SnapResult snapAircraft(final int currentAircraft) {
+		printlnSafelyToSystemOut("Snapping route for aircraft " + currentAircraft + " of " + aircraft.size() + ", " + aircraft.get(currentAircraft).getLabel());
+		
+		// tracks are never modified (displacing makes a new one), so no need to copy the coords
+		Track orgCoords = aircraft.get(currentAircraft).getTrack();
+		Track newCoords = orgCoords;
+		
+		// try snapping just the raw coordinates
+		SnapTracksThread.RouteTaken routeTaken = snapRouteToGraph(newCoords, true, currentAircraft);
+		
+		// do we need to displace the coordinates?
+		double lonAdded = 0;
+		double latAdded = 0;
+		boolean success = false;
+		Track displacedCoords = null;
+		if (routeTaken.getSnappings().size() > 0) { // if route was successfully snapped...
+			printlnSafelyToSystemOut("AC " + currentAircraft + " Snapped successfully without displacement");
+			success = true; // don't need to do any more!
+		} else {
+			// if not successfully snapped, it might just need displaced. Two ways to do this:
+			// 1. look at the coords at either end for a straight line. This will be the runway. Then coords to fit the true runways (if runwayAlignment is set)
+			// 2. (less brittle but more time consuming) walk in a spiral out from the original coords - this is the approach in the paper 
+			printlnSafelyToSystemOut("no routes found - trying some displacements...");
+			boolean done = false;
 			
-			// make a copy of the coords so we can play with them safely
-			List<TimeCoordinate> orgCoords = aircraft.get(currentAircraft).getCoords();
-			List<TimeCoordinate> newCoords = new ArrayList<TimeCoordinate>();
-			for (int j = 0; j < orgCoords.size(); j++) {
-				newCoords.add(orgCoords.get(j).copyOf());
-			}
+			// displaced points are generated as they're needed, so we only pay for the ones we try
+			DisplacedTracks displaced = new DisplacedTracks(newCoords, maxStepsOut, stepWidthMetres);
 			
-			// try snapping just the raw coordinates
-			SnapTracksThread.RouteTaken routeTaken = snapRouteToGraph(newCoords, true, currentAircraft);
+			// quickly rule out displacements that can't have enough points near the taxiways, before trying the full snapping on them
+			final double minPointsNearEdges = MIN_SNAPPED_EDGES_HARSH * newCoords.size(); // same as the harsh snapping below
 			
-			// do we need to displace the coordinates?
-			double lonAdded = 0;
-			double latAdded = 0;
-			boolean success = false;
-			List<TimeCoordinate> displacedCoords = null;
-			if (routeTaken.getSnappings().size() > 0) { // if route was successfully snapped...
-				printlnSafelyToSystemOut("AC " + currentAircraft + " Snapped successfully without displacement");
-				success = true; // don't need to do any more!
-			} else {
-				// if not successfully snapped, it might just need displaced. Two ways to do this:
-				// 1. look at the coords at either end for a straight line. This will be the runway. Then coords to fit the true runways
-				// 2. (less brittle but more time consuming) walk in a spiral out from the original coords - this is the approach in the paper 
-				printlnSafelyToSystemOut("no routes found - trying some displacements...");
-				boolean done = false;
+			// option 1: fit the ends of the track to the runways. If that doesn't work, done is still false and we carry on with the spiral
+			if (runwayAlignment != null) {
+				RunwayAlignment.Estimate estimate = runwayAlignment.estimateDisplacement(newCoords.toLatLngs());
+				if (estimate != null) {
+					List<double[]> offsets = estimate.getCandidateOffsets(maxStepsOut, stepWidthMetres);
+					printlnSafelyToSystemOut("AC " + currentAircraft + " (" + aircraft.get(currentAircraft).getId() + ") fitted to runways " + estimate.getRunwaysUsed() + ", offset (m east, north) " + ArrayTools.toString(estimate.getOffsetMetres()) + ", " + offsets.size() + " candidates");
+					for (int i = 0; !done && (i < offsets.size()); i++) {
+						Track displacedTrack = displaced.getDisplacedBy(offsets.get(i)[0], offsets.get(i)[1]);
+						if (countPointsNearEdges(displacedTrack, minPointsNearEdges) < 0) {
+							continue;
+						}
+						
+						displacedCoords = displacedTrack;
+						routeTaken = snapRouteToGraph(displacedCoords, true, currentAircraft); // harsher tolerance for unsnapped edges
+						if (routeTaken.getSnappings().size() > 0) {
+							latAdded = displacedCoords.getLat(0) - newCoords.getLat(0);
+							lonAdded = displacedCoords.getLon(0) - newCoords.getLon(0);
+							printlnSafelyToSystemOut("AC " + currentAircraft + " (" + aircraft.get(currentAircraft).getId() + ") successfully displaced and snapped using runway fit, candidate " + i + " adding " + latAdded + " to lat and " + lonAdded + " to lon.");
+							success = true;
+							done = true;
+						}
+					}
+				}
 				
-				// get all possible displaced points
-				LatLng[] newCoordsLL = new LatLng[newCoords.size()];
-				for (int i = 0; i < newCoordsLL.length; i++) {
-					newCoordsLL[i] = newCoords.get(i).getCoord();
+				if (!done) {
+					printlnSafelyToSystemOut("AC " + currentAircraft + " (" + aircraft.get(currentAircraft).getId() + ") runway fit failed, falling back to spiral search");
 				}
-				LatLng[][] displaced = DisplaceAroundAPoint.coordsAroundPoints(newCoordsLL, maxStepsOut, stepWidthMetres);
-				displacedCoords = new ArrayList<TimeCoordinate>(newCoords.size());
-				for (int i = 1; !done && (i < displaced.length); i++) { // skip first one as that's the original
+			}
+			
+			// only score the whole spiral if we're going to search it
+			final boolean[] bestDisplacements;
+			if (!done && (maxDisplacementsToSnap > 0)) {
+				bestDisplacements = bestDisplacements(displaced, minPointsNearEdges, maxDisplacementsToSnap);
+			} else {
+				bestDisplacements = null;
+			}
+			
+			if (displacementPool == null) {
+				for (int i = 1; !done && (i < displaced.size()); i++) { // skip first one as that's the original
 					if (i % 50 == 0) {
-						printlnSafelyToSystemOut("AC " + currentAircraft + " (" + aircraft.get(currentAircraft).getId() + ") displacing, iteration " + i + "/" + displaced.length);
+						printlnSafelyToSystemOut("AC " + currentAircraft + " (" + aircraft.get(currentAircraft).getId() + ") displacing, iteration " + i + "/" + displaced.size());
 					}
 					
-					displacedCoords.clear();
-					for (int j = 0; j < displaced[i].length; j++) {
-						displacedCoords.add(new TimeCoordinate(displaced[i][j], newCoords.get(j).getTimestamp(), newCoords.get(j).getInterval()));
+					displacedCoords = displaced.getDisplaced(i); // even if it's skipped, so the last one tried is kept for the output, as for the parallel search
+					if (!isWorthSnapping(displacedCoords, i, minPointsNearEdges, bestDisplacements)) {
+						continue;
 					}
 					
 					// try snapping the route on this set of displaced coords
 					routeTaken = snapRouteToGraph(displacedCoords, true, currentAircraft); // harsher tolerance for unsnapped edges
 					if (routeTaken.getSnappings().size() > 0) {
-						latAdded = displacedCoords.get(0).getCoord().getLat() - newCoordsLL[0].getLat();
-						lonAdded = displacedCoords.get(0).getCoord().getLng() - newCoordsLL[0].getLng();
+						latAdded = displacedCoords.getLat(0) - newCoords.getLat(0);
+						lonAdded = displacedCoords.getLon(0) - newCoords.getLon(0);
 						printlnSafelyToSystemOut("AC " + currentAircraft + " (" + aircraft.get(currentAircraft).getId() + ") successfully displaced and snapped, iteration " + i + " adding " + latAdded + " to lat and " + lonAdded + " to lon.");
 						success = true;
 						done = true;
 					}
 				}
-				
-				if (done) {
-					printlnSafelyToSystemOut("AC " + currentAircraft + " Now snapped successfully");
-				} else {
-					printlnSafelyToSystemOut("AC " + currentAircraft + " Still failed to snap successfully");
-				}
-			} // end of check for successful snap
-			
-			// if successfully snapped, add to list for visualising, and get stand and runway used by aircraft
-			LatLng[][] snappedCoords = new LatLng[2][0]; // needs to be at least two for original and displaced paths
-			List<TaxiNode> snappedStandNodes = null;
-			List<TaxiNode> snappedRunwayNodes = null;
-			List<RouteTaken> splitRoutes = new ArrayList<RouteTaken>();
-			double[] forOutput = new double[0]; // used to write out updated data file
-			if (success) {
-				List<Snapping> snapped = routeTaken.getSnappings();
-
-				double[][] coords = new double[snapped.size() * 2][2];
-				for (int j = 0; j < snapped.size(); j++) {
-					coords[j*2][1] = snapped.get(j).getSnappedEdge().getTnFrom().getLatCoordinate();
-					coords[j*2][0] = snapped.get(j).getSnappedEdge().getTnFrom().getLonCoordinate();
-					coords[(j*2)+1][1] = snapped.get(j).getSnappedEdge().getTnTo().getLatCoordinate();
-					coords[(j*2)+1][0] = snapped.get(j).getSnappedEdge().getTnTo().getLonCoordinate();
-				}
-				
-				// the snapped route coordinates - just the adjusted ones that met with success - not midpoints, nodes or anything else that might mess things up
-				forOutput = new double[orgCoords.size() * 4];
-				for (int j = 0; j < orgCoords.size(); j++) {
-					if (displacedCoords == null) { // use original coords
-						forOutput[j * 4] = orgCoords.get(j).getCoord().getLat(); // no need to swap original back to lat/lon order (it's already in that order), but do need to add altitude for output for consistency
-						forOutput[(j * 4) + 1] = orgCoords.get(j).getCoord().getLng();
-						forOutput[(j * 4) + 2] = 0;
-						forOutput[(j * 4) + 3] = orgCoords.get(j).getInterval();
+			} else {
+				// evaluate a whole ring of displacements at once. The spiral order means each ring is a contiguous block of
+				// indices, so checking the results in index order gives the same answer as the sequential search
+				displacementSearch:
+				for (int ring = 1, ringStart = 1; !done && (ring <= maxStepsOut); ring++) { // skip first one as that's the original
+					int ringEnd = (ring * 2 + 1) * (ring * 2 + 1); // exclusive
+					printlnSafelyToSystemOut("AC " + currentAircraft + " (" + aircraft.get(currentAircraft).getId() + ") displacing, ring " + ring + "/" + maxStepsOut + ", iterations " + ringStart + "-" + (ringEnd - 1) + "/" + displaced.size());
+					
+					List<Track> candidates = new ArrayList<Track>(ringEnd - ringStart);
+					List<Future<RouteTaken>> candidateRoutes = new ArrayList<Future<RouteTaken>>(ringEnd - ringStart);
+					final AtomicBoolean ringDone = new AtomicBoolean(); // set once the rest of the ring isn't needed, so candidates already running give up between stages
+					for (int i = ringStart; i < ringEnd; i++) {
+						final Track candidate = displaced.getDisplaced(i);
+						candidates.add(candidate);
+						final int candidateIndex = i;
+						candidateRoutes.add(displacementPool.submit(new Callable<RouteTaken>() {
+							@Override
+							public RouteTaken call() {
+								if (ringDone.get() || !isWorthSnapping(candidate, candidateIndex, minPointsNearEdges, bestDisplacements)) {
+									return new RouteTaken(new ArrayList<Snapping>(), new ArrayList<Boolean>());
+								}
+								return snapRouteToGraph(candidate, true, currentAircraft, ringDone); // harsher tolerance for unsnapped edges
+							}
+						}));
+					}
+					
+					for (int j = 0; j < candidateRoutes.size(); j++) {
+						if (done) { // an earlier candidate in this ring has already snapped, so no need for the rest
+							// a pool task can't be interrupted once it has started, so this only stops those still queued; ringDone stops the others
+							candidateRoutes.get(j).cancel(false);
+							continue;
+						}
 						
-					} else { // use displaced coords
-						forOutput[j * 4] = displacedCoords.get(j).getCoord().getLat(); // swap back to lat/lon order and add altitude for output for consistency
-						forOutput[(j * 4) + 1] = displacedCoords.get(j).getCoord().getLng();
-						forOutput[(j * 4) + 2] = 0;
-						forOutput[(j * 4) + 3] = orgCoords.get(j).getInterval();
+						try {
+							RouteTaken candidateRoute = candidateRoutes.get(j).get();
+							if (candidateRoute.getSnappings().size() > 0) {
+								routeTaken = candidateRoute;
+								displacedCoords = candidates.get(j);
+								latAdded = displacedCoords.getLat(0) - newCoords.getLat(0);
+								lonAdded = displacedCoords.getLon(0) - newCoords.getLon(0);
+								printlnSafelyToSystemOut("AC " + currentAircraft + " (" + aircraft.get(currentAircraft).getId() + ") successfully displaced and snapped, iteration " + (ringStart + j) + " adding " + latAdded + " to lat and " + lonAdded + " to lon.");
+								success = true;
+								done = true;
+								ringDone.set(true);
+							}
+						} catch (InterruptedException e) {
+							ringDone.set(true);
+							for (int k = j; k < candidateRoutes.size(); k++) {
+								candidateRoutes.get(k).cancel(false);
+							}
+							Thread.currentThread().interrupt();
+							break displacementSearch;
+						} catch (ExecutionException e) {
+							System.err.println("Error snapping displaced track for aircraft " + currentAircraft + ", iteration " + (ringStart + j));
+							e.getCause().printStackTrace();
+						}
 					}
+					
+					if (!done) { // as for the sequential search, keep the last one tried for the output
+						displacedCoords = candidates.get(candidates.size() - 1);
+					}
+					ringStart = ringEnd;
 				}
-				
-				// now the flightpaths for the KML output
-				splitRoutes = splitRoute(routeTaken);
-				snappedCoords = new LatLng[splitRoutes.size() + 2][]; // add 2 to leave room for original and displaced paths
-				for (int i = 0; i < splitRoutes.size(); i++) {
-					List<TaxiNode> splitRouteNodes = snappingListToNodeList(splitRoutes.get(i).getSnappings());
-					snappedCoords[i + 2] = nodeListToCoordsList(splitRouteNodes);
-				}
-				
-				// extract visited runways and stands from the lists
-				List<TaxiEdge> snappedEdges = SnapTracksThread.snappingListToEdgeList(snapped);
-				snappedStandNodes = extractStandNodesFromPath(snappedEdges);
-				snappedRunwayNodes = extractRunwayNodesFromPath(snappedEdges);
-			} // end of if(success)
+			}
 			
-			// even if unsuccessful, add original flight track to output
-			snappedCoords[0] = new LatLng[newCoords.size()]; // the original track coords
-			for (int i = 0; i < snappedCoords[0].length; i++) {
-				snappedCoords[0][i] = newCoords.get(i).getCoord();
-			}
-			snappedCoords[1] = new LatLng[(displacedCoords!=null)?displacedCoords.size():0]; // the displaced coords
-			for (int i = 0; i < snappedCoords[1].length; i++) {
-				snappedCoords[1][i] = displacedCoords.get(i).getCoord();
-			}
-			flightpaths[currentAircraft] = snappedCoords;
-			flightNames[currentAircraft] = aircraft.get(currentAircraft).toString();
-			aircraftRoutes[currentAircraft] = splitRoutes;
+			if (done) {
+				printlnSafelyToSystemOut("AC " + currentAircraft + " Now snapped successfully");
+			} else {
+				printlnSafelyToSystemOut("AC " + currentAircraft + " Still failed to snap successfully");
+			}
+		} // end of check for successful snap
+		
+		// if successfully snapped, add to list for visualising, and get stand and runway used by aircraft
+		LatLng[][] snappedCoords = new LatLng[2][0]; // needs to be at least two for original and displaced paths
+		List<TaxiNode> snappedStandNodes = null;
+		List<TaxiNode> snappedRunwayNodes = null;
+		List<RouteTaken> splitRoutes = new ArrayList<RouteTaken>();
+		double[] forOutput = new double[0]; // used to write out updated data file
+		if (success) {
+			List<Snapping> snapped = routeTaken.getSnappings();
+
+			double[][] coords = new double[snapped.size() * 2][2];
+			for (int j = 0; j < snapped.size(); j++) {
+				coords[j*2][1] = snapped.get(j).getSnappedEdge().getTnFrom().getLatCoordinate();
+				coords[j*2][0] = snapped.get(j).getSnappedEdge().getTnFrom().getLonCoordinate();
+				coords[(j*2)+1][1] = snapped.get(j).getSnappedEdge().getTnTo().getLatCoordinate();
+				coords[(j*2)+1][0] = snapped.get(j).getSnappedEdge().getTnTo().getLonCoordinate();
+			}
 			
-			String standNames = "";
-			String runwayNames = "";
-			if (snappedStandNodes != null) {
-				boolean first = true;
-				for (TaxiNode tn : snappedStandNodes) {
-					standNames += (first?"":",") + tn.getMeta(); // for stands, it's enough to get the stand names
-					first = false;
+			// the snapped route coordinates - just the adjusted ones that met with success - not midpoints, nodes or anything else that might mess things up
+			forOutput = new double[orgCoords.size() * 4];
+			for (int j = 0; j < orgCoords.size(); j++) {
+				if (displacedCoords == null) { // use original coords
+					forOutput[j * 4] = orgCoords.getLat(j); // no need to swap original back to lat/lon order (it's already in that order), but do need to add altitude for output for consistency
+					forOutput[(j * 4) + 1] = orgCoords.getLon(j);
+					forOutput[(j * 4) + 2] = 0;
+					forOutput[(j * 4) + 3] = orgCoords.getInterval(j);
+					
+				} else { // use displaced coords
+					forOutput[j * 4] = displacedCoords.getLat(j); // swap back to lat/lon order and add altitude for output for consistency
+					forOutput[(j * 4) + 1] = displacedCoords.getLon(j);
+					forOutput[(j * 4) + 2] = 0;
+					forOutput[(j * 4) + 3] = orgCoords.getInterval(j);
 				}
 			}
-			if (snappedRunwayNodes != null) {
-				boolean first = true;
-				for (TaxiNode tn : snappedRunwayNodes) {
-					runwayNames += (first?"":",") + tn.getId() + "-"+ tn.getMeta(); // for runways, get the entry/exit point too
-					first = false;
-				}
+			
+			// now the flightpaths for the KML output
+			splitRoutes = splitRoute(routeTaken);
+			snappedCoords = new LatLng[splitRoutes.size() + 2][]; // add 2 to leave room for original and displaced paths
+			for (int i = 0; i < splitRoutes.size(); i++) {
+				List<TaxiNode> splitRouteNodes = snappingListToNodeList(splitRoutes.get(i).getSnappings());
+				snappedCoords[i + 2] = nodeListToCoordsList(splitRouteNodes);
 			}
 			
-			if (snappedOut != null) {
-				long firstTimestamp = aircraft.get(currentAircraft).getCoords().get(0).getTimestamp();
-				ArrayTools.roundPlaces = ArrayTools.NOROUNDING;
-				printlnSafelyToSnappedOut(aircraft.get(currentAircraft).getId() + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
-						aircraft.get(currentAircraft).getOrigin() + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
-						aircraft.get(currentAircraft).getDestination() + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
-						standNames + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
-						runwayNames + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
-						(success?1:0) + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
-						latAdded + SNAPPED_TRACKS_OUTPUT_SUBSEPARATOR + lonAdded + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
-						ArrayTools.toString(forOutput, SNAPPED_TRACKS_OUTPUT_SUBSEPARATOR) + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
-						firstTimestamp);
+			// extract visited runways and stands from the lists
+			List<TaxiEdge> snappedEdges = SnapTracksThread.snappingListToEdgeList(snapped);
+			snappedStandNodes = extractStandNodesFromPath(snappedEdges);
+			snappedRunwayNodes = extractRunwayNodesFromPath(snappedEdges);
+		} // end of if(success)
+		
+		// even if unsuccessful, add original flight track to output
+		snappedCoords[0] = newCoords.toLatLngs(); // the original track coords
+		snappedCoords[1] = (displacedCoords != null) ? displacedCoords.toLatLngs() : new LatLng[0]; // the displaced coords
+		
+		String standNames = "";
+		String runwayNames = "";
+		if (snappedStandNodes != null) {
+			boolean first = true;
+			for (TaxiNode tn : snappedStandNodes) {
+				standNames += (first?"":",") + tn.getMeta(); // for stands, it's enough to get the stand names
+				first = false;
 			}
-		} // end of loop over available aircraft
+		}
+		if (snappedRunwayNodes != null) {
+			boolean first = true;
+			for (TaxiNode tn : snappedRunwayNodes) {
+				runwayNames += (first?"":",") + tn.getId() + "-"+ tn.getMeta(); // for runways, get the entry/exit point too
+				first = false;
+			}
+		}
 		
-		printlnSafelyToSystemOut("Thread " + this.threadNum + " terminated."); // all done!
+		if (snappedOut != null) {
+			long firstTimestamp = aircraft.get(currentAircraft).getTrack().getTimestamp(0);
+			ArrayTools.roundPlaces = ArrayTools.NOROUNDING;
+			printlnSafelyToSnappedOut(aircraft.get(currentAircraft).getId() + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
+					aircraft.get(currentAircraft).getOrigin() + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
+					aircraft.get(currentAircraft).getDestination() + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
+					standNames + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
+					runwayNames + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
+					(success?1:0) + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
+					latAdded + SNAPPED_TRACKS_OUTPUT_SUBSEPARATOR + lonAdded + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
+					ArrayTools.toString(forOutput, SNAPPED_TRACKS_OUTPUT_SUBSEPARATOR) + SNAPPED_TRACKS_OUTPUT_SEPARATOR + 
+					firstTimestamp);
+		}
+		
+		if (SnapTracks.GLOBAL_DEBUG_SNAPPING_CACHE) {
+			printlnSafelyToSystemOut("AC " + currentAircraft + " done. " + getPathCacheStats());
+		}
+		
+		return new SnapResult(currentAircraft, snappedCoords, aircraft.get(currentAircraft).toString(), splitRoutes);
 	}
 	
 	
+	/**
+	 * cheap version of stage 1 of {@link #snapRouteToGraph(Track, boolean, int)}: counts the points that are within the snap distance
+	 * of at least one edge, without building any snappings. Gives up as soon as minRequired can no longer be reached.
+	 * @return number of points near an edge, or -1 if fewer than minRequired points could be near an edge (in which case step 7 of
+	 * the full snapping would fail anyway)
+	 */
+	public int countPointsNearEdges(Track track, double minRequired) {
+		int count = 0;
+		NearbyEdges nearby = nearbyEdges.get();
+		for (int i = 0; i < track.size(); i++) {
+			if (count + (track.size() - i) < minRequired) { // even if all remaining points are near an edge, not enough
+				return -1;
+			}
+			
+			if (nearby.isNearAnEdge(track.getLat(i), track.getLon(i), this.snapDistanceM)) {
+				count++;
+			}
+		}
+		
+		return (count < minRequired) ? -1 : count;
+	}
+	
+	/**
+	 * scores every displacement with {@link #countPointsNearEdges(Track, double)}, and picks out the best ones
+	 * @return for each displacement index, whether it is one of the maxToKeep highest scoring displacements that could pass stage 1
+	 * (ties go to the displacement closest to the original track). Index 0 (the original track) is never kept. 
+	 */
+	private boolean[] bestDisplacements(DisplacedTracks displaced, double minRequired, int maxToKeep) {
+		final int[] scores = new int[displaced.size()];
+		List<Integer> passed = new ArrayList<Integer>();
+		for (int i = 1; i < scores.length; i++) {
+			scores[i] = countPointsNearEdges(displaced.getDisplaced(i), minRequired);
+			if (scores[i] >= 0) {
+				passed.add(i);
+			}
+		}
+		
+		Collections.sort(passed, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				if (scores[i1] != scores[i2]) {
+					return Integer.compare(scores[i2], scores[i1]); // highest score first
+				} else {
+					return Integer.compare(i1, i2); // then spiral order
+				}
+			}
+		});
+		
+		boolean[] rval = new boolean[scores.length];
+		for (int i = 0; (i < passed.size()) && (i < maxToKeep); i++) {
+			rval[passed.get(i)] = true;
+		}
+		
+		return rval;
+	}
+	
+	/**
+	 * @return true if this displaced track is worth running the full snapping process on
+	 * @param bestDisplacements from {@link #bestDisplacements(DisplacedTracks, double, int)}; if null, any displacement that could pass stage 1 is worth trying
+	 */
+	private boolean isWorthSnapping(Track displacedTrack, int index, double minRequired, boolean[] bestDisplacements) {
+		if (bestDisplacements != null) {
+			return bestDisplacements[index];
+		} else {
+			return countPointsNearEdges(displacedTrack, minRequired) >= 0;
+		}
+	}
+	
 	/**
 	 * try snapping a set of coordinates to the taxiway graph
 	 * <br/>
@@ -326,8 +562,16 @@ public class SnapTracksThread extends Thread {
 	 * TODO - writing out of snapped tracks as we go should be much cleaner, to allow for a "resume" function if we fail part-way through
 	 * (can't easily write GM file as we go because it needs routes and aircraft written to different places) 
 	 */
+	public RouteTaken snapRouteToGraph(Track track, boolean harsh, int aircraftNumberForOutput) {
+		return snapRouteToGraph(track, harsh, aircraftNumberForOutput, null);
+	}
+	
+	/**
+	 * as {@link #snapRouteToGraph(Track, boolean, int)}
+	 * @param cancelled if not null, checked between stages: once it is set, the empty route is returned without finishing
+	 */
 	@SuppressWarnings("unchecked")
-	public RouteTaken snapRouteToGraph(List<TimeCoordinate> track, boolean harsh, int aircraftNumberForOutput) {
+	public RouteTaken snapRouteToGraph(Track track, boolean harsh, int aircraftNumberForOutput, AtomicBoolean cancelled) {
 		boolean localDebug = SnapTracks.GLOBAL_DEBUG_SNAPPING; // enable to output KML and debugging data after each step
 
 		// in the comments below "stage" refers to a larger stages in the paper text
@@ -349,6 +593,7 @@ public class SnapTracksThread extends Thread {
 		
 		// stage 1 (steps 4-6): find the set of nearest nodes to each point (ie within 10m)
 		List<List<Snapping>> snaps = new ArrayList<List<Snapping>>(track.size());
+		NearbyEdges nearby = nearbyEdges.get();
 		for (int i = 0; i < track.size(); i++) {
 			List<Snapping> thisCoordSnaps = new ArrayList<Snapping>();
 
@@ -356,28 +601,13 @@ public class SnapTracksThread extends Thread {
 			double closestDistance = Double.POSITIVE_INFINITY;
 			TaxiEdge closestEdge = null;
 			
-			// for every edge, find the nearest point, and if within the snap distance, keep that point and that edge handy
-			// TODO room for efficiency improvement here: we could easily skip edges that are nowhere near the point - look at ends and only keep if one end is within range, or the ends are either side of this a time-coordinate
-			for (TaxiEdge te : edgeClusters.getEdgesNearPoint(track.get(i).getCoord())) {
-				double[] nearestPointD = TaxiGen.nearestPointOnLine(track.get(i).getCoord().getLat(), track.get(i).getCoord().getLng(), te.getTnFrom().getLatCoordinate(), te.getTnFrom().getLonCoordinate(), te.getTnTo().getLatCoordinate(), te.getTnTo().getLonCoordinate());
-				LatLng nearestPoint = new LatLng(nearestPointD[0], nearestPointD[1]);
-				double distance;
-				boolean beyondEndOfEdge = (nearestPoint.getLat() <= Math.min(te.getTnFrom().getLatCoordinate(), te.getTnTo().getLatCoordinate())) || (nearestPoint.getLat() >= Math.max(te.getTnFrom().getLatCoordinate(), te.getTnTo().getLatCoordinate()));
-				
-				if (beyondEndOfEdge) {
-					double distanceFromPointToNode1 = Geography.distance(te.getTnFrom().getLatCoordinate(), te.getTnFrom().getLonCoordinate(), track.get(i).getCoord().getLat(), track.get(i).getCoord().getLng());
-					double distanceFromPointToNode2 = Geography.distance(te.getTnTo().getLatCoordinate(), te.getTnTo().getLonCoordinate(), track.get(i).getCoord().getLat(), track.get(i).getCoord().getLng());
-					
-					if (distanceFromPointToNode1 < distanceFromPointToNode2) {
-						distance = distanceFromPointToNode1;
-						nearestPoint = new LatLng(te.getTnFrom().getLatCoordinate(), te.getTnFrom().getLonCoordinate());
-					} else {
-						distance = distanceFromPointToNode2;
-						nearestPoint = new LatLng(te.getTnTo().getLatCoordinate(), te.getTnTo().getLonCoordinate());
-					}
-				} else {
-					distance = Geography.distance(track.get(i).getCoord(), nearestPoint);//TaxiGen.distance(coords[i][1], coords[i][0], nearestPoint[0], nearestPoint[1]);
-				}
+			// for every edge near the point (from the edge index), find the nearest point, and if within the snap distance, keep that point and that edge handy
+			// only the edges that are close enough get a Snapping (and a LatLng for the nearest point)
+			int found = nearby.find(track.getLat(i), track.getLon(i));
+			TimeCoordinate originalCoord = null; // only made if the point snaps to something
+			for (int e = 0; e < found; e++) {
+				TaxiEdge te = nearby.getEdge(e);
+				double distance = nearby.getDistance(e);
 
 				// for debug only, so skip if not debugging
 				if (localDebug) {
@@ -388,11 +618,15 @@ public class SnapTracksThread extends Thread {
 				}
 				
 				if (distance < snapDistance) {
-					Snapping s = new Snapping(track.get(i), nearestPoint, distance, te, track.get(i).getTimestamp() * 1000, false);
+					LatLng nearestPoint = nearby.getNearestPoint(e);
+					if (originalCoord == null) {
+						originalCoord = track.getTimeCoordinate(i);
+					}
+					Snapping s = new Snapping(originalCoord, nearestPoint, distance, te, nearby.getFractionAlongEdge(e), track.getTimestamp(i) * 1000, false);
 					thisCoordSnaps.add(s);
 
 					if (localDebug) {
-						printlnSafelyToSystemOut(i + "\t" + track.get(i) + "\t" + nearestPoint + "\t" + s);
+						printlnSafelyToSystemOut(i + "\t" + originalCoord + "\t" + nearestPoint + "\t" + s);
 					}
 				}
 			}
@@ -401,7 +635,7 @@ public class SnapTracksThread extends Thread {
 				snaps.add(thisCoordSnaps);
 			} else {
 				if (localDebug) {
-					printlnSafelyToSystemOut(i + "\t" + track.get(i) + "\tFAILED_TO_SNAP\tClosestEdgeWas" + closestEdge + "\tAt" + closestDistance + "m");
+					printlnSafelyToSystemOut(i + "\t" + track.getTimeCoordinate(i) + "\tFAILED_TO_SNAP\tClosestEdgeWas" + closestEdge + "\tAt" + closestDistance + "m");
 				}
 			}
 		}
@@ -414,7 +648,7 @@ public class SnapTracksThread extends Thread {
 			printlnSafelyToSystemOut("Post Stage 1");
 			for (int i = 0; i < snaps.size(); i++) {
 				List<Snapping> l = snaps.get(i);
-				printlnSafelyToSystemOut(i + ","+track.get(i) + ","+ l.size() + ArrayTools.toString(l.toArray()));
+				printlnSafelyToSystemOut(i + ","+track.getTimeCoordinate(i) + ","+ l.size() + ArrayTools.toString(l.toArray()));
 			}
 		}
 		
@@ -427,6 +661,10 @@ public class SnapTracksThread extends Thread {
 			return DEFAULT;
 		}
 		
+		if ((cancelled != null) && cancelled.get()) {
+			return DEFAULT;
+		}
+		
 		// stage 2a (step 8). now, process the edges:
 		// at the ends, we should have a single gate or a runway. if there are edges associated with gates, then pick the closest one
 		// if there is an edge associated with a runway, pick that. Otherwise, keep all possible edges for now 
@@ -441,7 +679,7 @@ public class SnapTracksThread extends Thread {
 			printlnSafelyToSystemOut("Post stage 2a (step 8)");
 			for (int i = 0; i < snaps.size(); i++) {
 				List<Snapping> l = snaps.get(i);
-				printlnSafelyToSystemOut(i + ","+track.get(i) + ","+ l.size() + ArrayTools.toString(l.toArray()));
+				printlnSafelyToSystemOut(i + ","+track.getTimeCoordinate(i) + ","+ l.size() + ArrayTools.toString(l.toArray()));
 			}
 		}
 		
@@ -546,7 +784,7 @@ public class SnapTracksThread extends Thread {
 			printlnSafelyToSystemOut("Post stage 2b (step 9)");
 			for (int i = 0; i < snaps.size(); i++) {
 				List<Snapping> l = snaps.get(i);
-				printlnSafelyToSystemOut(i + ","+track.get(i) + ","+ l.size() + ArrayTools.toString(l.toArray()));
+				printlnSafelyToSystemOut(i + ","+track.getTimeCoordinate(i) + ","+ l.size() + ArrayTools.toString(l.toArray()));
 			}
 		}
 		
@@ -554,6 +792,10 @@ public class SnapTracksThread extends Thread {
 			printlnSafelyToSystemOut("Starting Stage 3a (step 10)...");
 		}
 		
+		if ((cancelled != null) && cancelled.get()) {
+			return DEFAULT;
+		}
+		
 		// stage 3a (step 10): work along path, looking for pairs of coords matching single edges (that is, no doubt about which edge a coord corresponds to)
 		// get list of k shortest paths between those edges
 		// pick the path which maximises the number of edges that would be kept (ie the path contains the most edges from the set of candidate edges between the two coords)
@@ -588,7 +830,7 @@ public class SnapTracksThread extends Thread {
 				// if these are the same edge, or adjacent, the path between is somewhat meaningless, so don't bother
 				if (!((leftEdge == rightEdge) || leftEdge.isAdjacentTo(rightEdge))) {
 					// work out the two closest nodes of the four represented by the edges 
-					Object[] leftRightNodes = getNodePair(graph, leftEdge, rightEdge, true);
+					Object[] leftRightNodes = (router != null) ? getNodePair(router, leftEdge, rightEdge) : getNodePair(getShortestPathTreeFrom(leftEdge.getTnFrom()), getShortestPathTreeFrom(leftEdge.getTnTo()), rightEdge, true);
 					
 					if ((leftRightNodes[0] == null) || (leftRightNodes[1] == null) || (leftRightNodes[2] == null)) {
 						// if we get here, it's because we found an edge not connected to the rest of the graph
@@ -648,11 +890,15 @@ public class SnapTracksThread extends Thread {
 			printlnSafelyToSystemOut("Post stage 3a (step 10)");
 			for (int i = 0; i < snaps.size(); i++) {
 				List<Snapping> l = snaps.get(i);
-				printlnSafelyToSystemOut(i + ","+track.get(i) + ","+ l.size() + ArrayTools.toString(l.toArray()));
+				printlnSafelyToSystemOut(i + ","+track.getTimeCoordinate(i) + ","+ l.size() + ArrayTools.toString(l.toArray()));
 			}
 		}
 		
 		
+		if ((cancelled != null) && cancelled.get()) {
+			return DEFAULT;
+		}
+		
 		// stage 3b (steps 11-24) - the four loops wrapped up into one
 		// there will still be multiple candidates for edges against some time coords. So let's trim some more here.
 		for (int i = 0; i < snaps.size(); i++) {
@@ -732,7 +978,7 @@ public class SnapTracksThread extends Thread {
 			printlnSafelyToSystemOut("Post stage 3b (steps 11-24)");
 			for (int i = 0; i < snaps.size(); i++) {
 				List<Snapping> l = snaps.get(i);
-				printlnSafelyToSystemOut(i + ","+track.get(i) + ","+ l.size() + ArrayTools.toString(l.toArray()));
+				printlnSafelyToSystemOut(i + ","+track.getTimeCoordinate(i) + ","+ l.size() + ArrayTools.toString(l.toArray()));
 			}
 		}
 		
@@ -814,6 +1060,10 @@ public class SnapTracksThread extends Thread {
 			return DEFAULT;
 		}
 		
+		if ((cancelled != null) && cancelled.get()) {
+			return DEFAULT;
+		}
+		
 		// stage 4 (step 26) - derive a route by looping over all the edges in the path and interpolating the shortest route between them
 		List<Snapping> snappedRoute = new ArrayList<Snapping>();
 		Snapping previousSnap = snaps.get(0).get(0);
@@ -828,39 +1078,45 @@ public class SnapTracksThread extends Thread {
 				if (j > 0) { // not on first edge
 					if (currentSnap.getSnappedEdge() != previousSnap.getSnappedEdge()) { // not a duplicate of previous edge
 						if (!currentSnap.getSnappedEdge().isAdjacentTo(previousSnap.getSnappedEdge())) { // not already an adjacent edge to previous
-							DijkstraShortestPath<TaxiNode, TaxiEdge> dsp = getShortestPathBetween(previousSnap.getSnappedEdge().getTnFrom(), currentSnap.getSnappedEdge().getTnFrom());
-							List<TaxiEdge> shortestPath = dsp.getPathEdgeList();
-							double shortest = dsp.getPathLength();
+							// one tree from each end of the previous edge covers all four pairs of nodes
+							ShortestPathTree fromPreviousFrom = getShortestPathTreeFrom(previousSnap.getSnappedEdge().getTnFrom());
+							ShortestPathTree fromPreviousTo = getShortestPathTreeFrom(previousSnap.getSnappedEdge().getTnTo());
+							TaxiNode closestPrevious = previousSnap.getSnappedEdge().getTnFrom();
+							TaxiNode closestCurrent = currentSnap.getSnappedEdge().getTnFrom();
+							ShortestPathTree closestTree = fromPreviousFrom;
+							double shortest = fromPreviousFrom.getDistance(currentSnap.getSnappedEdge().getTnFrom());
 							boolean previousFromTo = false; // keeps track of which nodes were closest together (these are the direction travelled on the previous and current edges). 
 							boolean currentFromTo = true; // Here prevFrom and curFrom were closest, to prev was backwards (FromTo==false), and cur was forwards (FromTo==true)
 							
-							dsp = getShortestPathBetween(previousSnap.getSnappedEdge().getTnFrom(), currentSnap.getSnappedEdge().getTnTo());
-							double length = dsp.getPathLength();
+							double length = fromPreviousFrom.getDistance(currentSnap.getSnappedEdge().getTnTo());
 							if (length < shortest) {
-								shortestPath = dsp.getPathEdgeList();
+								closestCurrent = currentSnap.getSnappedEdge().getTnTo();
 								shortest = length;
 								previousFromTo = false; // Here prevFrom and curTo were closest, to prev was backwards (FromTo==false), and cur was backwards (FromTo==false)
 								currentFromTo = false;
 							}
-							dsp = getShortestPathBetween(previousSnap.getSnappedEdge().getTnTo(), currentSnap.getSnappedEdge().getTnFrom());
-							length = dsp.getPathLength();
+							length = fromPreviousTo.getDistance(currentSnap.getSnappedEdge().getTnFrom());
 							if (length < shortest) {
-								shortestPath = dsp.getPathEdgeList();
+								closestPrevious = previousSnap.getSnappedEdge().getTnTo();
+								closestCurrent = currentSnap.getSnappedEdge().getTnFrom();
+								closestTree = fromPreviousTo;
 								shortest = length;
 								previousFromTo = true; // Here prevTo and curFrom were closest, to prev was forwards (FromTo==true), and cur was forwards (FromTo==true)
 								currentFromTo = true;
 							}
-							dsp = getShortestPathBetween(previousSnap.getSnappedEdge().getTnTo(), currentSnap.getSnappedEdge().getTnTo());
-							length = dsp.getPathLength();
+							length = fromPreviousTo.getDistance(currentSnap.getSnappedEdge().getTnTo());
 							if (length < shortest) {
-								shortestPath = dsp.getPathEdgeList();
+								closestPrevious = previousSnap.getSnappedEdge().getTnTo();
+								closestCurrent = currentSnap.getSnappedEdge().getTnTo();
+								closestTree = fromPreviousTo;
 								shortest = length;
 								previousFromTo = true; // Here prevTo and curTo were closest, to prev was forwards (FromTo==true), and cur was backwards (FromTo==false)
 								currentFromTo = false;
 							}
 							
-							if (dsp.getPath() == null) {
-								System.err.println("WARNING: No path found between nodes " + previousSnap.getSnappedEdge().getTnTo() + " and " + currentSnap.getSnappedEdge().getTnTo() + ". Check the graph for connectivity!");
+							List<TaxiEdge> shortestPath = closestTree.getPathEdgeList(closestCurrent);
+							if (shortestPath == null) {
+								System.err.println("WARNING: No path found between nodes " + closestPrevious + " and " + closestCurrent + ". Check the graph for connectivity!");
 								return DEFAULT;
 							}
 							
@@ -996,45 +1252,83 @@ public class SnapTracksThread extends Thread {
 	}
 	
 	private List<GraphPath<TaxiNode, TaxiEdge>> getShortestsPathsBetween(TaxiNode tn0, TaxiNode tn1) {
-		// in the cache?
-		Map<TaxiNode, List<GraphPath<TaxiNode, TaxiEdge>>> pathsForTN0 = kShortestPathsCache.get(tn0);
-		if (pathsForTN0 == null) {
-			pathsForTN0 = new ConcurrentHashMap<>();
-			kShortestPathsCache.put(tn0, pathsForTN0);
-		}
-		
-		List<GraphPath<TaxiNode, TaxiEdge>> paths = pathsForTN0.get(tn1);
-		if (paths == null) {
-			if (SnapTracks.GLOBAL_DEBUG_SNAPPING_CACHE) printlnSafelyToSystemOut("kShortestPaths cache MISS " + tn0 + "--->" + tn1);
-			KShortestPaths<TaxiNode, TaxiEdge> ksp = new KShortestPaths<TaxiNode, TaxiEdge>(graph, tn0, kForStage2PathReduction, maxHopsForStage2PathReduction);
-			paths = ksp.getPaths(tn1);
-			if (paths == null) { // no paths found: this can easily happen if we're limiting the length of the paths allowed using maxHops
-				paths = Collections.emptyList();
+		NodePair pair = new NodePair(tn0, tn1);
+		if (precomputedKShortestPaths != null) {
+			List<GraphPath<TaxiNode, TaxiEdge>> paths = precomputedKShortestPaths.get(pair);
+			if (paths != null) {
+				precomputedHits.incrementAndGet();
+				return paths;
 			}
-			
-			pathsForTN0.put(tn1, paths);
-		} else {
-			if (SnapTracks.GLOBAL_DEBUG_SNAPPING_CACHE) printlnSafelyToSystemOut("kShortestPaths cache HIT " + tn0 + "--->" + tn1);
+			precomputedMisses.incrementAndGet();
+		}
+		if (missedPairs != null) {
+			missedPairs.add(pair);
 		}
 		
-		return paths;
+		return kShortestPathsCache.get(pair, new BoundedCache.Loader<NodePair, List<GraphPath<TaxiNode, TaxiEdge>>>() {
+			@Override
+			public List<GraphPath<TaxiNode, TaxiEdge>> load(NodePair key) {
+				if ((router != null) && (maxHopsForStage2PathReduction == Integer.MAX_VALUE)) { // the router has no limit on path length
+					return router.getKShortestPaths(key.getFrom(), key.getTo(), kForStage2PathReduction);
+				}
+				
+				KShortestPaths<TaxiNode, TaxiEdge> ksp = new KShortestPaths<TaxiNode, TaxiEdge>(graph, key.getFrom(), kForStage2PathReduction, maxHopsForStage2PathReduction);
+				List<GraphPath<TaxiNode, TaxiEdge>> paths = ksp.getPaths(key.getTo());
+				if (paths == null) { // no paths found: this can easily happen if we're limiting the length of the paths allowed using maxHops
+					paths = Collections.emptyList();
+				}
+				
+				return paths;
+			}
+		});
 	}
 	
-	private DijkstraShortestPath<TaxiNode, TaxiEdge> getShortestPathBetween(TaxiNode tn0, TaxiNode tn1) {
-		// in the cache?
-		Map<TaxiNode, DijkstraShortestPath<TaxiNode, TaxiEdge>> pathsForTN0 = shortestPathCache.get(tn0);
-		if (pathsForTN0 == null) {
-			pathsForTN0 = new ConcurrentHashMap<>();
-			shortestPathCache.put(tn0, pathsForTN0);
-		}
-		
-		DijkstraShortestPath<TaxiNode, TaxiEdge> dsp = pathsForTN0.get(tn1);
-		if (dsp == null) {
-			dsp = new DijkstraShortestPath<TaxiNode, TaxiEdge>(graph, tn0, tn1);
-			pathsForTN0.put(tn1, dsp);
-		}
-		
-		return dsp;
+	private ShortestPathTree getShortestPathTreeFrom(TaxiNode source) {
+		return shortestPathTreeCache.get(source, new BoundedCache.Loader<TaxiNode, ShortestPathTree>() {
+			@Override
+			public ShortestPathTree load(TaxiNode key) {
+				return new ShortestPathTree(compactGraph, key);
+			}
+		});
+	}
+	
+	/**
+	 * replaces the (static, shared) path caches with new, empty ones; call before snapping starts
+	 * @param maxPairs max number of node pairs in the k shortest paths cache; 0 or less for no limit
+	 * @param maxTrees max number of source nodes in the shortest path tree cache; 0 or less for no limit
+	 */
+	public static void configurePathCaches(int maxPairs, int maxTrees, EvictionPolicy policy) {
+		kShortestPathsCache = new BoundedCache<>("kShortestPaths cache", maxPairs, policy);
+		shortestPathTreeCache = new BoundedCache<>("shortestPathTree cache", maxTrees, policy);
+	}
+	
+	/**
+	 * k shortest paths to use instead of computing them; pairs not in the table are still computed (and cached) as before
+	 * @param paths map from node pairs to the paths between them, shortest first; null to stop using a table
+	 */
+	public static void setPrecomputedKShortestPaths(Map<NodePair,List<GraphPath<TaxiNode, TaxiEdge>>> paths) {
+		precomputedKShortestPaths = paths;
+		precomputedHits.set(0);
+		precomputedMisses.set(0);
+	}
+	
+	/**
+	 * start (or stop) keeping the node pairs whose paths had to be computed, because they weren't in the table set with 
+	 * {@link #setPrecomputedKShortestPaths(Map)}; see {@link #getMissedPairs()}
+	 */
+	public static void setRecordMissedPairs(boolean record) {
+		missedPairs = record ? Collections.newSetFromMap(new ConcurrentHashMap<NodePair, Boolean>()) : null;
+	}
+	
+	/**@return the node pairs recorded since {@link #setRecordMissedPairs(boolean)}, or an empty set if they aren't being recorded*/
+	public static Set<NodePair> getMissedPairs() {
+		return (missedPairs != null) ? missedPairs : Collections.<NodePair>emptySet();
+	}
+	
+	/**@return hits, misses etc for the shortest paths table (if there is one) and the path caches*/
+	public static String getPathCacheStats() {
+		String table = (precomputedKShortestPaths != null) ? "shortest paths table: " + precomputedHits.get() + " hits, " + precomputedMisses.get() + " misses; " : "";
+		return table + kShortestPathsCache + "; " + shortestPathTreeCache;
 	}
 	
 	/**
@@ -1256,53 +1550,45 @@ public class SnapTracksThread extends Thread {
 	}
 	
 	/**
-	 * @return the pair of nodes belonging to the specified edges that are nearest or furthest apart.
+	 * @return the pair of nodes belonging to the specified edges that are nearest or furthest apart, using shortest path trees 
+	 * already found from the from and to nodes of the left edge, so no further searching is needed.
 	 * These will be nulls if no connection could be found!
 	 * @return TaxiNode leftNode, TaxiNode rightNode, GraphPath<TaxiNode, TaxiEdge> shortestPath
 	 */
-	public static Object[] getNodePair(WeightedMultigraph<TaxiNode, TaxiEdge> graph, TaxiEdge leftEdge, TaxiEdge rightEdge, boolean nearest) {
+	public static Object[] getNodePair(ShortestPathTree leftFromTree, ShortestPathTree leftToTree, TaxiEdge rightEdge, boolean nearest) {
 		double best = nearest ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
-		TaxiNode leftNode = null;
+		ShortestPathTree bestTree = null;
 		TaxiNode rightNode = null;
-		GraphPath<TaxiNode, TaxiEdge> shortestPath = null;
-		
-		DijkstraShortestPath<TaxiNode, TaxiEdge> dsp = new DijkstraShortestPath<TaxiNode, TaxiEdge>(graph, leftEdge.getTnFrom(), rightEdge.getTnFrom());
-		double length = dsp.getPathLength();
-		if (nearest ? length < best : length > best) {
-			leftNode = leftEdge.getTnFrom();
-			rightNode = rightEdge.getTnFrom();
-			best = length;
-			shortestPath = dsp.getPath();
-		}
 		
-		dsp = new DijkstraShortestPath<TaxiNode, TaxiEdge>(graph, leftEdge.getTnFrom(), rightEdge.getTnTo());
-		length = dsp.getPathLength();
-		if (nearest ? length < best : length > best) {
-			leftNode = leftEdge.getTnFrom();
-			rightNode = rightEdge.getTnTo();
-			best = length;
-			shortestPath = dsp.getPath();
+		for (ShortestPathTree tree : new ShortestPathTree[] {leftFromTree, leftToTree}) {
+			for (TaxiNode tn : new TaxiNode[] {rightEdge.getTnFrom(), rightEdge.getTnTo()}) {
+				double length = tree.getDistance(tn);
+				if (nearest ? length < best : length > best) {
+					bestTree = tree;
+					rightNode = tn;
+					best = length;
+				}
+			}
 		}
 		
-		dsp = new DijkstraShortestPath<TaxiNode, TaxiEdge>(graph, leftEdge.getTnTo(), rightEdge.getTnFrom());
-		length = dsp.getPathLength();
-		if (nearest ? length < best : length > best) {
-			leftNode = leftEdge.getTnTo();
-			rightNode = rightEdge.getTnFrom();
-			best = length;
-			shortestPath = dsp.getPath();
+		if (bestTree == null) {
+			return new Object[] {null, null, null};
 		}
 		
-		dsp = new DijkstraShortestPath<TaxiNode, TaxiEdge>(graph, leftEdge.getTnTo(), rightEdge.getTnTo());
-		length = dsp.getPathLength();
-		if (nearest ? length < best : length > best) {
-			leftNode = leftEdge.getTnTo();
-			rightNode = rightEdge.getTnTo();
-			best = length;
-			shortestPath = dsp.getPath();
+		return new Object[] {bestTree.getSource(), rightNode, bestTree.getPath(rightNode)};
+	}
+	
+	/**
+	 * as {@link #getNodePair(ShortestPathTree, ShortestPathTree, TaxiEdge, boolean)} with nearest=true, but as a 
+	 * single A* search from both nodes of the left edge to whichever node of the right edge is reached first
+	 */
+	public static Object[] getNodePair(AStarRouter router, TaxiEdge leftEdge, TaxiEdge rightEdge) {
+		GraphPath<TaxiNode, TaxiEdge> shortestPath = router.getShortestPath(Arrays.asList(leftEdge.getTnFrom(), leftEdge.getTnTo()), Arrays.asList(rightEdge.getTnFrom(), rightEdge.getTnTo()));
+		if (shortestPath == null) {
+			return new Object[] {null, null, null};
 		}
 		
-		return new Object[] {leftNode, rightNode, shortestPath};
+		return new Object[] {shortestPath.getStartVertex(), shortestPath.getEndVertex(), shortestPath};
 	}
 	
 	/**
@@ -1862,21 +2148,34 @@ public class SnapTracksThread extends Thread {
 		return rval;
 	}
 	
+	/**
+	 * the number prefixed to output lines: if we're running inside a pool (one task per aircraft),
+	 * this is the index of the pool worker doing the snapping, otherwise the number this thread was created with
+	 */
+	private int getOutputThreadNum() {
+		Thread current = Thread.currentThread();
+		if (current instanceof ForkJoinWorkerThread) {
+			return ((ForkJoinWorkerThread)current).getPoolIndex();
+		} else {
+			return threadNum;
+		}
+	}
+	
 	private void printlnSafelyToSnappedOut(String line) {
 		synchronized (this.snappedOut) {
-			this.snappedOut.println("T" + threadNum + ":\t" + line);
+			this.snappedOut.println("T" + getOutputThreadNum() + ":\t" + line);
 		}
 	}
 	
 	private void printlnSafelyToTimesOut(String line) {
 		synchronized (this.timesOut) {
-			this.timesOut.println("T" + threadNum + ":\t" + line);
+			this.timesOut.println("T" + getOutputThreadNum() + ":\t" + line);
 		}
 	}
 	
 	private void printlnSafelyToSystemOut(String line) {
 		synchronized (System.out) {
-			System.out.println("T" + threadNum + ":\t" + line);
+			System.out.println("T" + getOutputThreadNum() + ":\t" + line);
 		}
 	}
 	
@@ -1888,6 +2187,39 @@ public class SnapTracksThread extends Thread {
 		this.maxHopsForStage2PathReduction = maxHopsForStage2PathReduction;
 	}
 	
+	/**
+	 * @param displacementPool if not null, displaced tracks are tried a ring at a time using this pool rather than
+	 * one at a time. The result is the same as for the sequential search (the closest successful displacement wins)
+	 */
+	public void setDisplacementPool(ExecutorService displacementPool) {
+		this.displacementPool = displacementPool;
+	}
+	
+	/**
+	 * @param maxDisplacementsToSnap if more than 0, every displacement is scored by how many of its points are near a taxiway,
+	 * and only this many of the best are fully snapped (still in order of distance from the original track). 
+	 * Otherwise (the default), every displacement that could have enough points near a taxiway is tried.
+	 */
+	public void setMaxDisplacementsToSnap(int maxDisplacementsToSnap) {
+		this.maxDisplacementsToSnap = maxDisplacementsToSnap;
+	}
+	
+	/**
+	 * @param router if not null, A* search is used to find the paths between unambiguous edges in stage 3a 
+	 * (the k shortest paths, unless maxHops is set, and the nearest pair of nodes)
+	 */
+	public void setRouter(AStarRouter router) {
+		this.router = router;
+	}
+	
+	/**
+	 * @param runwayAlignment if not null, tracks that need displaced are first fitted to the runways, and the spiral search
+	 * is only used if none of the offsets from the fit snap successfully
+	 */
+	public void setRunwayAlignment(RunwayAlignment runwayAlignment) {
+		this.runwayAlignment = runwayAlignment;
+	}
+	
 	/** 
 	 * looks at the snappings, and the direction in which they're traversed, and determines which runway the aircraft used 
 	 * (including the direction of landing/takeoff)
@@ -1980,6 +2312,18 @@ public class SnapTracksThread extends Thread {
 			this.snappedFromCoord = true;
 		}
 		
+		/**as above, but with the fraction along the edge already worked out*/
+		public Snapping(TimeCoordinate originalCoord, LatLng snappedCoord, double distanceFromEdge, TaxiEdge snappedEdge, double fractionAlongEdge, long timeAtCoord, boolean timeEstimated) {
+			this.originalCoord = originalCoord;
+			this.snappedCoord = snappedCoord;
+			this.distanceFromEdge = distanceFromEdge;
+			this.snappedEdge = snappedEdge;
+			this.timesAtCoord = new ArrayList<CoordTime>();
+			this.timesAtCoord.add(new CoordTime(timeAtCoord, fractionAlongEdge, originalCoord.getCoord()));
+			this.timeEstimated = timeEstimated;
+			this.snappedFromCoord = true;
+		}
+		
 		/**assumes time estimated is at midpoint of edge*/
 		public Snapping(TaxiEdge snappedEdge, long timeAtCoord, boolean timeEstimated) {
 			this.originalCoord = null;
@@ -2175,6 +2519,39 @@ public class SnapTracksThread extends Thread {
 		}
 	}
 	
+	/**wraps the outcome of snapping one aircraft: the routes it took, the coords for KML output, and its name*/
+	public static class SnapResult {
+		private int index;
+		private LatLng[][] flightpath;
+		private String flightName;
+		private List<RouteTaken> routes;
+		
+		public SnapResult(int index, LatLng[][] flightpath, String flightName, List<RouteTaken> routes) {
+			this.index = index;
+			this.flightpath = flightpath;
+			this.flightName = flightName;
+			this.routes = routes;
+		}
+		
+		/**index of the aircraft in the list being snapped*/
+		public int getIndex() {
+			return index;
+		}
+		
+		/**original track, displaced track, then one entry per snapped route*/
+		public LatLng[][] getFlightpath() {
+			return flightpath;
+		}
+		
+		public String getFlightName() {
+			return flightName;
+		}
+		
+		public List<RouteTaken> getRoutes() {
+			return routes;
+		}
+	}
+	
 	/**wraps several values related to the time that an AC traversed an edge*/
 	public static class EdgeTime {
 		private double timeTaken;
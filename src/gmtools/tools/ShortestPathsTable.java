@@ -0,0 +1,410 @@
+package gmtools.tools;
+
+import gmtools.common.GroundMovementWriter;
+import gmtools.common.GroundMovementWriter.ShortestPath;
+import gmtools.common.Legal;
+import gmtools.graph.NodePair;
+import gmtools.graph.TaxiEdge;
+import gmtools.graph.TaxiNode;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jgrapht.GraphPath;
+import org.jgrapht.alg.KShortestPaths;
+import org.jgrapht.graph.GraphPathImpl;
+import org.jgrapht.graph.WeightedMultigraph;
+
+/**
+ * copyright (c) 2014-2015 Alexander E.I. Brownlee (sbr@cs.stir.ac.uk)
+ * Released under the MIT Licence http://opensource.org/licenses/MIT
+ * Instructions, citation information, licencing and source
+ * are available at https://github.com/gm-tools/gm-tools/
+ * <br/><br/>
+ * Generates and loads tables of the k shortest paths between pairs of nodes, in the same format as 
+ * the ShortestPaths section in the benchmarks (e.g. MAN_OSM_GM_ShortestPaths.txt). Loading a table
+ * means SnapTracks can look the paths up rather than computing them each time it is run on the same airport.
+ * <br/><br/>
+ * SnapTracks looks up paths between the nodes of whichever edges the tracks snapped to, not just stands and runways, 
+ * so a gate-runway table only covers some of them. SnapTracks -spPairs= records the pairs it looked up that weren't in 
+ * the table, and the -pairs= option here builds a table for exactly those pairs.
+ */
+public class ShortestPathsTable {
+	/**between the two node IDs on each line of a pairs file*/
+	public static final String PAIR_SEPARATOR = ",";
+	
+	/**
+	 *  Generate a table of k shortest paths for the airport in a GM file
+	 *  Usage: ShortestPathsTable inputGMfile outputFile [options]
+	 *  Options:
+	 *    -k=10 : number of paths between each pair of nodes (default=10)
+	 *    -maxHops=n : max number of edges in each path (default=no limit)
+	 *    -from=gate : node specifications for the start of the paths, comma separated, or "all" (default=gate)
+	 *    -to=runway : node specifications for the end of the paths, comma separated, or "all" (default=runway)
+	 *    -pairs=XXX_Pairs.txt : find paths for just the node pairs in this file (as written by SnapTracks -spPairs=), rather than using -from and -to
+	 *    -threads=4 : number of threads to use (default is whatever is returned by JVM for Runtime.getRuntime().availableProcessors())
+	 *  Paths are written in both directions, so (as for the benchmarks) the default gives paths between every stand and every runway node
+	 */
+	public static void main(String[] args) {
+		int k = 10;
+		int maxHops = Integer.MAX_VALUE;
+		String from = "gate";
+		String to = "runway";
+		String pairsFile = null;
+		int numberOfThreads = Runtime.getRuntime().availableProcessors();
+		
+		Legal.printLicence("ShortestPathsTable");
+		if (args.length < 2) {
+			printUsage();
+			System.exit(1);
+		}
+		
+		String gmFile = args[0];
+		String outFile = args[1];
+		
+		boolean argsOK = true;
+		for (int i = 2; i < args.length; i++) {
+			String a = args[i];
+			
+			try {
+				if (a.startsWith("-k=")) {
+					k = Integer.parseInt(a.substring(3));
+				} else if (a.startsWith("-maxHops=")) {
+					maxHops = Integer.parseInt(a.substring(9));
+				} else if (a.startsWith("-from=")) {
+					from = a.substring(6);
+				} else if (a.startsWith("-to=")) {
+					to = a.substring(4);
+				} else if (a.startsWith("-pairs=")) {
+					pairsFile = a.substring(7);
+				} else if (a.startsWith("-threads=")) {
+					numberOfThreads = Integer.parseInt(a.substring(9));
+				} else {
+					System.err.println("Unknown argument " + a);
+					argsOK = false;
+				}
+			} catch (Exception e) {
+				System.err.println("Error parsing argument " + a);
+				e.printStackTrace();
+				argsOK = false;
+			}
+		}
+		
+		if (!argsOK) {
+			System.err.println("Exiting.");
+			System.exit(1);
+		}
+		
+		GroundMovementWriter gmw = new GroundMovementWriter(gmFile);
+		TaxiGen at = new TaxiGen(gmw);
+		
+		GroundMovementWriter out;
+		if (pairsFile != null) {
+			Map<TaxiNode, List<TaxiNode>> ends = readPairs(pairsFile, at);
+			int pairCount = 0;
+			for (List<TaxiNode> endNodes : ends.values()) {
+				pairCount += endNodes.size();
+			}
+			System.out.println("Finding " + k + " shortest paths for " + pairCount + " node pairs from " + pairsFile + ", using " + numberOfThreads + " threads");
+			out = generate(at, ends, k, maxHops, numberOfThreads);
+		} else {
+			List<TaxiNode> fromNodes = nodesWithSpecifications(gmw, at, from);
+			List<TaxiNode> toNodes = nodesWithSpecifications(gmw, at, to);
+			System.out.println("Finding " + k + " shortest paths from " + fromNodes.size() + " nodes (" + from + ") to " + toNodes.size() + " nodes (" + to + "), using " + numberOfThreads + " threads");
+			out = generate(at, fromNodes, toNodes, k, maxHops, numberOfThreads);
+		}
+		out.writeShortestPathsFile(outFile);
+		System.out.println(out.getShortestPaths().size() + " paths written to " + outFile);
+	}
+	
+	public static void printUsage() {
+		System.out.println("Generate a table of k shortest paths for the airport in a GM file");
+		System.out.println("Usage: ShortestPathsTable inputGMfile outputFile [options]");
+		System.out.println();
+		System.out.println("Options:");
+		System.out.println("   -k=10 : number of paths between each pair of nodes (default=10)");
+		System.out.println("   -maxHops=n : max number of edges in each path (default=no limit)");
+		System.out.println("   -from=gate : node specifications for the start of the paths, comma separated, or \"all\" (default=gate)");
+		System.out.println("   -to=runway : node specifications for the end of the paths, comma separated, or \"all\" (default=runway)");
+		System.out.println("   -pairs=XXX_Pairs.txt : find paths for just the node pairs in this file (as written by SnapTracks -spPairs=), rather than using -from and -to");
+		System.out.println("   -threads=4 : number of threads to use (default is whatever is returned by JVM for Runtime.getRuntime().availableProcessors())");
+		System.out.println("Paths are written in both directions");
+		System.out.println();
+	}
+	
+	/**@param specifications comma separated list of GM node specifications, or "all"*/
+	private static List<TaxiNode> nodesWithSpecifications(GroundMovementWriter gmw, TaxiGen at, String specifications) {
+		boolean all = specifications.trim().equalsIgnoreCase("all");
+		Set<GroundMovementWriter.Node.Specification> specs = new HashSet<GroundMovementWriter.Node.Specification>();
+		if (!all) {
+			for (String s : specifications.split(",")) {
+				specs.add(GroundMovementWriter.Node.Specification.valueOf(s.trim()));
+			}
+		}
+		
+		Map<Integer, TaxiNode> nodesByID = new HashMap<Integer, TaxiNode>();
+		for (TaxiNode tn : at.getAllNodes().values()) {
+			nodesByID.put(at.getGMWTaxiNodeID(tn), tn);
+		}
+		
+		List<TaxiNode> rval = new ArrayList<TaxiNode>();
+		for (GroundMovementWriter.Node n : gmw.getNodes()) {
+			if (all || specs.contains(n.getSpecification())) {
+				rval.add(nodesByID.get(n.getSeqNo()));
+			}
+		}
+		
+		return rval;
+	}
+	
+	/**
+	 * finds the k shortest paths between each of fromNodes and each of toNodes, working on several start nodes at once
+	 * @return a GM file holding just the paths, in both directions
+	 */
+	public static GroundMovementWriter generate(TaxiGen at, List<TaxiNode> fromNodes, List<TaxiNode> toNodes, int k, int maxHops, int numberOfThreads) {
+		Map<TaxiNode, List<TaxiNode>> ends = new LinkedHashMap<TaxiNode, List<TaxiNode>>();
+		for (TaxiNode start : fromNodes) {
+			ends.put(start, toNodes);
+		}
+		
+		return generate(at, ends, k, maxHops, numberOfThreads);
+	}
+	
+	/**
+	 * finds the k shortest paths from each start node to each of its end nodes, working on several start nodes at once
+	 * @param ends the end nodes for each start node
+	 * @return a GM file holding just the paths, in both directions
+	 */
+	public static GroundMovementWriter generate(final TaxiGen at, Map<TaxiNode, List<TaxiNode>> ends, final int k, final int maxHops, int numberOfThreads) {
+		final WeightedMultigraph<TaxiNode, TaxiEdge> graph = at.getGraphWholeAirport();
+		final Set<NodePair> pairs = new HashSet<NodePair>();
+		for (Map.Entry<TaxiNode, List<TaxiNode>> e : ends.entrySet()) {
+			for (TaxiNode end : e.getValue()) {
+				pairs.add(new NodePair(e.getKey(), end));
+			}
+		}
+		
+		List<TaxiNode> startNodes = new ArrayList<TaxiNode>(ends.keySet());
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numberOfThreads));
+		List<Future<List<ShortestPath>>> results = new ArrayList<Future<List<ShortestPath>>>(startNodes.size());
+		for (final TaxiNode start : startNodes) {
+			final List<TaxiNode> endNodes = ends.get(start);
+			results.add(pool.submit(new Callable<List<ShortestPath>>() {
+				@Override
+				public List<ShortestPath> call() {
+					List<ShortestPath> rval = new ArrayList<ShortestPath>();
+					KShortestPaths<TaxiNode, TaxiEdge> ksp = new KShortestPaths<TaxiNode, TaxiEdge>(graph, start, k, maxHops);
+					int startID = at.getGMWTaxiNodeID(start);
+					for (TaxiNode end : endNodes) {
+						if (start.equals(end)) {
+							continue;
+						}
+						
+						// paths are written both ways, so if the reverse pair is also being done, only do one of them
+						int endID = at.getGMWTaxiNodeID(end);
+						if (pairs.contains(new NodePair(end, start)) && (endID < startID)) {
+							continue;
+						}
+						
+						List<GraphPath<TaxiNode, TaxiEdge>> paths = ksp.getPaths(end);
+						if (paths == null) {
+							continue;
+						}
+						
+						for (int i = 0; i < paths.size(); i++) {
+							List<TaxiEdge> edges = paths.get(i).getEdgeList();
+							int[] edgeIDs = new int[edges.size()];
+							int[] reversedEdgeIDs = new int[edges.size()];
+							for (int j = 0; j < edgeIDs.length; j++) {
+								edgeIDs[j] = at.getGMWTaxiEdgeID(edges.get(j));
+								reversedEdgeIDs[edgeIDs.length - 1 - j] = edgeIDs[j];
+							}
+							
+							rval.add(new ShortestPath(startID, endID, i + 1, edgeIDs));
+							rval.add(new ShortestPath(endID, startID, i + 1, reversedEdgeIDs));
+						}
+					}
+					
+					return rval;
+				}
+			}));
+		}
+		
+		GroundMovementWriter rval = new GroundMovementWriter();
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				for (ShortestPath sp : results.get(i).get()) {
+					rval.addShortestPath(sp);
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				System.err.println("Error finding paths from node " + startNodes.get(i));
+				e.printStackTrace();
+			}
+			
+			if ((i + 1) % 50 == 0) {
+				System.out.println((i + 1) + "/" + results.size() + " start nodes done");
+			}
+		}
+		pool.shutdown();
+		
+		return rval;
+	}
+	
+	/**
+	 * writes node pairs (e.g. those SnapTracks looked up but didn't find in a table) as their GM node IDs, one pair a line, 
+	 * for {@link #readPairs(String, TaxiGen)}
+	 */
+	public static void writePairs(String filename, Collection<NodePair> pairs, TaxiGen at) {
+		try (PrintStream out = new PrintStream(new FileOutputStream(filename))) {
+			for (NodePair pair : pairs) {
+				out.println(at.getGMWTaxiNodeID(pair.getFrom()) + PAIR_SEPARATOR + at.getGMWTaxiNodeID(pair.getTo()));
+			}
+		} catch (IOException e) {
+			System.err.println("Error writing node pairs to " + filename);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * reads node pairs written by {@link #writePairs(String, Collection, TaxiGen)}
+	 * @return the end nodes for each start node, for {@link #generate(TaxiGen, Map, int, int, int)}
+	 */
+	public static Map<TaxiNode, List<TaxiNode>> readPairs(String filename, TaxiGen at) {
+		Map<Integer, TaxiNode> nodesByID = new HashMap<Integer, TaxiNode>();
+		for (TaxiNode tn : at.getAllNodes().values()) {
+			nodesByID.put(at.getGMWTaxiNodeID(tn), tn);
+		}
+		
+		Map<TaxiNode, List<TaxiNode>> rval = new LinkedHashMap<TaxiNode, List<TaxiNode>>();
+		int skipped = 0;
+		try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] ids = line.trim().split(PAIR_SEPARATOR);
+				if (ids.length != 2) {
+					continue;
+				}
+				
+				TaxiNode start = nodesByID.get(Integer.parseInt(ids[0].trim()));
+				TaxiNode end = nodesByID.get(Integer.parseInt(ids[1].trim()));
+				if ((start == null) || (end == null)) {
+					skipped++;
+					continue;
+				}
+				
+				List<TaxiNode> endNodes = rval.get(start);
+				if (endNodes == null) {
+					endNodes = new ArrayList<TaxiNode>();
+					rval.put(start, endNodes);
+				}
+				endNodes.add(end);
+			}
+		} catch (IOException e) {
+			System.err.println("Error reading node pairs from " + filename);
+			e.printStackTrace();
+		}
+		
+		if (skipped > 0) {
+			System.err.println(skipped + " node pairs in " + filename + " refer to nodes not in the airport, and were skipped");
+		}
+		
+		return rval;
+	}
+	
+	/**
+	 * loads a table written by {@link #main(String[])} (or one of the benchmark XXX_ShortestPaths.txt files)
+	 * @param k only the first k paths for each pair are kept
+	 * @return the paths (shortest first) for each pair of nodes in the table
+	 */
+	public static Map<NodePair, List<GraphPath<TaxiNode, TaxiEdge>>> load(String filename, TaxiGen at, int k) {
+		WeightedMultigraph<TaxiNode, TaxiEdge> graph = at.getGraphWholeAirport();
+		
+		// TaxiGen's own lookups are linear searches, which would be far too slow here
+		Map<Integer, TaxiNode> nodesByID = new HashMap<Integer, TaxiNode>();
+		for (TaxiNode tn : at.getAllNodes().values()) {
+			nodesByID.put(at.getGMWTaxiNodeID(tn), tn);
+		}
+		Map<Integer, TaxiEdge> edgesByID = new HashMap<Integer, TaxiEdge>();
+		for (TaxiEdge te : at.getAllEdges()) {
+			edgesByID.put(at.getGMWTaxiEdgeID(te), te);
+		}
+		
+		GroundMovementWriter gmw = new GroundMovementWriter(filename);
+		Map<NodePair, List<ShortestPath>> rowsByPair = new HashMap<NodePair, List<ShortestPath>>();
+		int skipped = 0;
+		for (ShortestPath sp : gmw.getShortestPaths()) {
+			TaxiNode start = nodesByID.get(sp.getStartNode());
+			TaxiNode end = nodesByID.get(sp.getEndNode());
+			if ((start == null) || (end == null)) {
+				skipped++;
+				continue;
+			}
+			
+			NodePair pair = new NodePair(start, end);
+			List<ShortestPath> rows = rowsByPair.get(pair);
+			if (rows == null) {
+				rows = new ArrayList<ShortestPath>();
+				rowsByPair.put(pair, rows);
+			}
+			rows.add(sp);
+		}
+		
+		Map<NodePair, List<GraphPath<TaxiNode, TaxiEdge>>> rval = new HashMap<NodePair, List<GraphPath<TaxiNode, TaxiEdge>>>();
+		for (Map.Entry<NodePair, List<ShortestPath>> e : rowsByPair.entrySet()) {
+			List<ShortestPath> rows = e.getValue();
+			Collections.sort(rows, new Comparator<ShortestPath>() {
+				@Override
+				public int compare(ShortestPath sp1, ShortestPath sp2) {
+					return Integer.compare(sp1.getPathNum(), sp2.getPathNum());
+				}
+			});
+			
+			List<GraphPath<TaxiNode, TaxiEdge>> paths = new ArrayList<GraphPath<TaxiNode, TaxiEdge>>(Math.min(k, rows.size()));
+			for (int i = 0; (i < rows.size()) && (paths.size() < k); i++) {
+				List<TaxiEdge> edges = new ArrayList<TaxiEdge>(rows.get(i).getEdges().length);
+				double weight = 0;
+				for (int id : rows.get(i).getEdges()) {
+					TaxiEdge te = edgesByID.get(id);
+					if (te == null) {
+						edges = null;
+						break;
+					}
+					edges.add(te);
+					weight += graph.getEdgeWeight(te);
+				}
+				
+				if (edges != null) {
+					paths.add(new GraphPathImpl<TaxiNode, TaxiEdge>(graph, e.getKey().getFrom(), e.getKey().getTo(), edges, weight));
+				} else {
+					skipped++;
+				}
+			}
+			
+			rval.put(e.getKey(), Collections.unmodifiableList(paths));
+		}
+		
+		if (skipped > 0) {
+			System.err.println(skipped + " paths in " + filename + " refer to nodes or edges not in the airport, and were skipped");
+		}
+		
+		return rval;
+	}
+}
@@ -3,7 +3,6 @@ package gmtools.tools;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
@@ -13,6 +12,12 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import de.micromata.opengis.kml.v_2_2_0.Document;
 import de.micromata.opengis.kml.v_2_2_0.Icon;
@@ -22,20 +27,29 @@ import de.micromata.opengis.kml.v_2_2_0.LineString;
 import de.micromata.opengis.kml.v_2_2_0.Placemark;
 import de.micromata.opengis.kml.v_2_2_0.Style;
 import gmtools.common.ArrayTools;
+import gmtools.common.BoundedCache.EvictionPolicy;
+import gmtools.common.CompressedFiles;
+import gmtools.common.Geography;
 import gmtools.common.GroundMovementWriter;
 import gmtools.common.KMLUtils;
 import gmtools.common.Legal;
+import gmtools.common.LocalGeodesy;
+import gmtools.graph.AStarRouter;
 import gmtools.graph.EdgeClusters;
+import gmtools.graph.EdgeDistanceField;
 import gmtools.graph.TaxiEdge;
 import gmtools.graph.TaxiNode;
 import gmtools.graph.TaxiNode.NodeType;
+import gmtools.parsers.BinaryTrackFile;
 import gmtools.parsers.ColumnIndices;
 import gmtools.parsers.RawFlightTrackData;
 import gmtools.parsers.RawFlightTrackData.Aircraft;
 import gmtools.snaptracks.CleaningRawDataOutliers;
+import gmtools.snaptracks.RunwayAlignment;
 import gmtools.snaptracks.SnapTracksThread;
 import gmtools.snaptracks.SnapTracksThread.EdgeTime;
 import gmtools.snaptracks.SnapTracksThread.RouteTaken;
+import gmtools.snaptracks.SnapTracksThread.SnapResult;
 import gmtools.snaptracks.SnapTracksThread.Snapping;
 import uk.me.jstott.jcoord.LatLng;
 
@@ -53,6 +67,8 @@ public class SnapTracks {
 	public static boolean GLOBAL_DEBUG_LOAD_FILTERING = false;
 	
 	private static final String EDGE_TIMES_SEPARATOR = "\t";
+	/**how many cleaned tracks can be waiting for the loader, with -pipeline*/
+	private static final int PIPELINE_QUEUE_LINES = 1024;
 	
 	private static final String EDGETIMESDETAILS_OUT_HEADER_THREAD = "thread";
 	private static final String EDGETIMESDETAILS_OUT_HEADER_INDEX = "index";
@@ -105,16 +121,34 @@ public class SnapTracks {
 	/**
 	 *  Load a GM file, load a set of flight tracks, snap them, and write out a corresponding GM file
 	 *  Usage: SnapTracks inputGMfile prefixForOutputFiles airportID flightTrackFile1;flightTrackFile2;flightTrackFile3 [options]
+	 *  (flight track files and the -etd file can be gzipped, with a .gz extension; flight track files can also be converted with BinaryTrackFile, and aren't cleaned if so)
 	 *  Options:
 	 *    -alat=x : lat of airport, so distant points can be filtered out (required)
 	 *    -alon=y : lon of airport, so distant points can be filtered out (required)
 	 *    -start=n : start at flight number n (default=0)
 	 *    -end=n : end at flight number n (default=no limit)
+	 *    -from=t : only keep ground movements with a point at or after this timestamp (seconds, as in the flight track files) (default=no limit)
+	 *    -to=t : only keep ground movements with a point at or before this timestamp (default=no limit)
+	 *    -index : use an index (built the first time, saved as a .idx file next to each flight track file) to skip tracks that can't be near the airport or in the time window without parsing them (default=false)
 	 *    -noclean : disable cleaning of tracks (default is enabled)
+	 *    -pipeline : pass the cleaned tracks straight to the loader as they are cleaned, rather than writing _cleaned files and reading them back (default=false)
+	 *    -writeCleaned : with -pipeline, still write the _cleaned files and their KML (default=false)
 	 *    -snapped : tracks are already snapped (format of file is different) (default=false)
-	 *    -threads=4 : number of threads to use (default is whatever is returned by JVM for Runtime.getRuntime().availableProcessors())
+	 *    -threads=4 : number of threads to use, for loading, cleaning and snapping (default is whatever is returned by JVM for Runtime.getRuntime().availableProcessors())
 	 *    -step=10 : step width in metres (default=10)
 	 *    -steps=50 : number of steps out (default=50)
+	 *    -parallelDisplacement : try each ring of displacements concurrently rather than one at a time, on as many threads again as -threads (default=false)
+	 *    -maxDisplacements=n : only fully snap the n displacements with most points near a taxiway (default=0, meaning any that could snap)
+	 *    -runwayFit : before searching for displacements, try to work them out by fitting the ends of each track to the runways (default=false)
+	 *    -astar=8 : find paths between unambiguous edges using A* search, with this many landmarks (0 for just the distance as the crow flies) (default=off)
+	 *    -edgeIndex=grid : how to find the edges near each point: grid (a 10x10 grid over the airport) or rtree (an R-tree over the edges; better for large airports) (default=grid)
+	 *    -distanceField=2 : precompute the distance to the nearest edge over a raster with cells this size in metres, for faster edge lookups; saved as the GM file name + ".df" and reused if that matches (default=off)
+	 *    -jcoord : work out distances and angles with jcoord throughout, rather than a faster local approximation around the airport (see LocalGeodesy) (default=false)
+	 *    -cacheSize=n : max number of node pairs held in the k shortest paths cache (<=0 for no limit) (default=100000)
+	 *    -treeCacheSize=n : max number of shortest path trees held in the cache, each covering the whole graph (<=0 for no limit) (default=500)
+	 *    -cachePolicy=LRU : which cached paths to throw away first when a cache is full, LRU or LFU (default=LRU)
+	 *    -sp=XXX_ShortestPaths.txt : look up k shortest paths in this table (made by ShortestPathsTable, or from the benchmarks) rather than computing them; generate it with at least the k used here. Paths are looked up between the nodes of any edges the tracks snap to, so a gate-runway table only covers some of them: the rest are still computed (see -spPairs)
+	 *    -spPairs=XXX_Pairs.txt : write the node pairs whose paths had to be computed (not in the -sp table, or all of them without one) to this file, for ShortestPathsTable -pairs= to make a table covering them (default=off)
 	 *    -d=10 : distance from an edge in metres for a coordinate to snap to it (default=10)
 	 *    -b=1800 : if there is a gap of more than this in metres between points, split into two separate tracks (<0 to disable) (default=1800)
 	 *    -etd=XXX_EdgeTimeDetails : attempt to pick up the snapped routes from the specified EDT file and write out the normal outputs
@@ -136,13 +170,26 @@ public class SnapTracks {
 		boolean flightTracksFilesAlreadySnapped = false;
 		int startFlight = 0; // inclusive
 		int endFlight = -1; // exclusive; if this is less than the start flight, we go right to the end
+		long fromTimestamp = Long.MIN_VALUE; // only ground movements overlapping this time window are kept
+		long toTimestamp = Long.MAX_VALUE;
+		boolean useTrackIndex = false;
 		boolean cleanTracks = true;
+		boolean pipelineCleaning = false; // clean straight into the loader, rather than via files
+		boolean writeCleanedFiles = false; // only matters if pipelining: otherwise the cleaned files are always written
 		long breakTracksIfGapOverS = 30 * 60; // if there is a gap of more than this between points, split into two separate tracks (<0 to disable)
 		int min = 10;
 		int kForStage2PathReduction = 10; // default k (number of paths between two unambiguous points when cleaning the route)
 		int maxHopsForStage2PathReduction = Integer.MAX_VALUE; // (max length of paths between two unambiguous points when cleaning the route)
 		double snapDistanceM = 10;
 		String etdFile = null;
+		int pathCacheSize = SnapTracksThread.DEFAULT_PATH_CACHE_SIZE;
+		int treeCacheSize = SnapTracksThread.DEFAULT_TREE_CACHE_SIZE;
+		EvictionPolicy pathCachePolicy = EvictionPolicy.LRU;
+		String shortestPathsFile = null;
+		String shortestPathsPairsFile = null;
+		EdgeClusters.IndexType edgeIndexType = EdgeClusters.IndexType.GRID;
+		double distanceFieldCellSizeM = -1;
+		boolean useJcoord = false;
 		
 		final double airportRadius = 0.1;
 		
@@ -151,6 +198,10 @@ public class SnapTracks {
 		// displacement params
 		double stepWidthMetres = 10;
 		int maxStepsOut = 50;
+		boolean parallelDisplacement = false;
+		int maxDisplacementsToSnap = 0;
+		boolean runwayFit = false;
+		int aStarLandmarks = -1;
 		
 		List<String> defaultCleaningParams = new ArrayList<String>();
 		
@@ -176,6 +227,10 @@ public class SnapTracks {
 					lonAirport = Double.parseDouble(a.substring(6));
 				} else if (a.equals("-noclean")) {
 					cleanTracks = false;
+				} else if (a.equals("-pipeline")) {
+					pipelineCleaning = true;
+				} else if (a.equals("-writeCleaned")) {
+					writeCleanedFiles = true;
 				} else if (a.startsWith("-threads")) {
 					numberOfThreads = Integer.parseInt(a.substring(9));
 				} else if (a.startsWith("-min")) {
@@ -184,8 +239,22 @@ public class SnapTracks {
 					stepWidthMetres = Double.parseDouble(a.substring(6));
 				} else if (a.startsWith("-steps=")) {
 					maxStepsOut = Integer.parseInt(a.substring(7));
+				} else if (a.equals("-parallelDisplacement")) {
+					parallelDisplacement = true;
+				} else if (a.startsWith("-maxDisplacements=")) {
+					maxDisplacementsToSnap = Integer.parseInt(a.substring(18));
+				} else if (a.equals("-runwayFit")) {
+					runwayFit = true;
+				} else if (a.startsWith("-astar=")) {
+					aStarLandmarks = Integer.parseInt(a.substring(7));
 				} else if (a.startsWith("-start=")) {
 					startFlight = Integer.parseInt(a.substring(7));
+				} else if (a.startsWith("-from=")) {
+					fromTimestamp = Long.parseLong(a.substring(6));
+				} else if (a.startsWith("-to=")) {
+					toTimestamp = Long.parseLong(a.substring(4));
+				} else if (a.equals("-index")) {
+					useTrackIndex = true;
 				} else if (a.startsWith("-end=")) {
 					endFlight = Integer.parseInt(a.substring(5));
 				} else if (a.equals("-snapped")) {
@@ -198,6 +267,22 @@ public class SnapTracks {
 					kForStage2PathReduction = Integer.parseInt(a.substring(3));
 				} else if (a.startsWith("-maxHops=")) { // experimental; undocumented as yet
 					maxHopsForStage2PathReduction = Integer.parseInt(a.substring(9));
+				} else if (a.startsWith("-edgeIndex=")) {
+					edgeIndexType = EdgeClusters.IndexType.valueOf(a.substring(11).toUpperCase());
+				} else if (a.equals("-jcoord")) {
+					useJcoord = true;
+				} else if (a.startsWith("-distanceField=")) {
+					distanceFieldCellSizeM = Double.parseDouble(a.substring(15));
+				} else if (a.startsWith("-cacheSize=")) {
+					pathCacheSize = Integer.parseInt(a.substring(11));
+				} else if (a.startsWith("-treeCacheSize=")) {
+					treeCacheSize = Integer.parseInt(a.substring(15));
+				} else if (a.startsWith("-cachePolicy=")) {
+					pathCachePolicy = EvictionPolicy.valueOf(a.substring(13).toUpperCase());
+				} else if (a.startsWith("-sp=")) {
+					shortestPathsFile = a.substring(4);
+				} else if (a.startsWith("-spPairs=")) {
+					shortestPathsPairsFile = a.substring(9);
 				} else if (a.startsWith("-etd=")) {
 					snapping = false;
 					etdFile = a.substring(5);
@@ -242,9 +327,27 @@ public class SnapTracks {
 		System.out.println("  Airport ID, lat and lon:" + airportID + ", " + latAirport + ", " + lonAirport);
 		System.out.println("  Flights to process:" + ((endFlight < startFlight)? "all" : startFlight + " to " + endFlight));
 		System.out.println("  Threads:" + numberOfThreads);
-		System.out.println("  Displacement step size (m), count:" + stepWidthMetres + ", " + maxStepsOut);
+		if (cleanTracks && pipelineCleaning) {
+			System.out.println("  Cleaning straight into the loader" + (writeCleanedFiles ? ", also writing the cleaned files" : ""));
+		}
+		System.out.println("  Displacement step size (m), count:" + stepWidthMetres + ", " + maxStepsOut + (parallelDisplacement ? " (parallel)" : ""));
+		if (maxDisplacementsToSnap > 0) {
+			System.out.println("  Max displacements to fully snap:" + maxDisplacementsToSnap);
+		}
+		if (runwayFit) {
+			System.out.println("  Fitting tracks to runways before searching for displacements");
+		}
+		if (aStarLandmarks >= 0) {
+			System.out.println("  A* routing, landmarks:" + aStarLandmarks);
+		}
 		System.out.println("  Min points near airport required to try snapping:" + min);
 		System.out.println("  Max distance for coord to snap to edge (m):" + snapDistanceM);
+		System.out.println("  Edge index:" + edgeIndexType);
+		System.out.println("  Geodesy:" + (useJcoord ? "jcoord" : "local"));
+		if (distanceFieldCellSizeM > 0) {
+			System.out.println("  Distance field cell size (m):" + distanceFieldCellSizeM);
+		}
+		System.out.println("  Path cache size, tree cache size, policy:" + ((pathCacheSize > 0) ? pathCacheSize : "unlimited") + ", " + ((treeCacheSize > 0) ? treeCacheSize : "unlimited") + ", " + pathCachePolicy);
 		System.out.println("  Flight track files:" + ArrayTools.toString(flightTracksFiles, ","));
 		if ((kForStage2PathReduction != 10) || (maxHopsForStage2PathReduction != Integer.MAX_VALUE)) {
 			System.out.println("  k=" + kForStage2PathReduction + ",maxHops=" + maxHopsForStage2PathReduction);
@@ -256,17 +359,43 @@ public class SnapTracks {
 			breakTracksIfGapOverS = Long.MAX_VALUE; // negative means no limit
 		}
 		
+		Geography.setLocalGeodesy(useJcoord ? null : new LocalGeodesy(latAirport, lonAirport)); // once for the whole run, before the graph's plane is set up from it
+		
 		// load existing GM file
 		GroundMovementWriter gmw = new GroundMovementWriter(gmFile);
 		
 		// create an autotaxiways object from existing GM file
 		TaxiGen at = new TaxiGen(gmw); 
 		
-		EdgeClusters edgeClusters = new EdgeClusters(at, 10, snapDistanceM);
+		EdgeClusters edgeClusters = new EdgeClusters(at, 10, snapDistanceM, edgeIndexType);
+		if (distanceFieldCellSizeM > 0) {
+			EdgeDistanceField distanceField = EdgeDistanceField.loadOrBuild(gmFile + ".df", edgeClusters.getCompactGraph(), distanceFieldCellSizeM, EdgeClusters.getDistanceFieldMaxDistanceM(snapDistanceM), numberOfThreads);
+			System.out.println(distanceField);
+			edgeClusters.setDistanceField(distanceField);
+		}
+		
+		SnapTracksThread.configurePathCaches(pathCacheSize, treeCacheSize, pathCachePolicy);
+		
+		if (shortestPathsFile != null) {
+			if (maxHopsForStage2PathReduction != Integer.MAX_VALUE) { // table paths aren't limited in length, so would give different routes
+				System.err.println("Not using shortest paths table " + shortestPathsFile + " because maxHops is set");
+			} else {
+				System.out.println("Loading shortest paths table " + shortestPathsFile);
+				SnapTracksThread.setPrecomputedKShortestPaths(ShortestPathsTable.load(shortestPathsFile, at, kForStage2PathReduction));
+			}
+		}
+		SnapTracksThread.setRecordMissedPairs(shortestPathsPairsFile != null);
 		
 		// clean track if necessary
+		Map<String, BlockingQueue<String>> cleanedQueues = null; // if pipelining, the cleaned lines for each file
 		if (cleanTracks) {
+			final List<String[]> pipelinedCleaningParams = new ArrayList<String[]>();
+			final List<BlockingQueue<String>> pipelinedQueues = new ArrayList<BlockingQueue<String>>();
 			for (int i = 0; i < flightTracksFiles.length; i++) {
+				if (BinaryTrackFile.isBinaryTrackFile(flightTracksFiles[i])) { // the cleaner only reads text; convert the cleaned text file if both are wanted
+					System.out.println("Not cleaning " + flightTracksFiles[i] + ", it is a binary track file");
+					continue;
+				}
 				System.out.println("Cleaning " + flightTracksFiles[i]);
 				int dotIndex = flightTracksFiles[i].lastIndexOf(".");
 				String cleanedFilename = (dotIndex >= 0 ? flightTracksFiles[i].substring(0, dotIndex) + "_cleaned" + flightTracksFiles[i].substring(dotIndex) : flightTracksFiles[i] + "_cleaned");
@@ -275,19 +404,54 @@ public class SnapTracks {
 				cleaningParams.add(1, cleanedFilename);
 				cleaningParams.add(2, "-alat="+latAirport);
 				cleaningParams.add(3, "-alon="+lonAirport);
-				CleaningRawDataOutliers.main(cleaningParams.toArray(new String[cleaningParams.size()]));
-				flightTracksFiles[i] = cleanedFilename; // replace this so we use cleaned tracks for snapping
-				System.out.println("...cleaned to " + cleanedFilename);
+				cleaningParams.add(4, "-threads="+numberOfThreads); // before any -clean_ params, so -clean_threads can override it
+				if (useJcoord) {
+					cleaningParams.add("-jcoord");
+				}
+				if (pipelineCleaning) { // cleaned below, once all the files have been set up
+					if (!writeCleanedFiles) {
+						cleaningParams.set(1, null);
+					}
+					BlockingQueue<String> queue = new ArrayBlockingQueue<String>(PIPELINE_QUEUE_LINES);
+					if (cleanedQueues == null) {
+						cleanedQueues = new HashMap<String, BlockingQueue<String>>();
+					}
+					cleanedQueues.put(cleanedFilename, queue);
+					pipelinedCleaningParams.add(cleaningParams.toArray(new String[cleaningParams.size()]));
+					pipelinedQueues.add(queue);
+					flightTracksFiles[i] = cleanedFilename; // the loader takes this one from the queue
+				} else {
+					CleaningRawDataOutliers.main(cleaningParams.toArray(new String[cleaningParams.size()]));
+					flightTracksFiles[i] = cleanedFilename; // replace this so we use cleaned tracks for snapping
+					System.out.println("...cleaned to " + cleanedFilename);
+				}
+			}
+			
+			if (!pipelinedQueues.isEmpty()) {
+				// clean the files in turn, in the order the loader reads them; each queue only holds a few lines, so cleaning 
+				// can't get far ahead of loading. Snapping still waits for loading to finish, as a track later in the input 
+				// can replace an aircraft from earlier on (and changes the order of the aircraft)
+				Thread cleaner = new Thread("Cleaning") {
+					@Override
+					public void run() {
+						for (int i = 0; i < pipelinedQueues.size(); i++) {
+							System.out.println("Cleaning " + pipelinedCleaningParams.get(i)[0] + " into the loader");
+							CleaningRawDataOutliers.clean(pipelinedCleaningParams.get(i), pipelinedQueues.get(i));
+						}
+					}
+				};
+				cleaner.setDaemon(true);
+				cleaner.start();
 			}
 		}
 		
 		// load raw flight tracks
-		List<Aircraft> allAircraft = RawFlightTrackData.loadAircraft(flightTracksFilesAlreadySnapped, flightTracksFilesIncludedIntervals, "", flightTracksFiles, latAirport, lonAirport, airportRadius, airportID, breakTracksIfGapOverS, min); // this loads coords as lat/lon, snap method needs lon/lat, so swap below
+		List<Aircraft> allAircraft = RawFlightTrackData.loadAircraft(flightTracksFilesAlreadySnapped, flightTracksFilesIncludedIntervals, "", flightTracksFiles, latAirport, lonAirport, airportRadius, airportID, breakTracksIfGapOverS, min, numberOfThreads, fromTimestamp, toTimestamp, useTrackIndex, cleanedQueues); // this loads coords as lat/lon, snap method needs lon/lat, so swap below
 		SnapTracks stm = new SnapTracks(at, edgeClusters);
 		
 		// snap tracks
 		if (snapping) {
-			stm.loadAndSnapAircraft(flightTracksFilesAlreadySnapped, flightTracksFilesIncludedIntervals, "", allAircraft, latAirport, lonAirport, airportRadius, airportID, filePrefix, numberOfThreads, breakTracksIfGapOverS, startFlight, endFlight, stepWidthMetres, maxStepsOut, min, snapDistanceM, kForStage2PathReduction, maxHopsForStage2PathReduction);
+			stm.loadAndSnapAircraft(flightTracksFilesAlreadySnapped, flightTracksFilesIncludedIntervals, "", allAircraft, latAirport, lonAirport, airportRadius, airportID, filePrefix, numberOfThreads, breakTracksIfGapOverS, startFlight, endFlight, stepWidthMetres, maxStepsOut, parallelDisplacement, maxDisplacementsToSnap, runwayFit, aStarLandmarks, min, snapDistanceM, kForStage2PathReduction, maxHopsForStage2PathReduction);
 		
 			// write out updated GM file
 			Map<RouteTaken, Integer> gmwIDsForACs = addSnappedFlightTracksToGMFile(gmw, at, stm.aircraft, stm.aircraftRoutes);
@@ -297,6 +461,11 @@ public class SnapTracks {
 			stm.edgeTaxiTimesToTSV(filePrefix + "_EdgeTaxiTimes.txt", gmwIDsForACs, at);
 			
 			graphNodesAndEdgesToKML(filePrefix + "_Snapped.kml", at, stm.flightpaths, stm.flightNames, stm.aircraft, stm.aircraftRoutes, gmwIDsForACs);
+			
+			if (shortestPathsPairsFile != null) {
+				System.out.println("Writing " + SnapTracksThread.getMissedPairs().size() + " node pairs not in the shortest paths table to " + shortestPathsPairsFile);
+				ShortestPathsTable.writePairs(shortestPathsPairsFile, SnapTracksThread.getMissedPairs(), at);
+			}
 		} else {
 			stm.loadSnappedRoutesFromEdgeTimeDetails(allAircraft, etdFile);
 			
@@ -314,17 +483,35 @@ public class SnapTracks {
 	public static void printUsage() {
 		System.out.println("Load a GM file, load a set of flight tracks, snap them, and write out a corresponding GM file");
 		System.out.println("Usage: SnapTracks inputGMfile prefixForOutputFiles airportID flightTrackFile1;flightTrackFile2;flightTrackFile3 [options]");
+		System.out.println("(flight track files and the -etd file can be gzipped, with a .gz extension; flight track files can also be converted with BinaryTrackFile, and aren't cleaned if so)");
 		System.out.println();
 		System.out.println("Options:");
 		System.out.println("   -alat=x : lat of airport, so distant points can be filtered out (required)");
 		System.out.println("   -alon=y : lon of airport, so distant points can be filtered out (required)");
 		System.out.println("   -start=n : start at flight number n (default=0)");
 		System.out.println("   -end=n : end at flight number n (default=no limit)");
+		System.out.println("   -from=t : only keep ground movements with a point at or after this timestamp (seconds, as in the flight track files) (default=no limit)");
+		System.out.println("   -to=t : only keep ground movements with a point at or before this timestamp (default=no limit)");
+		System.out.println("   -index : use an index (built the first time, saved as a .idx file next to each flight track file) to skip tracks that can't be near the airport or in the time window without parsing them (default=false)");
 		System.out.println("   -noclean : disable cleaning of tracks (default is enabled)");
+		System.out.println("   -pipeline : pass the cleaned tracks straight to the loader as they are cleaned, rather than writing _cleaned files and reading them back (default=false)");
+		System.out.println("   -writeCleaned : with -pipeline, still write the _cleaned files and their KML (default=false)");
 		System.out.println("   -snapped : tracks are already snapped (format of file is different)");
-		System.out.println("   -threads=4 : number of threads to use (default is whatever is returned by JVM for Runtime.getRuntime().availableProcessors())");
+		System.out.println("   -threads=4 : number of threads to use, for loading, cleaning and snapping (default is whatever is returned by JVM for Runtime.getRuntime().availableProcessors())");
 		System.out.println("   -step=10 : step width in metres (default=10)");
 		System.out.println("   -steps=50 : number of steps out (default=50)");
+		System.out.println("   -parallelDisplacement : try each ring of displacements concurrently rather than one at a time, on as many threads again as -threads (default=false)");
+		System.out.println("   -maxDisplacements=n : only fully snap the n displacements with most points near a taxiway (default=0, meaning any that could snap)");
+		System.out.println("   -runwayFit : before searching for displacements, try to work them out by fitting the ends of each track to the runways (default=false)");
+		System.out.println("   -astar=8 : find paths between unambiguous edges using A* search, with this many landmarks (0 for just the distance as the crow flies) (default=off)");
+		System.out.println("   -edgeIndex=grid : how to find the edges near each point: grid (a 10x10 grid over the airport) or rtree (an R-tree over the edges; better for large airports) (default=grid)");
+		System.out.println("   -distanceField=2 : precompute the distance to the nearest edge over a raster with cells this size in metres, for faster edge lookups; saved as the GM file name + \".df\" and reused if that matches (default=off)");
+		System.out.println("   -jcoord : work out distances and angles with jcoord throughout, rather than a faster local approximation around the airport (see LocalGeodesy) (default=false)");
+		System.out.println("   -cacheSize=n : max number of node pairs held in the k shortest paths cache (<=0 for no limit) (default=" + SnapTracksThread.DEFAULT_PATH_CACHE_SIZE + ")");
+		System.out.println("   -treeCacheSize=n : max number of shortest path trees held in the cache, each covering the whole graph (<=0 for no limit) (default=" + SnapTracksThread.DEFAULT_TREE_CACHE_SIZE + ")");
+		System.out.println("   -cachePolicy=LRU : which cached paths to throw away first when a cache is full, LRU or LFU (default=LRU)");
+		System.out.println("   -sp=XXX_ShortestPaths.txt : look up k shortest paths in this table (made by ShortestPathsTable, or from the benchmarks) rather than computing them; generate it with at least the k used here. Paths are looked up between the nodes of any edges the tracks snap to, so a gate-runway table only covers some of them: the rest are still computed (see -spPairs)");
+		System.out.println("   -spPairs=XXX_Pairs.txt : write the node pairs whose paths had to be computed (not in the -sp table, or all of them without one) to this file, for ShortestPathsTable -pairs= to make a table covering them (default=off)");
 		System.out.println("   -d=10 : distance from an edge in metres for a coordinate to snap to it (default=10)");
 		System.out.println("   -etd=XXX_EdgeTimeDetails : attempt to pick up the snapped routes from the specified EDT file and write out the normal outputs");
 		System.out.println("   -b=1800 : if there is a gap of more than this in metres between points, split into two separate tracks (<0 to disable) (default=1800)");
@@ -358,10 +545,14 @@ public class SnapTracks {
 	 * @param filePrefix
 	 * @param numThreads
 	 * @param limit - number of aircraft to stop after (-1 for no limit, no limit)
+	 * @param parallelDisplacement - if true, each ring of displacements for a track is snapped concurrently
+	 * @param maxDisplacementsToSnap - if more than 0, only the displacements with the most points near a taxiway are fully snapped
+	 * @param runwayFit - if true, try fitting tracks to the runways before searching for a displacement
+	 * @param aStarLandmarks - if 0 or more, use A* search with this many landmarks for the paths in stage 3a
 	 * @param min - min number of points in a track (after cleaning) near airport before we'll try snapping
 	 */
 	@SuppressWarnings("unchecked")
-	private void loadAndSnapAircraft(boolean flightTracksFilesAlreadySnapped, boolean flightTracksFilesIncludedIntervals, String basedir, List<Aircraft> allAircraft, double latAirport, double lonAirport, double airportRadius, String airportID, String filePrefix, int numThreads, long breakTracksIfGapOverS, int startFlight, int endFlight, double stepWidthMetres, int maxStepsOut, int min, double snapDistanceM, int kForStage2PathReduction, int maxHopsForStage2PathReduction) {
+	private void loadAndSnapAircraft(boolean flightTracksFilesAlreadySnapped, boolean flightTracksFilesIncludedIntervals, String basedir, List<Aircraft> allAircraft, double latAirport, double lonAirport, double airportRadius, String airportID, String filePrefix, int numThreads, long breakTracksIfGapOverS, int startFlight, int endFlight, double stepWidthMetres, int maxStepsOut, boolean parallelDisplacement, int maxDisplacementsToSnap, boolean runwayFit, int aStarLandmarks, int min, double snapDistanceM, int kForStage2PathReduction, int maxHopsForStage2PathReduction) {
 		System.out.println("Snapping flights");
 		
 		PrintStream snappedOut = null;
@@ -412,27 +603,69 @@ public class SnapTracks {
 		this.aircraftRoutes = new List[aircraft.size()];
 		this.flightNames = new String[aircraft.size()];
 		
-		List<Integer> indicesToProcess = new ArrayList<Integer>(aircraft.size());
-		for (int i = 0; i < aircraft.size(); i++) {
-			indicesToProcess.add(i);
-		}
-		
+		int displacementThreads = numThreads; // as asked for, even if there are fewer aircraft: a single slow track can still use them all
 		if (numThreads > aircraft.size()) {
 			System.out.println("More threads (" + numThreads + ") than aircraft tracks (" + aircraft.size() + "). Reducing thread count.");
-			numThreads = aircraft.size();
+			numThreads = Math.max(1, aircraft.size());
 		}
-		SnapTracksThread[] snapThreads = new SnapTracksThread[numThreads];
-		for (int i = 0; i < snapThreads.length; i++) {
-			snapThreads[i] = new SnapTracksThread(i, aircraft, indicesToProcess, taxiGen.getGraphWholeAirport(), flightpaths, aircraftRoutes, flightNames, flightTracksFilesIncludedIntervals, stepWidthMetres, maxStepsOut, snapDistanceM, taxiGen, edgeClusters, snappedOut, timesOut);
-			snapThreads[i].setkForStage2PathReduction(kForStage2PathReduction);
-			snapThreads[i].setMaxHopsForStage2PathReduction(maxHopsForStage2PathReduction);
-			snapThreads[i].start();
+		
+		// one task per aircraft, so that a few very slow tracks (e.g. with lots of displacement) 
+		// don't hold up the others: idle workers just pick up the next queued aircraft
+		final SnapTracksThread snapper = new SnapTracksThread(aircraft, taxiGen.getGraphWholeAirport(), flightTracksFilesIncludedIntervals, stepWidthMetres, maxStepsOut, snapDistanceM, taxiGen, edgeClusters, snappedOut, timesOut);
+		snapper.setkForStage2PathReduction(kForStage2PathReduction);
+		snapper.setMaxHopsForStage2PathReduction(maxHopsForStage2PathReduction);
+		snapper.setMaxDisplacementsToSnap(maxDisplacementsToSnap);
+		if (runwayFit) {
+			snapper.setRunwayAlignment(new RunwayAlignment(taxiGen.getRunways(), maxStepsOut * stepWidthMetres * Math.sqrt(2))); // no further than the corners of the spiral
+		}
+		AStarRouter router = null;
+		if (aStarLandmarks >= 0) {
+			router = new AStarRouter(taxiGen.getCompactGraph(), aStarLandmarks);
+			snapper.setRouter(router);
 		}
 		
-		for (int i = 0; i < snapThreads.length; i++) {
+		// separate pool for displacements, as the aircraft tasks block waiting for them. It is sized from -threads too, 
+		// so at most twice that many threads are busy at once (and mostly no more than -threads, as the aircraft threads wait)
+		ForkJoinPool displacementPool = null;
+		if (parallelDisplacement) {
+			displacementPool = new ForkJoinPool(displacementThreads);
+			snapper.setDisplacementPool(displacementPool);
+		}
+		
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		List<Future<SnapResult>> results = new ArrayList<Future<SnapResult>>(aircraft.size());
+		for (int i = 0; i < aircraft.size(); i++) {
+			final int aircraftIndex = i;
+			results.add(pool.submit(new Callable<SnapResult>() {
+				@Override
+				public SnapResult call() {
+					return snapper.snapAircraft(aircraftIndex);
+				}
+			}));
+		}
+		
+		for (int i = 0; i < results.size(); i++) {
 			try {
-				snapThreads[i].join();
-			} catch (InterruptedException e) {}
+				SnapResult result = results.get(i).get();
+				flightpaths[result.getIndex()] = result.getFlightpath();
+				flightNames[result.getIndex()] = result.getFlightName();
+				aircraftRoutes[result.getIndex()] = result.getRoutes();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				System.err.println("Error snapping aircraft " + i + ", " + aircraft.get(i).getLabel());
+				e.getCause().printStackTrace();
+				
+				// leave an empty entry so that the later outputs still line up with the aircraft list
+				flightpaths[i] = new LatLng[2][0];
+				flightNames[i] = aircraft.get(i).toString();
+				aircraftRoutes[i] = new ArrayList<RouteTaken>();
+			}
+		}
+		pool.shutdown();
+		if (displacementPool != null) {
+			displacementPool.shutdown();
 		}
 
 		if (snappedOut != null) {
@@ -443,6 +676,10 @@ public class SnapTracks {
 		}
 		
 		System.out.println("Snapping complete.");
+		System.out.println(SnapTracksThread.getPathCacheStats());
+		if (router != null) {
+			System.out.println(router);
+		}
 	}
 	
 	private void edgeTaxiTimesToTSV(String fileName, Map<RouteTaken, Integer> gmwIDsForACs, TaxiGen at) {
@@ -624,7 +861,7 @@ public class SnapTracks {
 		ColumnIndices columnIndices = null;
 		
 		try {
-			BufferedReader in = new BufferedReader(new FileReader(edgeTimeDetailsFile));
+			BufferedReader in = CompressedFiles.openReader(edgeTimeDetailsFile);
 			
 			String[] header = in.readLine().split(SnapTracksThread.EDGETIMESDETAILS_OUT_SEPARATOR);
 			columnIndices = new ColumnIndices(header, edgeTimeDetailsFile);
@@ -30,10 +30,12 @@ import de.micromata.opengis.kml.v_2_2_0.LineString;
 import de.micromata.opengis.kml.v_2_2_0.Placemark;
 import de.micromata.opengis.kml.v_2_2_0.Style;
 import gmtools.common.Geography;
+import gmtools.common.LocalGeodesy;
 import gmtools.common.GroundMovementWriter;
 import gmtools.common.KMLUtils;
 import gmtools.common.Legal;
 import gmtools.common.Maths;
+import gmtools.graph.CompactGraph;
 import gmtools.graph.GraphManipulation;
 import gmtools.graph.Runway;
 import gmtools.graph.Stands;
@@ -97,6 +99,9 @@ public class TaxiGen {
 	/**the graph of the airport excluding runways (ie, just the edges suitable for taxiing)*/
 	private WeightedMultigraph<TaxiNode,TaxiEdge> graphTaxiways;
 	
+	/**compact copy of graphWholeAirport for routing; built when first needed*/
+	private CompactGraph compactGraph;
+	
 	/**integer IDs assigned to TaxiNodes for by GroundMovementWriter*/
 	private Map<TaxiNode, Integer> gmwIDsForTaxiNodes;
 
@@ -655,6 +660,7 @@ public class TaxiGen {
 			}
 
 			this.graphWholeAirport.removeAllVertices(toRemove);
+			this.compactGraph = null;
 			this.graphTaxiways.removeAllVertices(toRemove);
 		}
 	}
@@ -1202,6 +1208,11 @@ public class TaxiGen {
 	
 	/**@return double[]{lat,lon}  -- equiv to x,y - assumes line extends beyond the ends that are specified*/
     public static double[] nearestPointOnLine(double pointLat, double pointLon, double endLine1Lat, double endLine1Lon, double endLine2Lat, double endLine2Lon) {
+    	LocalGeodesy local = Geography.getLocalGeodesy();
+    	if ((local != null) && local.covers(pointLat, pointLon) && local.covers(endLine1Lat, endLine1Lon) && local.covers(endLine2Lat, endLine2Lon)) {
+    		return local.nearestPointOnLine(pointLat, pointLon, endLine1Lat, endLine1Lon, endLine2Lat, endLine2Lon);
+    	}
+    	
     	// get eqn of line, get eqn of perpendicular line from it to the point, find intersection
     	
     	// first convert to UTM coords so we can do linear maths in metres rather than degrees
@@ -1485,6 +1496,14 @@ public class TaxiGen {
 		return graphWholeAirport;
 	}
 	
+	/**@return a compact (CSR) copy of {@link #getGraphWholeAirport()} for routing; built on the first call and shared after that*/
+	public synchronized CompactGraph getCompactGraph() {
+		if (compactGraph == null) {
+			compactGraph = new CompactGraph(graphWholeAirport);
+		}
+		return compactGraph;
+	}
+	
 	public Map<String, TaxiNode> getAllNodes() {
 		return allNodes;
 	}